@@ -0,0 +1,66 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.PortBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the parameters of a rule into the configuration of its container.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContainerConfigBenchmark {
+
+  @Param({"1", "8"})
+  public int portCount;
+
+  private String[] ports;
+  private String[] envs;
+  private Map<String, String> labels;
+  private Map<String, List<PortBinding>> bindings;
+  private DockerRule rule;
+
+  @Setup
+  public void setUp() throws Exception {
+    // random, fixed and same host port mappings, in turn
+    ports = new String[portCount];
+    for (int ii = 0; ii < portCount; ii++) {
+      int port = 8000 + ii;
+      ports[ii] = ii % 3 == 0 ? String.valueOf(port) : ii % 3 == 1 ? (30000 + ii) + ":" + port : ":" + port;
+    }
+    envs = new String[]{"RABBITMQ_DEFAULT_USER=bench", "RABBITMQ_DEFAULT_PASS=password1234"};
+    labels = new HashMap<>();
+    labels.put("com.github.klousiaj.bench", "true");
+    bindings = DockerRule.generatePortBinding(ports);
+    rule = new DockerRule(StubDockerClient.create(null, null));
+  }
+
+  @Benchmark
+  public Map<String, List<PortBinding>> generatePortBinding() throws Exception {
+    return DockerRule.generatePortBinding(ports);
+  }
+
+  @Benchmark
+  public ContainerConfig createContainerConfig() throws Exception {
+    return rule.createContainerConfig("rabbitmq:management", bindings, envs, "rabbitmq-server", labels);
+  }
+}
@@ -0,0 +1,59 @@
+package com.github.klousiaj.junit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of getHostPort, called by the tests for every connection they open.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HostPortBenchmark {
+
+  @Param({"1", "16"})
+  public int portCount;
+
+  private DockerRule rule;
+  private String lastPort;
+
+  @Setup
+  public void setUp() throws Exception {
+    int[] ports = new int[2 * portCount];
+    String[] mappings = new String[portCount];
+    for (int ii = 0; ii < portCount; ii++) {
+      ports[2 * ii] = 8000 + ii;
+      ports[2 * ii + 1] = 32768 + ii;
+      mappings[ii] = String.valueOf(8000 + ii);
+    }
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "bench/app:1";
+    params.ports = mappings;
+    rule = new DockerRule(StubDockerClient.create(null, StubDockerClient.info(ports)));
+    rule.params = params;
+    rule.attachToContainer();
+    lastPort = (8000 + portCount - 1) + "/tcp";
+    if (rule.getHostPort(lastPort) != 32768 + portCount - 1) {
+      throw new IllegalStateException("Unexpected host port " + rule.getHostPort(lastPort));
+    }
+  }
+
+  @Benchmark
+  public int getHostPort() {
+    return rule.getHostPort(lastPort);
+  }
+}
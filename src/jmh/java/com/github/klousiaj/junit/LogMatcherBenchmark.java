@@ -0,0 +1,88 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.LogMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Throughput of the log matching of waitForLog: the time to search 1MB of log, sent in
+ * frames of 16KB like the docker daemon does, for a message on its last line.
+ * </p>
+ * <p>
+ * Divide 1MB by the time of an operation for the throughput in bytes per second.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LogMatcherBenchmark {
+  static final int LOG_SIZE = 1024 * 1024;
+  static final int FRAME_SIZE = 16 * 1024;
+
+  @Param({"80", "2000"})
+  public int lineLength;
+
+  @Param({"literal", "regex"})
+  public String kind;
+
+  private ByteBuffer[] frames;
+  private List<LogPattern> patterns;
+
+  @Setup
+  public void setUp() {
+    String message = "Server startup complete; 6 plugins started.";
+    StringBuilder log = new StringBuilder(LOG_SIZE + lineLength);
+    StringBuilder line = new StringBuilder("=INFO REPORT==== 17-Oct-2016::10:31:12 === ");
+    while (line.length() < lineLength - 1) {
+      line.append("accepting AMQP connection <0.").append(line.length()).append(".0> ");
+    }
+    line.setLength(lineLength - 1);
+    line.append('\n');
+    while (log.length() < LOG_SIZE - message.length() - 1) {
+      log.append(line);
+    }
+    log.append(message).append('\n');
+
+    byte[] bytes = log.toString().getBytes(StandardCharsets.UTF_8);
+    frames = new ByteBuffer[(bytes.length + FRAME_SIZE - 1) / FRAME_SIZE];
+    for (int ii = 0; ii < frames.length; ii++) {
+      int offset = ii * FRAME_SIZE;
+      frames[ii] = ByteBuffer.wrap(bytes, offset, Math.min(FRAME_SIZE, bytes.length - offset)).slice();
+    }
+    patterns = Collections.singletonList("literal".equals(kind)
+      ? LogPattern.literal("Server startup complete", 1)
+      : LogPattern.regex("startup complete; \\d+ plugins", 1));
+  }
+
+  @Benchmark
+  public boolean match() {
+    LogMatcher matcher = new LogMatcher(patterns);
+    boolean found = false;
+    for (ByteBuffer frame : frames) {
+      found = matcher.feed(LogMessage.Stream.STDOUT, frame.duplicate());
+    }
+    if (!found) {
+      throw new IllegalStateException("The message was not found");
+    }
+    return found;
+  }
+}
@@ -0,0 +1,143 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.Event;
+import com.spotify.docker.client.messages.PortBinding;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Cost of finding the running container a useRunning rule attaches to, on a daemon running
+ * thousands of containers.
+ * </p>
+ * <p>
+ * "scan" lists every container, as when the events of the daemon can not be followed, and
+ * "indexed" looks the container up in the ContainerIndex. The container is the last one
+ * listed, and is looked up either by image for a random host port or by its fixed host port.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RunningContainerBenchmark {
+
+  @Param({"100", "1000", "5000"})
+  public int containers;
+
+  @Param({"8080", "8080:8080"})
+  public String port;
+
+  private DockerClient scanClient;
+  private DockerClient indexedClient;
+  private DockerRule scan;
+  private DockerRule indexed;
+  private Map<String, List<PortBinding>> bindings;
+
+  @Setup
+  public void setUp() throws Exception {
+    List<Container> running = StubDockerClient.containers(containers - 1, 50);
+    running.add(StubDockerClient.container("target", "bench/app:1", 8080));
+
+    scanClient = StubDockerClient.create(running, null);
+    // the stub has no events stream, the index is unavailable
+    ContainerIndex.forClient(scanClient);
+    scan = rule(scanClient);
+
+    indexedClient = StubDockerClient.create(running, null);
+    if (ContainerIndex.forClient(indexedClient, new DockerEventBus(new IdleSource())) == null) {
+      throw new IllegalStateException("The index could not be created");
+    }
+    indexed = rule(indexedClient);
+
+    bindings = DockerRule.generatePortBinding(port);
+    if (!"target".equals(scan.foundRunningContainer(bindings)) || !"target".equals(indexed.foundRunningContainer(bindings))) {
+      throw new IllegalStateException("The running container was not found");
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    ContainerIndex.discard(scanClient);
+    ContainerIndex.discard(indexedClient);
+  }
+
+  @Benchmark
+  public String scan() throws Exception {
+    return scan.foundRunningContainer(bindings);
+  }
+
+  @Benchmark
+  public String indexed() throws Exception {
+    return indexed.foundRunningContainer(bindings);
+  }
+
+  private static DockerRule rule(DockerClient client) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "bench/app:1";
+    params.useRunning = true;
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    return rule;
+  }
+
+  /**
+   * An events stream without events, open until it is closed.
+   */
+  private static class IdleSource implements DockerEventBus.Source {
+    @Override
+    public Iterator<Event> open(Long sinceSeconds) {
+      return new IdleStream();
+    }
+  }
+
+  private static class IdleStream implements Iterator<Event>, Closeable {
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    @Override
+    public boolean hasNext() {
+      try {
+        closed.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return false;
+    }
+
+    @Override
+    public Event next() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ObjectMapperProvider;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A DockerClient answering from memory, so that the benchmarks measure the rule and not the
+ * daemon nor a mocking library.
+ * </p>
+ * <p>
+ * listContainers returns the containers given to the stub, createContainer a fixed id and
+ * inspectContainer the given info. Every other call returns null, so there is no events
+ * stream and the rules fall back to listing the containers.
+ * </p>
+ */
+final class StubDockerClient {
+  static final String CONTAINER_ID = "0123456789ab";
+
+  private static final ObjectMapper MAPPER = new ObjectMapperProvider().getContext(null);
+
+  private StubDockerClient() {
+  }
+
+  static DockerClient create(final List<Container> containers, final ContainerInfo info) {
+    return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(),
+      new Class<?>[]{DockerClient.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          switch (method.getName()) {
+            case "listContainers":
+              return containers;
+            case "createContainer":
+              return new ContainerCreation(CONTAINER_ID);
+            case "inspectContainer":
+              return info;
+            case "getHost":
+              return "localhost";
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            case "toString":
+              return "StubDockerClient";
+            default:
+              return null;
+          }
+        }
+      });
+  }
+
+  /**
+   * @param id           the id of the container
+   * @param image        the image of the container
+   * @param privatePorts the ports of the container, published on the same port of the host
+   * @return a running container
+   */
+  static Container container(String id, String image, int... privatePorts) {
+    StringBuilder json = new StringBuilder("{\"Id\":\"").append(id)
+      .append("\",\"Image\":\"").append(image)
+      .append("\",\"State\":\"running\",\"Status\":\"Up 2 minutes\",\"Labels\":{\"owner\":\"bench\"},\"Ports\":[");
+    for (int ii = 0; ii < privatePorts.length; ii++) {
+      json.append(ii == 0 ? "" : ",")
+        .append("{\"PrivatePort\":").append(privatePorts[ii])
+        .append(",\"PublicPort\":").append(privatePorts[ii])
+        .append(",\"Type\":\"tcp\",\"IP\":\"0.0.0.0\"}");
+    }
+    json.append("]}");
+    return read(json.toString(), Container.class);
+  }
+
+  /**
+   * @param ports the private port and the host port of each binding
+   * @return the inspection of a container publishing the ports
+   */
+  static ContainerInfo info(int... ports) {
+    StringBuilder json = new StringBuilder("{\"Id\":\"").append(CONTAINER_ID)
+      .append("\",\"Name\":\"/bench\",\"NetworkSettings\":{\"Ports\":{");
+    for (int ii = 0; ii < ports.length; ii += 2) {
+      json.append(ii == 0 ? "" : ",")
+        .append('"').append(ports[ii]).append("/tcp\":[{\"HostIp\":\"0.0.0.0\",\"HostPort\":\"")
+        .append(ports[ii + 1]).append("\"}]");
+    }
+    json.append("}}}");
+    return read(json.toString(), ContainerInfo.class);
+  }
+
+  /**
+   * @param count  the number of containers
+   * @param images the number of distinct images
+   * @return running containers spread over the images, each publishing a distinct port
+   */
+  static List<Container> containers(int count, int images) {
+    List<Container> containers = new ArrayList<>(count);
+    for (int ii = 0; ii < count; ii++) {
+      containers.add(container(String.format("%012x", ii), "bench/image-" + (ii % images) + ":1", 10000 + ii));
+    }
+    return containers;
+  }
+
+  private static <T> T read(String json, Class<T> type) {
+    try {
+      return MAPPER.readValue(json, type);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+package com.github.klousiaj.junit;
+
+import org.junit.jupiter.api.extension.BeforeAllCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolutionException;
+import org.junit.jupiter.api.extension.ParameterResolver;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * <p>
+ * JUnit 5 extension starting the container of a DockerRule before the tests of a class, or
+ * once for the whole test run, and killing it afterwards.
+ * </p>
+ * <pre>
+ * {@code
+ * @RegisterExtension
+ * static DockerExtension redis = DockerExtension.of(DockerRule.builder()
+ *   .image("redis:3")
+ *   .ports("6379")
+ *   .waitForPort("6379/tcp"));
+ *
+ * @Test
+ * void connects(DockerRule redis) {
+ *   new Jedis(redis.getDockerHost(), redis.getHostPort("6379/tcp")).ping();
+ * }
+ * }
+ * </pre>
+ * <p>
+ * The extension itself holds no state: the started rule is kept in the store of the class,
+ * or of the engine, and handed to the test methods, constructors and lifecycle methods taking a
+ * DockerRule parameter. With several extensions, the parameters name the image of their
+ * container with {@link Image}. The classes and methods may run concurrently, a container is
+ * started once per scope and the others wait for it.
+ * </p>
+ */
+public final class DockerExtension implements BeforeAllCallback, BeforeEachCallback, ParameterResolver {
+  private static final ExtensionContext.Namespace NAMESPACE = ExtensionContext.Namespace.create(DockerExtension.class);
+
+  /**
+   * The image of the container to inject, when a class registers several extensions.
+   */
+  @Target(ElementType.PARAMETER)
+  @Retention(RetentionPolicy.RUNTIME)
+  public @interface Image {
+    String value();
+  }
+
+  private final String key;
+  private final String image;
+  private final Supplier<DockerRule> rules;
+  private final boolean perEngine;
+
+  DockerExtension(String key, String image, Supplier<DockerRule> rules, boolean perEngine) {
+    this.key = key;
+    this.image = image;
+    this.rules = rules;
+    this.perEngine = perEngine;
+  }
+
+  /**
+   * @param builder the configuration of the container
+   * @return an extension starting a container for each test class
+   */
+  public static DockerExtension of(DockerRuleBuilder builder) {
+    return new DockerExtension(builder.params.configKey(), builder.params.imageName, builder::build, false);
+  }
+
+  /**
+   * @return an extension starting a single container for the whole test run, shared by the
+   * test classes registering the same configuration
+   */
+  public DockerExtension perEngine() {
+    return new DockerExtension(key, image, rules, true);
+  }
+
+  @Override
+  public void beforeAll(ExtensionContext context) throws Exception {
+    started(context);
+  }
+
+  @Override
+  public void beforeEach(ExtensionContext context) throws Exception {
+    // registered on an instance field, the extension only sees the tests
+    started(context);
+  }
+
+  @Override
+  public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+    if (parameterContext.getParameter().getType() != DockerRule.class) {
+      return false;
+    }
+    Optional<Image> named = parameterContext.findAnnotation(Image.class);
+    return !named.isPresent() || named.get().value().equals(image);
+  }
+
+  @Override
+  public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+    try {
+      return started(extensionContext);
+    } catch (Exception e) {
+      throw new ParameterResolutionException("Unable to start the container of " + image, e);
+    }
+  }
+
+  private DockerRule started(ExtensionContext context) throws Exception {
+    ExtensionContext scope = perEngine ? context.getRoot() : classContext(context);
+    return scope.getStore(NAMESPACE)
+      .getOrComputeIfAbsent(key, k -> new Container(rules.get()), Container.class)
+      .start();
+  }
+
+  private static ExtensionContext classContext(ExtensionContext context) {
+    ExtensionContext scope = context;
+    while (scope.getTestMethod().isPresent() && scope.getParent().isPresent()) {
+      scope = scope.getParent().get();
+    }
+    return scope;
+  }
+
+  /**
+   * The container of a scope, stopped when the scope ends.
+   */
+  private static class Container implements ExtensionContext.Store.CloseableResource {
+    private final DockerRule rule;
+    private boolean started;
+    private Throwable failure;
+
+    Container(DockerRule rule) {
+      this.rule = rule;
+    }
+
+    /**
+     * Start the container once, the other callers wait for it.
+     *
+     * @return the started rule
+     * @throws Exception the failure of the start, to every caller
+     */
+    synchronized DockerRule start() throws Exception {
+      if (!started && failure == null) {
+        try {
+          rule.start();
+          started = true;
+        } catch (Throwable t) {
+          failure = t;
+        }
+      }
+      if (failure instanceof Exception) {
+        throw (Exception) failure;
+      } else if (failure instanceof Error) {
+        throw (Error) failure;
+      } else if (failure != null) {
+        throw new IllegalStateException(failure);
+      }
+      return rule;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (started) {
+        started = false;
+        rule.stop();
+      }
+    }
+  }
+}
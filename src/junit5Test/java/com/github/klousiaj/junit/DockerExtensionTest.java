@@ -0,0 +1,156 @@
+package com.github.klousiaj.junit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.platform.engine.DiscoverySelector;
+import org.junit.platform.launcher.Launcher;
+import org.junit.platform.launcher.LauncherDiscoveryRequest;
+import org.junit.platform.launcher.core.LauncherFactory;
+import org.junit.platform.launcher.listeners.SummaryGeneratingListener;
+import org.junit.platform.launcher.listeners.TestExecutionSummary;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.platform.engine.discovery.DiscoverySelectors.selectClass;
+import static org.junit.platform.launcher.core.LauncherDiscoveryRequestBuilder.request;
+
+/**
+ * Runs example classes on the Jupiter engine, concurrently, against the fake docker daemon.
+ */
+public class DockerExtensionTest {
+
+  static FakeDockerDaemon daemon;
+  static final Set<String> containers = ConcurrentHashMap.newKeySet();
+
+  @Before
+  public void setUp() throws Exception {
+    daemon = FakeDockerDaemon.start();
+    daemon.image("redis:3");
+    daemon.image("postgres:9.6");
+    daemon.image("mongo:3.2");
+    daemon.latency(FakeDockerDaemon.Operation.START, 100);
+    containers.clear();
+  }
+
+  @After
+  public void tearDown() {
+    daemon.close();
+  }
+
+  @Test
+  public void concurrentClassesAndMethods() {
+    TestExecutionSummary summary = run(FirstExample.class, SecondExample.class);
+
+    Assert.assertEquals(failures(summary), 8, summary.getTestsSucceededCount());
+    Assert.assertEquals(failures(summary), 0, summary.getTestsFailedCount());
+    // a redis per class, a postgres for the whole run
+    Assert.assertEquals(3, daemon.count(FakeDockerDaemon.Operation.CREATE));
+    Assert.assertEquals(3, containers.size());
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  @Test
+  public void failedStart() {
+    daemon.failNext(FakeDockerDaemon.Operation.CREATE, 500, "no space left on device");
+    TestExecutionSummary summary = run(FailingExample.class);
+
+    // the class fails once, its tests are not run
+    Assert.assertEquals(1, summary.getContainersFailedCount());
+    Assert.assertEquals(0, summary.getTestsStartedCount());
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  private static TestExecutionSummary run(Class<?>... classes) {
+    LauncherDiscoveryRequest request = request()
+      .selectors(selectors(classes))
+      .configurationParameter("junit.jupiter.execution.parallel.enabled", "true")
+      .configurationParameter("junit.jupiter.execution.parallel.mode.default", "concurrent")
+      .configurationParameter("junit.jupiter.execution.parallel.config.strategy", "fixed")
+      .configurationParameter("junit.jupiter.execution.parallel.config.fixed.parallelism", "4")
+      .build();
+    Launcher launcher = LauncherFactory.create();
+    SummaryGeneratingListener listener = new SummaryGeneratingListener();
+    launcher.execute(request, listener);
+    return listener.getSummary();
+  }
+
+  private static List<DiscoverySelector> selectors(Class<?>... classes) {
+    List<DiscoverySelector> selectors = new ArrayList<>();
+    for (Class<?> testClass : classes) {
+      selectors.add(selectClass(testClass));
+    }
+    return selectors;
+  }
+
+  private static String failures(TestExecutionSummary summary) {
+    StringWriter out = new StringWriter();
+    summary.printFailuresTo(new PrintWriter(out));
+    return out.toString();
+  }
+
+  static DockerExtension extension(String image, String port) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = image;
+    params.ports = new String[]{port};
+    params.startupTimeout = 10000;
+    return new DockerExtension(params.configKey(), image, () -> {
+      DockerRule rule = new DockerRule(daemon.client());
+      rule.params = params;
+      return rule;
+    }, false);
+  }
+
+  static void check(DockerRule rule, String port) {
+    Assert.assertTrue(rule.getHostPort(port) > 0);
+    containers.add(rule.getContainer().id());
+  }
+
+  static class FirstExample {
+    @RegisterExtension
+    static DockerExtension redis = extension("redis:3", "6379");
+    @RegisterExtension
+    static DockerExtension postgres = extension("postgres:9.6", "5432").perEngine();
+
+    @org.junit.jupiter.api.Test
+    void first(@DockerExtension.Image("redis:3") DockerRule redis) {
+      check(redis, "6379/tcp");
+    }
+
+    @org.junit.jupiter.api.Test
+    void second(@DockerExtension.Image("postgres:9.6") DockerRule postgres) {
+      check(postgres, "5432/tcp");
+    }
+  }
+
+  static class SecondExample {
+    @RegisterExtension
+    static DockerExtension redis = extension("redis:3", "6379");
+    @RegisterExtension
+    static DockerExtension postgres = extension("postgres:9.6", "5432").perEngine();
+
+    @org.junit.jupiter.api.RepeatedTest(6)
+    void repeated(@DockerExtension.Image("redis:3") DockerRule redis,
+                  @DockerExtension.Image("postgres:9.6") DockerRule postgres) {
+      check(redis, "6379/tcp");
+      check(postgres, "5432/tcp");
+    }
+  }
+
+  static class FailingExample {
+    @RegisterExtension
+    static DockerExtension mongo = extension("mongo:3.2", "27017");
+
+    @org.junit.jupiter.api.Test
+    void notRun(DockerRule rule) {
+      Assert.fail("The container did not start");
+    }
+  }
+}
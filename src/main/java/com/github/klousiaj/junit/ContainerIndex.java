@@ -0,0 +1,401 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.Container;
+import com.spotify.docker.client.messages.Event;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Local index of the running containers of a docker daemon, by image, label and published port.
+ * </p>
+ * <p>
+ * The index subscribes to the events of the daemon, then lists the running containers once.
+ * A container is looked up again when it starts, is paused or unpaused, and dropped when it
+ * dies or is destroyed. These updates are applied in the order of the events, on a single
+ * thread, so that a slow lookup can not overwrite a later removal.
+ * </p>
+ * <p>
+ * When the events of the daemon can not be followed, there is no index and the callers list
+ * the containers themselves.
+ * </p>
+ */
+class ContainerIndex {
+  private static final Log logger = LogFactory.getLog(ContainerIndex.class);
+
+  private static final Map<DockerClient, ContainerIndex> indexes = new IdentityHashMap<>();
+  private static final Set<DockerClient> unavailable = Collections.newSetFromMap(new IdentityHashMap<DockerClient, Boolean>());
+  private static final ExecutorService updates = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+    .setDaemon(true)
+    .setNameFormat("docker-junit-rule-index-%d")
+    .build());
+
+  private final DockerClient client;
+  private final Map<String, Entry> containers = new HashMap<>();
+  private final Map<String, Set<String>> idsByImage = new HashMap<>();
+  private final Map<String, Map<String, Set<String>>> idsByLabel = new HashMap<>();
+  private final Map<Integer, String> idByPublicPort = new HashMap<>();
+  private DockerEventBus.Subscription subscription;
+
+  /**
+   * A running container and its port mappings, private port to public ports.
+   */
+  static class Entry {
+    final Container container;
+    final Map<Integer, Set<Integer>> ports = new HashMap<>();
+
+    Entry(Container container) {
+      this.container = container;
+      if (container.ports() != null) {
+        for (Container.PortMapping mapping : container.ports()) {
+          Set<Integer> published = ports.get(mapping.getPrivatePort());
+          if (published == null) {
+            published = new HashSet<>();
+            ports.put(mapping.getPrivatePort(), published);
+          }
+          published.add(mapping.getPublicPort());
+        }
+      }
+    }
+
+    boolean isRunning() {
+      return "running".equals(container.state());
+    }
+
+    boolean isPaused() {
+      return "paused".equals(container.state());
+    }
+  }
+
+  ContainerIndex(DockerClient client) {
+    this.client = client;
+  }
+
+  /**
+   * @param client the docker client
+   * @return the index of the daemon of the client, or null when its events can not be followed
+   */
+  static ContainerIndex forClient(DockerClient client) throws InterruptedException {
+    return forClient(client, null);
+  }
+
+  /**
+   * @param client the docker client
+   * @param events the events of the daemon of the client, null for the shared bus of the client
+   * @return the index of the daemon of the client, or null when its events can not be followed
+   */
+  static ContainerIndex forClient(DockerClient client, DockerEventBus events) throws InterruptedException {
+    synchronized (indexes) {
+      ContainerIndex index = indexes.get(client);
+      if (index != null || unavailable.contains(client)) {
+        return index;
+      }
+      index = new ContainerIndex(client);
+      try {
+        index.subscribe(events != null ? events : DockerEventBus.forClient(client));
+        index.seed();
+      } catch (DockerException | RuntimeException e) {
+        logger.info("Unable to follow the containers of the docker daemon, they will be listed on each lookup", e);
+        index.close();
+        unavailable.add(client);
+        return null;
+      }
+      indexes.put(client, index);
+      return index;
+    }
+  }
+
+  /**
+   * @param client the docker client
+   * @return the index of the client if there is one already
+   */
+  static ContainerIndex existing(DockerClient client) {
+    synchronized (indexes) {
+      return indexes.get(client);
+    }
+  }
+
+  /**
+   * Forget the index of a client that is being closed.
+   *
+   * @param client the docker client
+   */
+  static void discard(DockerClient client) {
+    ContainerIndex index;
+    synchronized (indexes) {
+      index = indexes.remove(client);
+      unavailable.remove(client);
+    }
+    if (index != null) {
+      index.close();
+    }
+  }
+
+  void subscribe(DockerEventBus events) throws DockerException, InterruptedException {
+    subscription = events.subscribeAll(new DockerEventBus.Listener() {
+      @Override
+      public void onEvent(final Event event) {
+        final String status = event.status();
+        if ("start".equals(status) || "pause".equals(status) || "unpause".equals(status)) {
+          updates.execute(new Runnable() {
+            @Override
+            public void run() {
+              refresh(event.id());
+            }
+          });
+        } else if ("die".equals(status) || "destroy".equals(status)) {
+          updates.execute(new Runnable() {
+            @Override
+            public void run() {
+              remove(event.id());
+            }
+          });
+        }
+      }
+    });
+  }
+
+  /**
+   * List the running containers, in line with the updates from the events.
+   */
+  void seed() throws DockerException, InterruptedException {
+    Future<List<Container>> seeded = updates.submit(new Callable<List<Container>>() {
+      @Override
+      public List<Container> call() throws Exception {
+        List<Container> running = client.listContainers();
+        if (running != null) {
+          for (Container container : running) {
+            put(container);
+          }
+        }
+        return running;
+      }
+    });
+    try {
+      seeded.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), DockerException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Look a container up again and wait until the index is updated, for the containers that
+   * the rules start themselves and query right away.
+   *
+   * @param containerId the id of the container
+   */
+  void track(final String containerId) throws InterruptedException {
+    awaitUpdate(new Runnable() {
+      @Override
+      public void run() {
+        refresh(containerId);
+      }
+    });
+  }
+
+  /**
+   * Drop a container and wait until the index is updated.
+   *
+   * @param containerId the id of the container
+   */
+  void untrack(final String containerId) throws InterruptedException {
+    awaitUpdate(new Runnable() {
+      @Override
+      public void run() {
+        remove(containerId);
+      }
+    });
+  }
+
+  private static void awaitUpdate(Runnable update) throws InterruptedException {
+    try {
+      updates.submit(update).get();
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Look a container up again.
+   *
+   * @param containerId the id of the container
+   */
+  void refresh(String containerId) {
+    try {
+      List<Container> found = client.listContainers(DockerClient.ListContainersParam.filter("id", containerId));
+      Container container = null;
+      if (found != null) {
+        for (Container candidate : found) {
+          if (containerId.equals(candidate.id())) {
+            container = candidate;
+          }
+        }
+      }
+      if (container == null) {
+        remove(containerId);
+      } else {
+        put(container);
+      }
+    } catch (DockerException e) {
+      logger.warn("Unable to look up container " + containerId, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  synchronized void put(Container container) {
+    if (container.id() == null) {
+      return;
+    }
+    remove(container.id());
+    Entry entry = new Entry(container);
+    containers.put(container.id(), entry);
+    add(idsByImage, container.image(), container.id());
+    if (container.labels() != null) {
+      for (Map.Entry<String, String> label : container.labels().entrySet()) {
+        Map<String, Set<String>> values = idsByLabel.get(label.getKey());
+        if (values == null) {
+          values = new HashMap<>();
+          idsByLabel.put(label.getKey(), values);
+        }
+        add(values, label.getValue(), container.id());
+      }
+    }
+    for (Set<Integer> published : entry.ports.values()) {
+      for (Integer port : published) {
+        if (port != null && port > 0) {
+          idByPublicPort.put(port, container.id());
+        }
+      }
+    }
+  }
+
+  synchronized void remove(String containerId) {
+    Entry entry = containers.remove(containerId);
+    if (entry == null) {
+      return;
+    }
+    Container container = entry.container;
+    removeFrom(idsByImage, container.image(), containerId);
+    if (container.labels() != null) {
+      for (Map.Entry<String, String> label : container.labels().entrySet()) {
+        Map<String, Set<String>> values = idsByLabel.get(label.getKey());
+        if (values != null) {
+          removeFrom(values, label.getValue(), containerId);
+          if (values.isEmpty()) {
+            idsByLabel.remove(label.getKey());
+          }
+        }
+      }
+    }
+    for (Set<Integer> published : entry.ports.values()) {
+      for (Integer port : published) {
+        if (port != null && containerId.equals(idByPublicPort.get(port))) {
+          idByPublicPort.remove(port);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param image the image of the containers
+   * @return the running containers of the image
+   */
+  synchronized List<Entry> byImage(String image) {
+    return entries(idsByImage.get(image));
+  }
+
+  /**
+   * @param labelKey   the key of the label
+   * @param labelValue the value of the label, null for any value
+   * @return the running containers with the label
+   */
+  synchronized List<Container> byLabel(String labelKey, String labelValue) {
+    Map<String, Set<String>> values = idsByLabel.get(labelKey);
+    List<Container> found = new ArrayList<>();
+    if (values == null) {
+      return found;
+    }
+    if (labelValue != null) {
+      for (Entry entry : entries(values.get(labelValue))) {
+        found.add(entry.container);
+      }
+    } else {
+      for (Set<String> ids : values.values()) {
+        for (Entry entry : entries(ids)) {
+          found.add(entry.container);
+        }
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @param port a port of the host
+   * @return the running container publishing the port, or null
+   */
+  synchronized Entry byPublicPort(int port) {
+    String id = idByPublicPort.get(port);
+    return id == null ? null : containers.get(id);
+  }
+
+  synchronized int size() {
+    return containers.size();
+  }
+
+  private List<Entry> entries(Set<String> ids) {
+    List<Entry> entries = new ArrayList<>();
+    if (ids != null) {
+      for (String id : ids) {
+        entries.add(containers.get(id));
+      }
+    }
+    return entries;
+  }
+
+  private void close() {
+    if (subscription != null) {
+      subscription.cancel();
+      subscription = null;
+    }
+  }
+
+  private static void add(Map<String, Set<String>> index, String key, String id) {
+    Set<String> ids = index.get(key);
+    if (ids == null) {
+      ids = new HashSet<>();
+      index.put(key, ids);
+    }
+    ids.add(id);
+  }
+
+  private static void removeFrom(Map<String, Set<String>> index, String key, String id) {
+    Set<String> ids = index.get(key);
+    if (ids != null) {
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+}
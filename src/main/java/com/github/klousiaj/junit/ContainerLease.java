@@ -0,0 +1,227 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ * Leases the containers shared across JVMs to the test JVMs of a host.
+ * </p>
+ * <p>
+ * The lease of a container configuration is a file of the docker.junit.rule.leases directory,
+ * the temporary directory by default, holding the id of the container and the sessions of the
+ * JVMs using it. The file is locked while a JVM acquires or releases the container: the first
+ * JVM starts the container with the lock held, so that the others wait for it instead of
+ * starting their own, and the last JVM to release it removes it. The sessions of the JVMs
+ * that died are dropped whenever the file is used.
+ * </p>
+ * <p>
+ * The containers are labelled with their lease, so that the orphan reaper keeps them while a
+ * JVM still holds them, whichever JVM created them.
+ * </p>
+ */
+class ContainerLease {
+  private static final Log logger = LogFactory.getLog(ContainerLease.class);
+
+  static final String LEASE_LABEL = "com.github.klousiaj.lease";
+  static final String DIRECTORY_PROPERTY = "docker.junit.rule.leases";
+
+  // a file lock is held by the JVM, not by a thread: the threads of the JVM take turns first
+  private static final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+
+  private String containerId;
+  private final Set<String> holders = new LinkedHashSet<>();
+
+  /**
+   * @param rule a rule shared across JVMs
+   * @return the name of the lease of its container, the same for every JVM using the daemon
+   */
+  static String name(DockerRule rule) {
+    return Hashing.sha256()
+      .hashString(rule.getDockerHost() + "|" + rule.params.configKey(), StandardCharsets.UTF_8)
+      .toString().substring(0, 16);
+  }
+
+  /**
+   * Use the container leased by the other JVMs when it is running, or start it.
+   *
+   * @param rule the rule requesting the container
+   * @throws Throwable if the container could not be started
+   */
+  static void acquire(DockerRule rule) throws Throwable {
+    String name = name(rule);
+    ReentrantLock lock = lock(name);
+    lock.lock();
+    try (FileChannel channel = open(name)) {
+      FileLock fileLock = channel.lock();
+      try {
+        ContainerLease lease = read(channel);
+        if (lease.containerId != null && rule.attachLeased(lease.containerId)) {
+          logger.info("Using the container " + lease.containerId + " leased to " + lease.holders.size() + " other JVMs");
+        } else {
+          rule.startContainer();
+          lease.containerId = rule.getContainer().id();
+          // the holders of a container that is gone no longer hold anything
+          lease.holders.clear();
+        }
+        lease.holders.add(OrphanReaper.SESSION);
+        lease.write(channel);
+      } finally {
+        fileLock.release();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give up the container of the rule, removing it when no other JVM holds it.
+   *
+   * @param rule the rule that acquired the container
+   */
+  static void release(DockerRule rule) {
+    if (rule.getContainer() == null) {
+      rule.releaseClient();
+      return;
+    }
+    String name = name(rule);
+    ReentrantLock lock = lock(name);
+    lock.lock();
+    try (FileChannel channel = open(name)) {
+      FileLock fileLock = channel.lock();
+      try {
+        ContainerLease lease = read(channel);
+        lease.holders.remove(OrphanReaper.SESSION);
+        if (lease.holders.isEmpty() && rule.getContainer().id().equals(lease.containerId)) {
+          lease.containerId = null;
+          lease.write(channel);
+          rule.destroy();
+          return;
+        }
+        lease.write(channel);
+        logger.debug("Leaving the container " + rule.getContainer().id() + " to " + lease.holders.size() + " other JVMs");
+      } finally {
+        fileLock.release();
+      }
+    } catch (IOException e) {
+      logger.error("Unable to release the lease of container " + rule.getContainer().id(), e);
+    } finally {
+      lock.unlock();
+    }
+    rule.releaseClient();
+  }
+
+  /**
+   * @param name the name of a lease
+   * @return true when a living JVM holds the lease, or when it can not be told
+   */
+  static boolean isHeld(String name) {
+    ReentrantLock lock = lock(name);
+    if (!lock.tryLock()) {
+      // the lease is being acquired or released by this JVM
+      return true;
+    }
+    try {
+      Path file = directory().resolve(name + ".lease");
+      if (!Files.exists(file)) {
+        return false;
+      }
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        FileLock fileLock = channel.tryLock();
+        if (fileLock == null) {
+          return true;
+        }
+        try {
+          return !read(channel).holders.isEmpty();
+        } finally {
+          fileLock.release();
+        }
+      }
+    } catch (IOException e) {
+      logger.debug("Unable to read the lease " + name, e);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private static ReentrantLock lock(String name) {
+    ReentrantLock lock = locks.get(name);
+    if (lock == null) {
+      ReentrantLock created = new ReentrantLock();
+      lock = locks.putIfAbsent(name, created);
+      if (lock == null) {
+        lock = created;
+      }
+    }
+    return lock;
+  }
+
+  static Path directory() {
+    String directory = System.getProperty(DIRECTORY_PROPERTY);
+    if (directory == null || directory.trim().isEmpty()) {
+      return Paths.get(System.getProperty("java.io.tmpdir"), "docker-junit-rule-leases");
+    }
+    return Paths.get(directory);
+  }
+
+  private static FileChannel open(String name) throws IOException {
+    Path directory = directory();
+    Files.createDirectories(directory);
+    return FileChannel.open(directory.resolve(name + ".lease"),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * @return the lease, without the sessions of the JVMs that died
+   */
+  private static ContainerLease read(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+    channel.read(buffer, 0);
+    ContainerLease lease = new ContainerLease();
+    for (String line : new String(buffer.array(), StandardCharsets.UTF_8).split("\n")) {
+      if (line.startsWith("container=")) {
+        lease.containerId = line.substring("container=".length());
+      } else if (line.startsWith("holder=")) {
+        lease.holders.add(line.substring("holder=".length()));
+      }
+    }
+    for (Iterator<String> holders = lease.holders.iterator(); holders.hasNext(); ) {
+      String holder = holders.next();
+      if (OrphanReaper.isDead(holder)) {
+        logger.info("Dropping the lease of " + holder + ", it is no longer running");
+        holders.remove();
+      }
+    }
+    return lease;
+  }
+
+  private void write(FileChannel channel) throws IOException {
+    StringBuilder content = new StringBuilder();
+    if (containerId != null) {
+      content.append("container=").append(containerId).append('\n');
+      for (String holder : holders) {
+        content.append("holder=").append(holder).append('\n');
+      }
+    }
+    channel.truncate(0);
+    channel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.UTF_8)), 0);
+  }
+}
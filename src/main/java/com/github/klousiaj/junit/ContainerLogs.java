@@ -0,0 +1,309 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogMessage;
+import com.spotify.docker.client.LogReader;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.exceptions.ContainerNotFoundException;
+import com.spotify.docker.client.exceptions.DockerException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.protocol.HttpContext;
+import org.glassfish.jersey.apache.connector.ApacheClientProperties;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * The log of a container, that can be closed from another thread while it is followed.
+ * </p>
+ * <p>
+ * Closing a LogStream of docker-client reads the stream to its end, which for a followed log
+ * only comes once the container stops. With a DefaultDockerClient, the log is therefore
+ * requested through a client sharing the connections of the docker client, which keeps track
+ * of the connection of each log: closing the log shuts its connection down. Other clients use
+ * their LogStream.
+ * </p>
+ */
+class ContainerLogs implements Iterator<LogMessage>, Closeable {
+  private static final Log logger = LogFactory.getLog(ContainerLogs.class);
+
+  private static final Map<DockerClient, Follower> followers = new IdentityHashMap<>();
+
+  private final LogStream stream;
+  private final Response response;
+  private final LogReader reader;
+  private final Lease lease;
+  private LogMessage next;
+  private volatile boolean closed;
+
+  private ContainerLogs(LogStream stream, Response response, LogReader reader, Lease lease) {
+    this.stream = stream;
+    this.response = response;
+    this.reader = reader;
+    this.lease = lease;
+  }
+
+  /**
+   * @param client      the client of the rule, used when the log can not be requested directly
+   * @param pooled      the client from the pool, a DefaultDockerClient outside of the tests
+   * @param containerId the container
+   * @param params      the parameters of the logs request
+   * @return the log of the container
+   */
+  static ContainerLogs open(DockerClient client, DockerClient pooled, String containerId, DockerClient.LogsParam... params)
+    throws DockerException, InterruptedException {
+    Follower follower = follower(pooled);
+    if (follower == null) {
+      return new ContainerLogs(client.logs(containerId, params), null, null, null);
+    }
+    return follower.follow(containerId, params);
+  }
+
+  private static Follower follower(DockerClient client) {
+    synchronized (followers) {
+      Follower follower = followers.get(client);
+      if (follower != null) {
+        return follower;
+      }
+      WebTarget resource = RawDockerApi.resource(client);
+      Object manager = resource == null ? null
+        : resource.getConfiguration().getProperty(ApacheClientProperties.CONNECTION_MANAGER);
+      if (!(manager instanceof HttpClientConnectionManager)) {
+        if (resource != null) {
+          RawDockerApi.unsupported(null);
+        }
+        return null;
+      }
+      follower = new Follower(resource, (HttpClientConnectionManager) manager);
+      followers.put(client, follower);
+      return follower;
+    }
+  }
+
+  /**
+   * Forget the log client of a docker client that is being closed.
+   *
+   * @param client the docker client
+   */
+  static void discard(DockerClient client) {
+    Follower follower;
+    synchronized (followers) {
+      follower = followers.remove(client);
+    }
+    if (follower != null) {
+      follower.client.close();
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (next != null) {
+      return true;
+    }
+    if (stream != null) {
+      return stream.hasNext();
+    }
+    if (closed) {
+      return false;
+    }
+    try {
+      next = reader.nextMessage();
+    } catch (IOException | ProcessingException e) {
+      if (closed) {
+        return false;
+      }
+      throw new RuntimeException(e);
+    }
+    return next != null;
+  }
+
+  @Override
+  public LogMessage next() {
+    if (stream != null) {
+      return stream.next();
+    }
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    LogMessage message = next;
+    next = null;
+    return message;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      if (stream != null) {
+        stream.close();
+        return;
+      }
+      if (lease != null) {
+        // the reader fails instead of blocking, and the response is not read to its end
+        lease.abort();
+      }
+      response.close();
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to close the log of the container", e);
+    }
+  }
+
+  /**
+   * The connection of a log request, until it is given back to the pool.
+   */
+  private static class Lease {
+    private final HttpClientConnection connection;
+    private boolean released;
+
+    Lease(HttpClientConnection connection) {
+      this.connection = connection;
+    }
+
+    synchronized void release() {
+      released = true;
+    }
+
+    synchronized void abort() throws IOException {
+      if (!released) {
+        connection.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Requests the logs through the connections of a docker client, recording the connection of
+   * each request.
+   */
+  private static class Follower implements HttpClientConnectionManager {
+    private final HttpClientConnectionManager manager;
+    private final URI uri;
+    private final Client client;
+    private final ThreadLocal<Lease> leased = new ThreadLocal<>();
+    private final Map<HttpClientConnection, Lease> leases =
+      Collections.synchronizedMap(new IdentityHashMap<HttpClientConnection, Lease>());
+
+    Follower(WebTarget resource, HttpClientConnectionManager manager) {
+      this.manager = manager;
+      this.uri = resource.getUri();
+      this.client = ClientBuilder.newClient(resource.getConfiguration())
+        .property(ApacheClientProperties.CONNECTION_MANAGER, this)
+        .property(ApacheClientProperties.CONNECTION_MANAGER_SHARED, true);
+    }
+
+    ContainerLogs follow(String containerId, DockerClient.LogsParam... params) throws DockerException {
+      WebTarget target = client.target(uri).path("containers").path(containerId).path("logs");
+      for (DockerClient.LogsParam param : params) {
+        target = target.queryParam(param.name(), param.value());
+      }
+      Response response;
+      Lease lease;
+      try {
+        response = target.request("application/vnd.docker.raw-stream").get();
+      } catch (ProcessingException e) {
+        throw new DockerException("Unable to read the logs of container " + containerId, e);
+      } finally {
+        // the request is sent on this thread
+        lease = leased.get();
+        leased.remove();
+      }
+      if (response.getStatus() == 404) {
+        response.close();
+        throw new ContainerNotFoundException(containerId);
+      }
+      if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+        String message = response.readEntity(String.class);
+        response.close();
+        throw new DockerException("Unable to read the logs of container " + containerId + ": "
+          + response.getStatus() + " " + message);
+      }
+      return new ContainerLogs(null, response, new LogReader(response.readEntity(InputStream.class)), lease);
+    }
+
+    @Override
+    public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+      final ConnectionRequest request = manager.requestConnection(route, state);
+      return new ConnectionRequest() {
+        @Override
+        public HttpClientConnection get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+          HttpClientConnection connection = request.get(timeout, unit);
+          Lease lease = new Lease(connection);
+          leases.put(connection, lease);
+          leased.set(lease);
+          return connection;
+        }
+
+        @Override
+        public boolean cancel() {
+          return request.cancel();
+        }
+      };
+    }
+
+    @Override
+    public void releaseConnection(HttpClientConnection connection, Object state, long validDuration, TimeUnit unit) {
+      Lease lease = leases.remove(connection);
+      if (lease != null) {
+        lease.release();
+      }
+      manager.releaseConnection(connection, state, validDuration, unit);
+    }
+
+    @Override
+    public void connect(HttpClientConnection connection, HttpRoute route, int connectTimeout, HttpContext context)
+      throws IOException {
+      manager.connect(connection, route, connectTimeout, context);
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection connection, HttpRoute route, HttpContext context) throws IOException {
+      manager.upgrade(connection, route, context);
+    }
+
+    @Override
+    public void routeComplete(HttpClientConnection connection, HttpRoute route, HttpContext context) throws IOException {
+      manager.routeComplete(connection, route, context);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit unit) {
+      manager.closeIdleConnections(idleTime, unit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+      manager.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+      // the connections belong to the docker client
+    }
+  }
+}
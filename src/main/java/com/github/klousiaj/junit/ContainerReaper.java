@@ -0,0 +1,106 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Kills and removes the containers of the rules in the background, so that the tests do not
+ * wait for their teardown.
+ * </p>
+ * <p>
+ * The containers are removed by a few threads in parallel. When the queue is full, the rule
+ * removes its container itself. A shutdown hook waits for the queued containers to be removed
+ * before the JVM exits.
+ * </p>
+ */
+class ContainerReaper {
+  private static final Log logger = LogFactory.getLog(ContainerReaper.class);
+
+  static final int DEFAULT_PARALLELISM = 4;
+  static final int DEFAULT_CAPACITY = 64;
+  static final long DRAIN_TIMEOUT = 2 * 60 * 1000;
+
+  private static final ContainerReaper INSTANCE = new ContainerReaper(DEFAULT_PARALLELISM, DEFAULT_CAPACITY);
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread("docker-junit-rule-reaper-shutdown") {
+      @Override
+      public void run() {
+        INSTANCE.drain(DRAIN_TIMEOUT);
+      }
+    });
+  }
+
+  private final ThreadPoolExecutor executor;
+
+  ContainerReaper(int parallelism, int capacity) {
+    executor = new ThreadPoolExecutor(parallelism, parallelism, 30, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(capacity),
+      new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("docker-junit-rule-reaper-%d")
+        .build(),
+      new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+          // the queue is full or the JVM is exiting
+          task.run();
+        }
+      });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  static ContainerReaper getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Kill and remove the container of the rule, and release its client, in the background.
+   *
+   * @param rule the rule to tear down
+   */
+  void reap(final DockerRule rule) {
+    // the rule may start another container before this one is removed
+    final String containerId = rule.getContainer() == null ? null : rule.getContainer().id();
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rule.destroy(containerId);
+        } catch (RuntimeException e) {
+          logger.error("Unable to tear down the container of " + rule.params.imageName, e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait for the queued containers to be removed. The following ones are removed by their rule.
+   *
+   * @param timeoutMillis the maximum time to wait
+   * @return true when every container was removed in time
+   */
+  boolean drain(long timeoutMillis) {
+    executor.shutdown();
+    try {
+      if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    logger.warn(executor.getQueue().size() + executor.getActiveCount() + " containers were not removed before the JVM exit");
+    return false;
+  }
+
+  int pending() {
+    return executor.getQueue().size() + executor.getActiveCount();
+  }
+}
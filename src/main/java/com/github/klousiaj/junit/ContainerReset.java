@@ -0,0 +1,17 @@
+package com.github.klousiaj.junit;
+
+/**
+ * Brings a running container back to the state the tests expect, for example by dropping the
+ * data of the previous test, so that the tests can share it without restarting it.
+ *
+ * @see DockerRuleBuilder#resetWith(ContainerReset)
+ * @see DockerRule#reset()
+ */
+public interface ContainerReset {
+
+  /**
+   * @param rule the rule of the running container, to look up its host and ports
+   * @throws Exception when the container could not be reset. The reset of the rule fails
+   */
+  void reset(DockerRule rule) throws Exception;
+}
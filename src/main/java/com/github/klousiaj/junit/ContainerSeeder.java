@@ -0,0 +1,15 @@
+package com.github.klousiaj.junit;
+
+/**
+ * Loads the data that the tests expect into a container once it is ready.
+ *
+ * @see DockerRuleBuilder#warmSnapshot(String, ContainerSeeder)
+ */
+public interface ContainerSeeder {
+
+  /**
+   * @param rule the rule of the started container, to look up its host and ports
+   * @throws Exception when the container could not be seeded. The start of the rule fails
+   */
+  void seed(DockerRule rule) throws Exception;
+}
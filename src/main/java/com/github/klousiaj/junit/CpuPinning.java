@@ -0,0 +1,85 @@
+package com.github.klousiaj.junit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * <p>
+ * Gives the containers of each test JVM their own CPUs of the docker host, so that the forks
+ * running in parallel do not compete for them.
+ * </p>
+ * <p>
+ * The number of forks running at the same time is read from docker.junit.rule.forks, and
+ * defaults to 1: the CPUs are not restricted. The number of the fork is read from the
+ * docker.junit.rule.fork system property, which surefire sets with
+ * {@code -Ddocker.junit.rule.fork=${surefire.forkNumber}}. Without it, each JVM takes the
+ * first number that no other running JVM of the host holds (see ForkSlot). The ids of the
+ * Gradle test workers keep increasing and are not fork numbers.
+ * </p>
+ */
+class CpuPinning {
+  private static final Log logger = LogFactory.getLog(CpuPinning.class);
+
+  static final String FORK_PROPERTY = "docker.junit.rule.fork";
+  static final String FORKS_PROPERTY = "docker.junit.rule.forks";
+
+  private CpuPinning() {
+  }
+
+  /**
+   * @param forks the number of forks, null to read it from the system properties
+   * @return the number of forks running at the same time
+   */
+  static int forks(Integer forks) {
+    return forks != null ? forks : property(FORKS_PROPERTY, 1);
+  }
+
+  /**
+   * @param hostCpus the number of CPUs of the docker host
+   * @param forks    the number of forks, null to read it from the system properties
+   * @return the CPUs of this JVM, in the cpuset format of docker, null when they are not restricted
+   */
+  static String cpuSet(int hostCpus, Integer forks) {
+    int slots = forks(forks);
+    if (slots <= 1 || hostCpus <= 1) {
+      return null;
+    }
+    int fork = property(FORK_PROPERTY, 0);
+    if (fork < 1) {
+      fork = ForkSlot.getInstance().claim(slots);
+      if (fork < 1) {
+        logger.warn("More than " + slots + " test JVMs pin their CPUs, the containers of this one run on every CPU");
+        return null;
+      }
+    }
+    return cpuSet(hostCpus, fork, slots);
+  }
+
+  /**
+   * The forks share the CPUs evenly, a fork past the number of CPUs wraps around.
+   *
+   * @param hostCpus the number of CPUs of the docker host
+   * @param fork     the number of the fork, from 1
+   * @param forks    the number of forks running at the same time
+   * @return the CPUs of the fork, in the cpuset format of docker
+   */
+  static String cpuSet(int hostCpus, int fork, int forks) {
+    int slots = Math.max(1, Math.min(forks, hostCpus));
+    int perFork = Math.max(1, hostCpus / slots);
+    int first = (((fork - 1) % slots + slots) % slots) * perFork;
+    return perFork == 1 ? String.valueOf(first) : first + "-" + (first + perFork - 1);
+  }
+
+  private static int property(String name, int defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring " + name + "=" + value + ", it is not a number");
+      return defaultValue;
+    }
+  }
+}
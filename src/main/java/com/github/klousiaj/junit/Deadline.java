@@ -0,0 +1,73 @@
+package com.github.klousiaj.junit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A point in time measured with the monotonic System#nanoTime() clock, so that
+ * timeouts are not affected by wall clock adjustments or by time spent sleeping.
+ */
+final class Deadline {
+  private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+  private final long nanos;
+
+  private Deadline(long nanos) {
+    this.nanos = nanos;
+  }
+
+  /**
+   * @param timeoutInMillis the time from now. A value less than or equal to 0 has already expired
+   * @return the deadline
+   */
+  static Deadline after(long timeoutInMillis) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(timeoutInMillis, 0)));
+  }
+
+  /**
+   * @param timeoutInMillis the time from now. A value less than or equal to 0 means no deadline
+   * @return the deadline
+   */
+  static Deadline limit(long timeoutInMillis) {
+    return timeoutInMillis <= 0 ? NONE : after(timeoutInMillis);
+  }
+
+  static Deadline none() {
+    return NONE;
+  }
+
+  boolean isNone() {
+    return this == NONE;
+  }
+
+  boolean isExpired() {
+    return remainingNanos() <= 0;
+  }
+
+  long remainingNanos() {
+    if (isNone()) {
+      return Long.MAX_VALUE;
+    }
+    return nanos - System.nanoTime();
+  }
+
+  long remainingMillis() {
+    if (isNone()) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(Math.max(0, remainingNanos()));
+  }
+
+  /**
+   * @param other another deadline
+   * @return the deadline expiring first
+   */
+  Deadline earliest(Deadline other) {
+    if (other.isNone()) {
+      return this;
+    }
+    if (isNone()) {
+      return other;
+    }
+    return nanos - other.nanos <= 0 ? this : other;
+  }
+}
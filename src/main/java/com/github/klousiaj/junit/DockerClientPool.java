@@ -0,0 +1,174 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerCertificates;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerCertificateException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Process wide pool of docker clients.
+ * </p>
+ * <p>
+ * Every rule connecting to the same docker daemon with the same connection settings shares a
+ * single client, and with it the HTTP connection pool and the TLS sessions. Clients are
+ * reference counted: a client is only closed once no rule is using it and it has been idle
+ * for DEFAULT_IDLE_TIMEOUT milliseconds, so that test classes running one after the other
+ * keep using the same client.
+ * </p>
+ * <p>
+ * Clients that were not obtained from the pool are closed as soon as they are released.
+ * </p>
+ */
+class DockerClientPool {
+  private static final Log logger = LogFactory.getLog(DockerClientPool.class);
+  private static final String DOCKER_MACHINE_SERVICE_URL = "https://192.168.99.100:2376";
+
+  static final int DEFAULT_CONNECTION_POOL_SIZE = 100;
+  static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+  static final long DEFAULT_READ_TIMEOUT = 30000;
+  static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+  private static final Map<String, PooledClient> pooled = new HashMap<>();
+  private static final Map<DockerClient, PooledClient> byClient = new IdentityHashMap<>();
+
+  private DockerClientPool() {
+  }
+
+  /**
+   * Get the client for the docker daemon and connection settings of the rule, creating it if needed.
+   * Each call must be balanced by a call to release(DockerClient).
+   *
+   * @param params the parameters of the rule
+   * @return the shared client
+   */
+  static DockerClient acquire(DockerRuleParams params) {
+    DefaultDockerClient.Builder builder = newBuilder()
+      .connectionPoolSize(params.connectionPoolSize)
+      .connectTimeoutMillis(params.connectTimeout)
+      .readTimeoutMillis(params.readTimeout);
+    String key = builder.uri() + "|" + params.connectionPoolSize + "|"
+      + params.connectTimeout + "|" + params.readTimeout;
+
+    synchronized (DockerClientPool.class) {
+      PooledClient client = pooled.get(key);
+      if (client == null) {
+        logger.debug("Creating docker client for " + key);
+        client = new PooledClient(key, builder.build());
+        pooled.put(key, client);
+        byClient.put(client.client, client);
+      }
+      client.references++;
+      if (client.eviction != null) {
+        client.eviction.cancel(false);
+        client.eviction = null;
+      }
+      return client.client;
+    }
+  }
+
+  /**
+   * Release a client obtained from acquire(DockerRuleParams). Clients that are not
+   * pooled are closed immediately.
+   *
+   * @param dockerClient the client to release
+   */
+  static void release(DockerClient dockerClient) {
+    synchronized (DockerClientPool.class) {
+      final PooledClient client = byClient.get(dockerClient);
+      if (client != null) {
+        client.references--;
+        if (client.references == 0) {
+          client.eviction = Schedulers.shared().schedule(new Runnable() {
+            @Override
+            public void run() {
+              evict(client);
+            }
+          }, DEFAULT_IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        return;
+      }
+    }
+    ContainerIndex.discard(dockerClient);
+    DockerEventBus.discard(dockerClient);
+    ContainerLogs.discard(dockerClient);
+    OrphanReaper.discard(dockerClient);
+    dockerClient.close();
+  }
+
+  static synchronized int references(DockerClient dockerClient) {
+    PooledClient client = byClient.get(dockerClient);
+    return client == null ? 0 : client.references;
+  }
+
+  private static void evict(PooledClient client) {
+    synchronized (DockerClientPool.class) {
+      if (client.references > 0 || pooled.get(client.key) != client) {
+        return;
+      }
+      pooled.remove(client.key);
+      byClient.remove(client.client);
+    }
+    logger.debug("Closing idle docker client for " + client.key);
+    ContainerIndex.discard(client.client);
+    DockerEventBus.discard(client.client);
+    ContainerLogs.discard(client.client);
+    OrphanReaper.discard(client.client);
+    client.client.close();
+  }
+
+  /**
+   * Create a builder for a client connected to the docker daemon described by the environment.
+   * When the environment is not usable, a docker-machine environment is assumed.
+   *
+   * @return the builder
+   */
+  static DefaultDockerClient.Builder newBuilder() {
+    if (isUnix() || System.getenv("DOCKER_HOST") != null) {
+      try {
+        return DefaultDockerClient.fromEnv();
+      } catch (DockerCertificateException e) {
+        System.err.println(e.getMessage());
+      }
+    }
+
+    logger.info("Could not create docker client from the environment. Assuming docker-machine environment with url " + DOCKER_MACHINE_SERVICE_URL);
+    DockerCertificates dockerCertificates = null;
+    try {
+      String userHome = System.getProperty("user.home");
+      dockerCertificates = new DockerCertificates(Paths.get(userHome, ".docker/machine/certs"));
+    } catch (DockerCertificateException e) {
+      System.err.println(e.getMessage());
+    }
+    return DefaultDockerClient.builder()
+      .uri(URI.create(DOCKER_MACHINE_SERVICE_URL))
+      .dockerCertificates(dockerCertificates);
+  }
+
+  private static boolean isUnix() {
+    String os = System.getProperty("os.name").toLowerCase();
+    return os.contains("nix") || os.contains("nux") || os.contains("aix") || os.equals("mac os x");
+  }
+
+  private static class PooledClient {
+    final String key;
+    final DockerClient client;
+    int references;
+    ScheduledFuture<?> eviction;
+
+    PooledClient(String key, DockerClient client) {
+      this.key = key;
+      this.client = client;
+    }
+  }
+}
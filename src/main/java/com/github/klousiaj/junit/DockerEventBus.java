@@ -0,0 +1,342 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.Event;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Multiplexes the container events of one docker daemon to every rule waiting on them.
+ * </p>
+ * <p>
+ * A single events stream is opened per docker client when the first listener subscribes,
+ * and closed when the last one unsubscribes. The stream is opened before subscribe returns,
+ * so a listener registered before a container is started sees every event of that container.
+ * When the stream breaks while listeners remain, it is reopened from the time of the last
+ * event it delivered, for up to MAX_RECONNECT_ATTEMPTS attempts. The waits on the events
+ * then time out.
+ * </p>
+ */
+class DockerEventBus {
+  private static final Log logger = LogFactory.getLog(DockerEventBus.class);
+  private static final long RECONNECT_DELAY_MILLIS = 1000;
+  static final int MAX_RECONNECT_ATTEMPTS = 60;
+  // container ids are hexadecimal, this key can not collide with one
+  private static final String ALL_CONTAINERS = "*";
+
+  private static final Map<DockerClient, DockerEventBus> buses = new IdentityHashMap<>();
+
+  private final Source source;
+  private final Map<String, List<Listener>> listeners = new ConcurrentHashMap<>();
+  private int subscriptions;
+  private Iterator<Event> stream;
+  private long lastEventMillis;
+
+  /**
+   * Receives the events of one container. Called on the thread reading the events stream,
+   * implementations must not block.
+   */
+  interface Listener {
+    void onEvent(Event event);
+  }
+
+  /**
+   * Opens an events stream. The returned iterator should also be Closeable so that it can
+   * be interrupted.
+   */
+  interface Source {
+    Iterator<Event> open(Long sinceSeconds) throws DockerException, InterruptedException;
+  }
+
+  DockerEventBus(Source source) {
+    this.source = source;
+  }
+
+  /**
+   * @param client the docker client
+   * @return the bus of the daemon the client is connected to, created if needed
+   */
+  static DockerEventBus forClient(final DockerClient client) {
+    synchronized (buses) {
+      DockerEventBus bus = buses.get(client);
+      if (bus == null) {
+        bus = new DockerEventBus(new Source() {
+          @Override
+          public Iterator<Event> open(Long sinceSeconds) throws DockerException, InterruptedException {
+            if (sinceSeconds == null) {
+              return client.events(DockerClient.EventsParam.type("container"));
+            }
+            return client.events(DockerClient.EventsParam.type("container"),
+              DockerClient.EventsParam.since(sinceSeconds));
+          }
+        });
+        buses.put(client, bus);
+      }
+      return bus;
+    }
+  }
+
+  /**
+   * Forget the bus of a client that is being closed.
+   *
+   * @param client the docker client
+   */
+  static void discard(DockerClient client) {
+    DockerEventBus bus;
+    synchronized (buses) {
+      bus = buses.remove(client);
+    }
+    if (bus != null) {
+      bus.closeStream();
+    }
+  }
+
+  /**
+   * Receive the events of a container until the subscription is cancelled.
+   *
+   * @param containerId the id of the container
+   * @param listener    the listener
+   * @return the subscription
+   * @throws DockerException      when the events stream could not be opened
+   * @throws InterruptedException an InterruptedException
+   */
+  Subscription subscribe(final String containerId, final Listener listener) throws DockerException, InterruptedException {
+    synchronized (this) {
+      if (stream == null) {
+        openStream(null);
+      }
+      subscriptions++;
+      List<Listener> containerListeners = listeners.get(containerId);
+      if (containerListeners == null) {
+        containerListeners = new CopyOnWriteArrayList<>();
+        listeners.put(containerId, containerListeners);
+      }
+      containerListeners.add(listener);
+    }
+    return new Subscription(containerId, listener);
+  }
+
+  /**
+   * Receive the events of every container until the subscription is cancelled.
+   *
+   * @param listener the listener
+   * @return the subscription
+   * @throws DockerException      when the events stream could not be opened
+   * @throws InterruptedException an InterruptedException
+   */
+  Subscription subscribeAll(Listener listener) throws DockerException, InterruptedException {
+    return subscribe(ALL_CONTAINERS, listener);
+  }
+
+  /**
+   * Wait for the health check of a container to pass. Subscribe before the container is
+   * started, the status of a container that is already healthy is not reported again.
+   *
+   * @param containerId the id of the container
+   * @param deadline    the time at which to give up
+   * @return a future completing when the container is reported healthy, or failing with an
+   * IllegalStateException when it dies or the deadline expires first
+   * @throws DockerException      when the events stream could not be opened
+   * @throws InterruptedException an InterruptedException
+   */
+  ListenableFuture<Void> awaitHealthy(final String containerId, Deadline deadline) throws DockerException, InterruptedException {
+    final SettableFuture<Void> healthy = SettableFuture.create();
+    final Subscription subscription = subscribe(containerId, new Listener() {
+      @Override
+      public void onEvent(Event event) {
+        String status = event.status();
+        if ("health_status: healthy".equals(status)) {
+          healthy.set(null);
+        } else if ("health_status: unhealthy".equals(status)) {
+          logger.info("Container " + containerId + " is unhealthy, waiting for it to recover");
+        } else if ("die".equals(status) || "destroy".equals(status)) {
+          healthy.setException(new IllegalStateException("Container " + containerId + " stopped before becoming healthy"));
+        }
+      }
+    });
+    final ScheduledFuture<?> timeout = deadline.isNone() ? null : Schedulers.shared().schedule(new Runnable() {
+      @Override
+      public void run() {
+        healthy.setException(new IllegalStateException("Timeout while waiting for container " + containerId + " to become healthy"));
+      }
+    }, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    healthy.addListener(new Runnable() {
+      @Override
+      public void run() {
+        subscription.cancel();
+        if (timeout != null) {
+          timeout.cancel(false);
+        }
+      }
+    }, MoreExecutors.directExecutor());
+    return healthy;
+  }
+
+  synchronized int subscriptions() {
+    return subscriptions;
+  }
+
+  private synchronized void unsubscribe(String containerId, Listener listener) {
+    List<Listener> containerListeners = listeners.get(containerId);
+    if (containerListeners == null || !containerListeners.remove(listener)) {
+      return;
+    }
+    if (containerListeners.isEmpty()) {
+      listeners.remove(containerId);
+    }
+    subscriptions--;
+    if (subscriptions == 0) {
+      closeStream();
+    }
+  }
+
+  private synchronized void openStream(Long sinceSeconds) throws DockerException, InterruptedException {
+    final Iterator<Event> opened = source.open(sinceSeconds);
+    if (opened == null) {
+      throw new IllegalStateException("The docker daemon did not return an events stream");
+    }
+    stream = opened;
+    lastEventMillis = System.currentTimeMillis();
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        read(opened);
+      }
+    }, "docker-junit-rule-events");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private synchronized void closeStream() {
+    if (stream != null) {
+      close(stream);
+      stream = null;
+    }
+  }
+
+  private synchronized boolean isCurrent(Iterator<Event> events) {
+    return stream == events;
+  }
+
+  private void read(Iterator<Event> events) {
+    try {
+      while (events.hasNext()) {
+        Event event = events.next();
+        synchronized (this) {
+          lastEventMillis = System.currentTimeMillis();
+        }
+        dispatch(event);
+      }
+    } catch (RuntimeException e) {
+      if (isCurrent(events)) {
+        logger.warn("The docker events stream failed", e);
+      }
+    }
+    reconnect(events);
+  }
+
+  private void dispatch(Event event) {
+    if (event.id() == null) {
+      return;
+    }
+    dispatch(event, listeners.get(event.id()));
+    dispatch(event, listeners.get(ALL_CONTAINERS));
+  }
+
+  private static void dispatch(Event event, List<Listener> targets) {
+    if (targets != null) {
+      for (Listener listener : targets) {
+        try {
+          listener.onEvent(event);
+        } catch (RuntimeException e) {
+          logger.error("Event listener failed on " + event, e);
+        }
+      }
+    }
+  }
+
+  private void reconnect(Iterator<Event> ended) {
+    for (int attempt = 1; ; attempt++) {
+      synchronized (this) {
+        if (stream != ended) {
+          // closed on purpose, or already replaced
+          return;
+        }
+        close(ended);
+        try {
+          // replay the events that may have been missed while reconnecting
+          openStream(TimeUnit.MILLISECONDS.toSeconds(lastEventMillis) - 1);
+          return;
+        } catch (IllegalStateException e) {
+          // thrown by a docker client that was closed, it will not come back
+          giveUp(e);
+          return;
+        } catch (DockerException | RuntimeException e) {
+          if (attempt >= MAX_RECONNECT_ATTEMPTS) {
+            giveUp(e);
+            return;
+          }
+          logger.warn("Unable to reopen the docker events stream (attempt " + attempt + " of "
+            + MAX_RECONNECT_ATTEMPTS + "), retrying: " + e.getMessage());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private synchronized void giveUp(Exception e) {
+    // the next subscription opens a new stream
+    stream = null;
+    logger.error("Unable to reopen the docker events stream, the waits on container events will time out", e);
+  }
+
+  private static void close(Iterator<Event> events) {
+    if (events instanceof Closeable) {
+      try {
+        ((Closeable) events).close();
+      } catch (IOException | RuntimeException e) {
+        logger.debug("Unable to close the docker events stream", e);
+      }
+    }
+  }
+
+  /**
+   * The registration of a listener.
+   */
+  class Subscription {
+    private final String containerId;
+    private final Listener listener;
+
+    private Subscription(String containerId, Listener listener) {
+      this.containerId = containerId;
+      this.listener = listener;
+    }
+
+    void cancel() {
+      unsubscribe(containerId, listener);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.NetworkConfig;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.util.List;
+
+/**
+ * <p>
+ * The user-defined bridge networks the containers are connected to, on which docker resolves
+ * the aliases of the containers.
+ * </p>
+ * <p>
+ * docker-client connects a container to a network without aliases: the connection is sent
+ * through the connection of the client instead. When that is not possible, the container is
+ * connected without its aliases and is only reachable by its name.
+ * </p>
+ */
+final class DockerNetwork {
+  private static final Log logger = LogFactory.getLog(DockerNetwork.class);
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private DockerNetwork() {
+  }
+
+  /**
+   * @param client the docker client
+   * @param name   the name of the network
+   * @return the id of the network
+   */
+  static String create(DockerClient client, String name) throws DockerException, InterruptedException {
+    return client.createNetwork(NetworkConfig.builder()
+      .name(name)
+      .driver("bridge")
+      .checkDuplicate(true)
+      .build()).id();
+  }
+
+  /**
+   * Connect a created container to a network, before it starts so that its aliases resolve
+   * as soon as it runs.
+   *
+   * @param client      the docker client
+   * @param network     the name or id of the network
+   * @param containerId the container
+   * @param aliases     the host names of the container on the network
+   */
+  static void connect(DockerClient client, String network, String containerId, List<String> aliases)
+    throws DockerException, InterruptedException {
+    WebTarget resource = aliases.isEmpty() ? null : RawDockerApi.resource(client);
+    if (resource == null) {
+      if (!aliases.isEmpty()) {
+        logger.warn("Unable to give the aliases " + aliases + " to container " + containerId
+          + ", it is only reachable by its name on network " + network);
+      }
+      client.connectToNetwork(containerId, network);
+      return;
+    }
+    ObjectNode body = MAPPER.createObjectNode();
+    body.put("Container", containerId);
+    ArrayNode names = body.putObject("EndpointConfig").putArray("Aliases");
+    for (String alias : aliases) {
+      names.add(alias);
+    }
+    try {
+      Response response = resource.path("networks").path(network).path("connect")
+        .request()
+        .post(Entity.entity(MAPPER.writeValueAsString(body), MediaType.APPLICATION_JSON_TYPE));
+      try {
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+          throw new DockerException("Unable to connect container " + containerId + " to network " + network + ": "
+            + response.getStatus() + " " + response.readEntity(String.class));
+        }
+      } finally {
+        response.close();
+      }
+    } catch (ProcessingException | JsonProcessingException e) {
+      throw new DockerException("Unable to connect container " + containerId + " to network " + network, e);
+    }
+  }
+
+  /**
+   * Remove a network, logging the failure: the containers using it are already gone.
+   *
+   * @param client    the docker client
+   * @param networkId the network
+   */
+  static void remove(DockerClient client, String networkId) {
+    try {
+      client.removeNetwork(networkId);
+    } catch (DockerException | InterruptedException e) {
+      logger.warn("Unable to remove network " + networkId, e);
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
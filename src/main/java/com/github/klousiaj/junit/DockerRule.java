@@ -1,28 +1,36 @@
 package com.github.klousiaj.junit;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.spotify.docker.client.*;
-import com.spotify.docker.client.exceptions.DockerCertificateException;
+import com.spotify.docker.client.exceptions.ContainerNotFoundException;
 import com.spotify.docker.client.exceptions.DockerException;
-import com.spotify.docker.client.exceptions.ImageNotFoundException;
 import com.spotify.docker.client.messages.*;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.net.URI;
-import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import static com.spotify.docker.client.DockerClient.LogsParam.follow;
+import static com.spotify.docker.client.DockerClient.LogsParam.since;
+import static com.spotify.docker.client.DockerClient.LogsParam.stderr;
 import static com.spotify.docker.client.DockerClient.LogsParam.stdout;
+import static com.spotify.docker.client.DockerClient.LogsParam.tail;
 
 /**
  * <p>
@@ -37,7 +45,6 @@ import static com.spotify.docker.client.DockerClient.LogsParam.stdout;
  */
 public class DockerRule extends ExternalResource {
   private static final Log logger = LogFactory.getLog(DockerRule.class);
-  private static final String DOCKER_MACHINE_SERVICE_URL = "https://192.168.99.100:2376";
   private static final String PORT_MAPPING_REGEX = "^([\\d]{2,5})?(:\\d{2,5})?$";
   static final String CONTAINER_NAME_REGEX = "/?[a-zA-Z0-9_-]+";
   private static final Pattern PORT_PATTERN = Pattern.compile(DockerRule.PORT_MAPPING_REGEX);
@@ -45,38 +52,127 @@ public class DockerRule extends ExternalResource {
 
   DockerRuleParams params;
 
-  private final DockerClient dockerClient;
-  private ContainerCreation container;
-  private Map<String, List<PortBinding>> ports;
+  // acquired from the pool when the rule starts, so that rules that never start hold no client
+  DockerClient dockerClient;
+  private final RuleInstrumentation instrumentation;
+  // the client of the rule, timing its calls when there are listeners
+  private DockerClient api;
+  private volatile ContainerCreation container;
+  private boolean created;
+  private boolean clientReleased;
+  private Future<Void> image;
+  private ListenableFuture<Void> healthy;
+  private StartupMonitor monitor;
+  private String runImage;
+  private String pinnedCpus;
+  private boolean reusedPaused;
+  private volatile boolean paused;
+  private volatile PortTable ports = PortTable.EMPTY;
 
   public static DockerRuleBuilder builder() {
     return new DockerRuleBuilder();
   }
 
+  /**
+   * Combine rules so that their containers are created, started and waited on concurrently.
+   * The setup time of the combined rule is that of the slowest container instead of the
+   * sum of all of them.
+   *
+   * @param rules the rules to start in parallel
+   * @return a rule that starts and stops all of the provided rules
+   */
+  public static ParallelDockerRule parallel(DockerRule... rules) {
+    return new ParallelDockerRule(rules);
+  }
+
   DockerRule(DockerClient client) {
+    this(client, RuleInstrumentation.discovered());
+  }
+
+  DockerRule(DockerClient client, List<DockerRuleListener> listeners) {
     this.dockerClient = client;
+    this.instrumentation = new RuleInstrumentation(this, listeners);
+    this.api = instrumentation.wrap(client);
   }
 
   DockerRule(DockerRuleParams params) {
     this.params = params;
-    dockerClient = createDockerClient();
+    List<DockerRuleListener> listeners = new ArrayList<>(RuleInstrumentation.discovered());
+    listeners.addAll(params.listeners);
+    instrumentation = new RuleInstrumentation(this, listeners);
+  }
+
+  /**
+   * Get the docker client of the rule from the pool, unless it already has one.
+   */
+  void acquireClient() {
+    if (dockerClient == null || clientReleased) {
+      dockerClient = DockerClientPool.acquire(params);
+      api = instrumentation.wrap(dockerClient);
+      clientReleased = false;
+    }
   }
 
+  /**
+   * Make sure the image is available on the docker host, pulling it if needed.
+   * Blocks until the image is available.
+   *
+   * @return the rule
+   */
   public DockerRule initialize() {
+    prefetch();
+    awaitImage();
+    return this;
+  }
+
+  /**
+   * Start fetching the image in the background. The rule will wait for the
+   * image to be available when it is started.
+   *
+   * @return the rule
+   */
+  DockerRule prefetch() {
+    if (dockerClient != null) {
+      image = ImagePrefetcher.getInstance().prefetch(api, ImagePull.of(params, instrumentation));
+      return this;
+    }
+    // the rule may never start: the fetch borrows a client until it is done
+    final DockerClient client = DockerClientPool.acquire(params);
+    ListenableFuture<Void> fetched;
     try {
-      try {
-        // try to use a local copy of the image if one exists
-        ImageInfo imageInfo = dockerClient.inspectImage(params.imageName);
-      } catch (ImageNotFoundException e) {
-        logger.info("Unable to find the requested image locally. Will attempt to pull from docker hub.");
-        dockerClient.pull(params.imageName);
-      }
-    } catch (DockerException | InterruptedException e) {
-      throw new IllegalStateException(e);
+      fetched = ImagePrefetcher.getInstance().prefetch(instrumentation.wrap(client), ImagePull.of(params, instrumentation));
+    } catch (RuntimeException e) {
+      DockerClientPool.release(client);
+      throw e;
     }
+    fetched.addListener(new Runnable() {
+      @Override
+      public void run() {
+        DockerClientPool.release(client);
+      }
+    }, MoreExecutors.directExecutor());
+    image = fetched;
     return this;
   }
 
+  void awaitImage() {
+    if (image == null) {
+      prefetch();
+    }
+    RuleInstrumentation.Phase phase = instrumentation.begin("image");
+    try {
+      image.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw phase.failed(new IllegalStateException(e));
+    } catch (ExecutionException e) {
+      image = null;
+      throw phase.failed(new IllegalStateException(e.getCause()));
+    } finally {
+      phase.end();
+    }
+  }
+
   @Override
   protected void before() throws Throwable {
     super.before();
@@ -90,16 +186,128 @@ public class DockerRule extends ExternalResource {
    * @throws Throwable throwable exception
    */
   public void start() throws Throwable {
-    // attach to a running container, or create and start one
-    attachToContainer();
+    acquireClient();
+    try {
+      if (params.shared) {
+        SharedContainerRegistry.getInstance().acquire(this);
+      } else {
+        startContainer();
+      }
+    } catch (Throwable t) {
+      // stop is not called after a failed start, the client goes back to the pool now
+      releaseClient();
+      throw t;
+    }
+  }
 
-    if (params.portToWaitOn != null) {
-      waitForPort(getHostPort(params.portToWaitOn), params.waitTimeout);
+  /**
+   * Attach to or create the container and wait until it is ready.
+   *
+   * @throws Throwable throwable exception
+   */
+  void startContainer() throws Throwable {
+    acquireClient();
+    OrphanReaper.startFor(dockerClient);
+    StartupMonitor startup = null;
+    RuleInstrumentation.Phase start = instrumentation.begin("start");
+    RuleInstrumentation.Phase phase = null;
+    Throwable failure = null;
+    try {
+      String snapshot = params.snapshotVersion == null ? null : WarmSnapshot.image(params);
+      boolean fromSnapshot = snapshot != null && WarmSnapshot.exists(api, snapshot);
+      if (fromSnapshot) {
+        logger.info("Starting from snapshot " + snapshot + " of " + params.imageName);
+        runImage = snapshot;
+      } else {
+        awaitImage();
+        if (snapshot != null && !WarmSnapshot.exists(api, params.imageName)) {
+          // the image was not fetched, the snapshot was there when the rule was built
+          image = ImagePrefetcher.getInstance().prefetch(api, ImagePull.of(params, instrumentation, false));
+          awaitImage();
+        }
+        runImage = params.imageName;
+      }
+
+      // the startup timeout runs from the creation of the container, once the image is there
+      startup = new StartupMonitor(dockerClient, params.startupTimeout);
+      monitor = startup;
+
+      // attach to a running container, or create and start one
+      phase = instrumentation.begin("attach");
+      attachToContainer();
+      OrphanReaper.used(getContainer().id());
+      phase.end();
+
+      phase = instrumentation.begin("wait");
+      Deadline deadline = startup.deadline();
+      if (params.waitPort != null) {
+        InetSocketAddress address = new InetSocketAddress(getDockerHost(), getHostPort(params.waitPort));
+        startup.await(PortReadinessEngine.getInstance()
+          .await(address, Deadline.after(params.waitTimeout).earliest(deadline)));
+      }
+
+      if (!params.logPatterns.isEmpty()) {
+        waitForLogs(params.logPatterns, Deadline.after(params.logTimeout).earliest(deadline));
+      }
+
+      if (healthy != null) {
+        startup.await(healthy);
+        healthy = null;
+      }
+      phase.end();
+
+      if (snapshot != null && !fromSnapshot && created) {
+        phase = instrumentation.begin("seed");
+        if (params.seeder != null) {
+          params.seeder.seed(this);
+        }
+        WarmSnapshot.commit(api, getContainer().id(), params, snapshot);
+        phase.end();
+      }
+    } catch (Throwable t) {
+      failure = t;
     }
+    monitor = null;
+    if (startup != null) {
+      failure = startup.close(failure);
+    }
+    if (phase != null && failure != null) {
+      phase.failed(failure);
+      phase.end();
+    }
+    start.failed(failure);
+    if (failure != null) {
+      abandonContainer();
+    }
+    start.end();
+    if (failure != null) {
+      throw failure;
+    }
+  }
 
-    if (params.logToWait != null) {
-      waitForLog(params.logToWait);
+  private boolean hasReadinessChecks() {
+    return params.waitPort != null || !params.logPatterns.isEmpty() || params.waitForHealthy;
+  }
+
+  /**
+   * Remove a container that this rule created but that never became ready. Containers
+   * that were already running before the rule attached to them are left alone.
+   */
+  private void abandonContainer() {
+    if (healthy != null) {
+      healthy.cancel(false);
+      healthy = null;
     }
+    if (!created || params.leaveRunning) {
+      return;
+    }
+    try {
+      removeContainer(getContainer().id());
+    } catch (RuntimeException e) {
+      logger.error("Unable to clean up the container after a failed start", e);
+    }
+    container = null;
+    created = false;
   }
 
   @Override
@@ -113,24 +321,250 @@ public class DockerRule extends ExternalResource {
    * Allows for the functionality to be used without the overhead of the JUnit rule.
    */
   public void stop() {
-    if (!params.leaveRunning) {
+    if (params.shared) {
+      SharedContainerRegistry.getInstance().release(this);
+    } else {
+      teardown();
+    }
+  }
+
+  /**
+   * Kill and remove the container, in the background when asked to.
+   */
+  void teardown() {
+    if (params.asyncTeardown && !params.leaveRunning) {
+      ContainerReaper.getInstance().reap(this);
+    } else {
+      destroy();
+    }
+  }
+
+  /**
+   * Kill and remove the container unless it should be left running.
+   */
+  void destroy() {
+    destroy(getContainer() == null ? null : getContainer().id());
+  }
+
+  /**
+   * @param containerId the container of the rule when it was stopped, null if there was none
+   */
+  void destroy(String containerId) {
+    if (params.leaveRunning) {
+      if (containerId != null) {
+        OrphanReaper.used(containerId);
+      }
+      pauseIdle();
+    } else {
       try {
-        try {
-          dockerClient.killContainer(getContainer().id());
-        } catch (DockerException | InterruptedException e) {
-          logger.error("Unable to stop docker container " + getContainer().id(), e);
-          logger.info("Will attempt to remove container anyway.");
+        if (containerId != null) {
+          removeContainer(containerId);
         }
-        dockerClient.removeContainer(getContainer().id(),
-          DockerClient.RemoveContainerParam.removeVolumes(params.cleanVolumes));
-      } catch (DockerException | InterruptedException e) {
-        throw new RuntimeException("Unable to remove docker container " + getContainer().id(), e);
       } finally {
-        dockerClient.close();
+        releaseClient();
+      }
+    }
+  }
+
+  /**
+   * Give the docker client back to the pool. The client may still be used by other rules.
+   */
+  void releaseClient() {
+    if (!clientReleased && dockerClient != null) {
+      clientReleased = true;
+      DockerClientPool.release(dockerClient);
+    }
+  }
+
+  private void removeContainer(String containerId) {
+    RuleInstrumentation.Phase phase = instrumentation.begin("stop");
+    try {
+      try {
+        if (paused) {
+          // a paused container can not be killed
+          resume();
+        }
+        api.killContainer(containerId);
+      } catch (DockerException | InterruptedException e) {
+        logger.error("Unable to stop docker container " + containerId, e);
+        logger.info("Will attempt to remove container anyway.");
+      }
+      api.removeContainer(containerId,
+        DockerClient.RemoveContainerParam.removeVolumes(params.cleanVolumes));
+      ContainerIndex index = ContainerIndex.existing(dockerClient);
+      if (index != null) {
+        index.untrack(containerId);
       }
+    } catch (DockerException | InterruptedException e) {
+      throw phase.failed(new RuntimeException("Unable to remove docker container " + containerId, e));
+    } finally {
+      phase.end();
     }
   }
 
+  /**
+   * <p>
+   * Bring the running container back to the state the tests expect, without restarting it:
+   * run the reset command and the ContainerReset of the rule, then wait until the container
+   * is ready again.
+   * </p>
+   *
+   * @throws Exception when the reset failed or the container was not ready in time
+   * @see DockerRuleBuilder#resetCommand(String...)
+   * @see DockerRuleBuilder#resetWith(ContainerReset)
+   */
+  public void reset() throws Exception {
+    if (getContainer() == null) {
+      throw new IllegalStateException("Unable to reset the container of " + params.imageName + ", it is not started");
+    }
+    RuleInstrumentation.Phase phase = instrumentation.begin("reset");
+    try {
+      Deadline deadline = Deadline.after(params.resetTimeout);
+      if (params.resetCommand != null) {
+        exec(params.resetCommand);
+      }
+      if (params.reset != null) {
+        params.reset.reset(this);
+      }
+      awaitReset(deadline);
+    } catch (Exception e) {
+      throw phase.failed(e);
+    } finally {
+      phase.end();
+    }
+  }
+
+  /**
+   * A rule resetting the container before each test. Declare the DockerRule as a ClassRule
+   * and this one as a Rule:
+   * <pre>
+   * {@code
+   * public static DockerRule postgres = DockerRule.builder()...resetCommand(...).build();
+   * public TestRule reset = postgres.resetBeforeEach();
+   * }
+   * </pre>
+   *
+   * @return a rule calling reset() before each test
+   */
+  public TestRule resetBeforeEach() {
+    return new ExternalResource() {
+      @Override
+      protected void before() throws Throwable {
+        reset();
+      }
+    };
+  }
+
+  /**
+   * Run a command in the running container.
+   *
+   * @param command the command and its arguments
+   * @return the stdout and stderr of the command
+   * @throws IllegalStateException when the command exits with another code than 0
+   */
+  public String exec(String... command) throws DockerException, InterruptedException {
+    StringBuilder output = new StringBuilder();
+    int exitCode = exec(command, output);
+    if (exitCode != 0) {
+      throw new IllegalStateException(StringUtils.join(command, ' ') + " exited with code " + exitCode + ": " + output);
+    }
+    return output.toString();
+  }
+
+  private int exec(String[] command, StringBuilder output) throws DockerException, InterruptedException {
+    String execId = api.execCreate(getContainer().id(), command,
+      DockerClient.ExecCreateParam.attachStdout(), DockerClient.ExecCreateParam.attachStderr()).id();
+    try (LogStream stream = api.execStart(execId)) {
+      output.append(stream.readFully());
+    } catch (IOException e) {
+      logger.debug("Unable to close the output of " + StringUtils.join(command, ' '), e);
+    }
+    Integer exitCode = api.execInspect(execId).exitCode();
+    return exitCode == null ? -1 : exitCode;
+  }
+
+  private void awaitReset(Deadline deadline) throws DockerException, InterruptedException {
+    if (params.resetProbe != null) {
+      long backoff = 5;
+      StringBuilder output = new StringBuilder();
+      while (exec(params.resetProbe, output) != 0) {
+        if (deadline.isExpired()) {
+          throw new IllegalStateException("The container was not ready " + params.resetTimeout + "ms after the reset: " + output);
+        }
+        output.setLength(0);
+        Thread.sleep(Math.min(backoff, deadline.remainingMillis()));
+        backoff = Math.min(backoff * 2, 200);
+      }
+    } else if (params.waitPort != null) {
+      InetSocketAddress address = new InetSocketAddress(getDockerHost(), getHostPort(params.waitPort));
+      try {
+        PortReadinessEngine.getInstance().await(address, deadline).get();
+      } catch (ExecutionException e) {
+        Throwables.propagateIfPossible(e.getCause());
+        throw new IllegalStateException(e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Pause the container while no test uses it, when the rule asks for it.
+   */
+  void pauseIdle() {
+    if (!params.pauseWhenIdle || getContainer() == null || paused) {
+      return;
+    }
+    try {
+      api.pauseContainer(getContainer().id());
+      paused = true;
+    } catch (DockerException e) {
+      logger.warn("Unable to pause the idle container " + getContainer().id(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Unpause the container if this rule paused it.
+   */
+  void resume() throws DockerException, InterruptedException {
+    if (paused) {
+      api.unpauseContainer(getContainer().id());
+      paused = false;
+    }
+  }
+
+  /**
+   * Use the container leased by another JVM. It is ready, the lease is only written once it is.
+   *
+   * @param containerId the leased container
+   * @return false when the container is no longer running
+   */
+  boolean attachLeased(String containerId) throws DockerException, InterruptedException {
+    ContainerInfo info;
+    try {
+      info = api.inspectContainer(containerId);
+    } catch (ContainerNotFoundException e) {
+      return false;
+    }
+    if (info.state() == null || !Boolean.TRUE.equals(info.state().running())) {
+      return false;
+    }
+    this.container = new ContainerCreation(containerId);
+    this.created = false;
+    ports = PortTable.of(info.networkSettings().ports());
+    return true;
+  }
+
+  /**
+   * Use the container that was started by another rule with the same configuration.
+   *
+   * @param owner the rule that started the container
+   */
+  void share(DockerRule owner) {
+    this.container = owner.container;
+    this.ports = owner.ports;
+  }
+
   /**
    * Utility method to get the docker host.
    * Can be different from localhost if using docker-machine
@@ -149,7 +583,7 @@ public class DockerRule extends ExternalResource {
    * @throws InterruptedException an InterruptedException
    */
   public String getContainerName() throws DockerException, InterruptedException {
-    return dockerClient.inspectContainer(container.id()).name().substring(1);
+    return api.inspectContainer(container.id()).name().substring(1);
   }
 
   /**
@@ -159,11 +593,7 @@ public class DockerRule extends ExternalResource {
    * @return -1 if the port is not mapped
    */
   public int getHostPort(String containerPort) {
-    List<PortBinding> portBindings = ports.get(containerPort);
-    if (portBindings == null || portBindings.isEmpty()) {
-      return -1;
-    }
-    return Integer.parseInt(portBindings.get(0).hostPort());
+    return ports.hostPort(containerPort);
   }
 
   /**
@@ -176,27 +606,130 @@ public class DockerRule extends ExternalResource {
   void attachToContainer() throws DockerException, InterruptedException {
     Map<String, List<PortBinding>> portBinding = generatePortBinding(params.ports);
     String containerId = null;
+    boolean resolved = false;
     if (params.useRunning) {
       containerId = foundRunningContainer(portBinding);
     }
     if (containerId == null) {
-      // configure the container based on the provided parameters
-      ContainerConfig containerConfig = createContainerConfig(params.imageName,
-        portBinding, params.envs, params.cmd, params.labels);
-
-      if (isValidContainerName(params.containerName))
-        container = dockerClient.createContainer(containerConfig, params.containerName);
-      else
-        container = dockerClient.createContainer(containerConfig);
-
-      dockerClient.startContainer(getContainer().id());
+      if (params.pinCpus && params.cpuSet == null && pinnedCpus == null && CpuPinning.forks(params.pinForks) > 1) {
+        pinnedCpus = CpuPinning.cpuSet(api.info().cpus(), params.pinForks);
+        logger.debug("Running the containers of this JVM on the CPUs " + pinnedCpus);
+      }
+      for (int attempt = 1; ; attempt++) {
+        Map<String, List<PortBinding>> bindings = allocatePorts(portBinding);
+        try {
+          createAndStart(bindings);
+        } catch (DockerException e) {
+          if (bindings == portBinding || attempt == HostPortAllocator.MAX_ATTEMPTS || !HostPortAllocator.isBindConflict(e)) {
+            throw e;
+          }
+          logger.info("A host port of " + bindings + " was taken before the container started, retrying with other ports");
+          discardUnstarted();
+          continue;
+        }
+        // when every host port is known, there is no need to inspect the container
+        resolved = PortTable.isResolved(bindings);
+        if (resolved) {
+          ports = PortTable.of(bindings);
+        }
+        break;
+      }
+      ContainerIndex index = ContainerIndex.existing(dockerClient);
+      if (index != null) {
+        index.track(getContainer().id());
+      }
+      if (params.waitForHealthy) {
+        checkHealthCheck(false);
+      }
     } else {
       logger.warn("Connecting to an already running container (" + containerId + "). Please note this is not the default behavior and should only be used by advanced users.");
       this.container = new ContainerCreation(containerId);
+      this.created = false;
+      if (reusedPaused) {
+        api.unpauseContainer(containerId);
+        reusedPaused = false;
+      }
+      if (monitor != null && hasReadinessChecks()) {
+        monitor.watch(getContainer().id());
+      }
+      if (params.waitForHealthy) {
+        healthy = DockerEventBus.forClient(dockerClient)
+          .awaitHealthy(getContainer().id(), Deadline.after(params.healthTimeout));
+        checkHealthCheck(true);
+      }
     }
 
-    ContainerInfo info = dockerClient.inspectContainer(getContainer().id());
-    ports = info.networkSettings().ports();
+    if (!resolved) {
+      ContainerInfo info = api.inspectContainer(getContainer().id());
+      ports = PortTable.of(info.networkSettings().ports());
+    }
+  }
+
+  /**
+   * @param bindings the ports to publish
+   * @return the bindings with the random host ports picked on this host, the bindings
+   * themselves when docker has to pick them
+   */
+  private Map<String, List<PortBinding>> allocatePorts(Map<String, List<PortBinding>> bindings) {
+    if (!params.allocatePorts || !HostPortAllocator.isLocal(getDockerHost())) {
+      return bindings;
+    }
+    try {
+      return HostPortAllocator.getInstance().allocate(bindings);
+    } catch (IOException e) {
+      logger.warn("Unable to allocate the host ports, docker will pick them", e);
+      return bindings;
+    }
+  }
+
+  private void createAndStart(Map<String, List<PortBinding>> bindings) throws DockerException, InterruptedException {
+    // configure the container based on the provided parameters
+    Map<String, String> labels = OrphanReaper.sessionLabels(params.labels, params.leaveRunning);
+    if (params.sharedAcrossJvms) {
+      labels.put(ContainerLease.LEASE_LABEL, ContainerLease.name(this));
+    }
+    ContainerConfig containerConfig = createContainerConfig(runImage != null ? runImage : params.imageName,
+      bindings, params.envs, params.cmd, labels);
+
+    if (isValidContainerName(params.containerName))
+      container = api.createContainer(containerConfig, params.containerName);
+    else
+      container = api.createContainer(containerConfig);
+
+    created = true;
+
+    if (params.network != null) {
+      DockerNetwork.connect(dockerClient, params.network, getContainer().id(), params.networkAliases);
+    }
+    if (!params.files.isEmpty()) {
+      try {
+        FileInjection.copy(dockerClient, getContainer().id(), params.files);
+      } catch (IOException e) {
+        throw new DockerException("Unable to copy files into container " + getContainer().id(), e);
+      }
+    }
+    if (monitor != null && hasReadinessChecks()) {
+      monitor.watch(getContainer().id());
+    }
+    if (params.waitForHealthy) {
+      // subscribe before starting so that no health event can be missed
+      healthy = DockerEventBus.forClient(dockerClient)
+        .awaitHealthy(getContainer().id(), Deadline.after(params.healthTimeout));
+    }
+    api.startContainer(getContainer().id());
+  }
+
+  /**
+   * Remove the container that could not be started, to create it again.
+   */
+  private void discardUnstarted() throws DockerException, InterruptedException {
+    if (healthy != null) {
+      healthy.cancel(false);
+      healthy = null;
+    }
+    api.removeContainer(getContainer().id());
+    container = null;
+    created = false;
   }
 
   /**
@@ -227,9 +760,63 @@ public class DockerRule extends ExternalResource {
    * @return true if a container with the same image:tag/port is already running
    */
   String foundRunningContainer(Map<String, List<PortBinding>> bindings) throws DockerException, InterruptedException {
-    for (Container instanceContainers : dockerClient.listContainers()) {
-      // only consider running containers of the same image.
-      if (params.imageName.equals(instanceContainers.image()) && "running".equals(instanceContainers.state())) {
+    ContainerIndex index = ContainerIndex.forClient(dockerClient);
+    if (index == null) {
+      return scanRunningContainers(bindings);
+    }
+    // a host port is published by one container at most
+    for (Map.Entry<String, List<PortBinding>> binding : bindings.entrySet()) {
+      String hostPort = binding.getValue().get(0).hostPort();
+      if (!StringUtils.isEmpty(hostPort)) {
+        ContainerIndex.Entry candidate = index.byPublicPort(Integer.parseInt(hostPort));
+        return candidate != null && matches(candidate, bindings) ? reuse(candidate.container) : null;
+      }
+    }
+    for (ContainerIndex.Entry candidate : index.byImage(params.imageName)) {
+      if (matches(candidate, bindings)) {
+        return reuse(candidate.container);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param container the running or paused container to attach to
+   * @return its id
+   */
+  private String reuse(Container container) {
+    reusedPaused = "paused".equals(container.state());
+    return container.id();
+  }
+
+  private boolean matches(ContainerIndex.Entry candidate, Map<String, List<PortBinding>> bindings) {
+    Container container = candidate.container;
+    if (!params.imageName.equals(container.image()) || !(candidate.isRunning() || candidate.isPaused())) {
+      return false;
+    }
+    // the requested ports count must be less than or equal to the existing containers exposed port count
+    if (container.ports() == null || container.ports().size() < bindings.size()) {
+      return false;
+    }
+    for (Map.Entry<String, List<PortBinding>> binding : bindings.entrySet()) {
+      Set<Integer> published = candidate.ports.get(Integer.valueOf(binding.getKey()));
+      String hostPort = binding.getValue().get(0).hostPort();
+      if (published == null || (!StringUtils.isEmpty(hostPort) && !published.contains(Integer.valueOf(hostPort)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Search the running containers without the index, when the events of the daemon can not
+   * be followed.
+   */
+  private String scanRunningContainers(Map<String, List<PortBinding>> bindings) throws DockerException, InterruptedException {
+    for (Container instanceContainers : api.listContainers()) {
+      // only consider running or paused containers of the same image.
+      if (params.imageName.equals(instanceContainers.image())
+        && ("running".equals(instanceContainers.state()) || "paused".equals(instanceContainers.state()))) {
         // the requested ports count must be less than or equal to the existing containers exposed port count
         if (instanceContainers.ports().size() >= bindings.size()) {
           boolean portsAlign = true;
@@ -239,7 +826,7 @@ public class DockerRule extends ExternalResource {
             portsAlign = this.validPortMap(key, bindings.get(key).get(0).hostPort(), instanceContainers.ports());
           }
           if (portsAlign) {
-            return instanceContainers.id();
+            return reuse(instanceContainers);
           }
         }
       }
@@ -267,59 +854,62 @@ public class DockerRule extends ExternalResource {
    */
   @Deprecated
   public void waitForPort(int port, long timeoutInMillis) {
-    SocketAddress address = new InetSocketAddress(getDockerHost(), port);
-    long totalWait = 0;
-    while (true) {
-      try {
-        SocketChannel.open(address);
-        return;
-      } catch (IOException e) {
-        try {
-          Thread.sleep(100);
-          totalWait += 100;
-          if (totalWait > timeoutInMillis) {
-            throw new IllegalStateException("Timeout while waiting for port " + port);
-          }
-        } catch (InterruptedException ie) {
-          throw new IllegalStateException(ie);
-        }
-      }
+    InetSocketAddress address = new InetSocketAddress(getDockerHost(), port);
+    try {
+      PortReadinessEngine.getInstance().await(address, Deadline.after(timeoutInMillis)).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IllegalStateException(e.getCause());
     }
   }
 
-  protected DockerClient createDockerClient() {
-    if (isUnix() || System.getenv("DOCKER_HOST") != null) {
-      try {
-        return DefaultDockerClient.fromEnv().build();
-      } catch (DockerCertificateException e) {
-        System.err.println(e.getMessage());
-      }
+  /**
+   * The health of a container only shows in its status, e.g. "Up 3 seconds (health: starting)".
+   * Fail right away when the image has no health check instead of waiting for the timeout, and
+   * stop waiting when a running container is already healthy.
+   *
+   * @param running true if the container was already running before the rule attached to it
+   */
+  private void checkHealthCheck(boolean running) throws DockerException, InterruptedException {
+    List<Container> containers = api.listContainers(
+      DockerClient.ListContainersParam.filter("id", getContainer().id()));
+    if (containers == null || containers.isEmpty() || containers.get(0).status() == null) {
+      return;
     }
+    String status = containers.get(0).status();
+    if (running && status.contains("(healthy)")) {
+      healthy.cancel(false);
+      healthy = null;
+    } else if (!status.contains("health")) {
+      throw new IllegalStateException("Container " + getContainer().id() + " has no health check to wait for, status is " + status);
+    }
+  }
 
-    logger.info("Could not create docker client from the environment. Assuming docker-machine environment with url " + DOCKER_MACHINE_SERVICE_URL);
-    DockerCertificates dockerCertificates = null;
-    try {
-      String userHome = System.getProperty("user.home");
-      dockerCertificates = new DockerCertificates(Paths.get(userHome, ".docker/machine/certs"));
-    } catch (DockerCertificateException e) {
-      System.err.println(e.getMessage());
-    }
-    return DefaultDockerClient.builder()
-      .uri(URI.create(DOCKER_MACHINE_SERVICE_URL))
-      .dockerCertificates(dockerCertificates)
+  /**
+   * Create a new docker client that is not shared with any other rule.
+   *
+   * @return the docker client
+   */
+  protected DockerClient createDockerClient() {
+    return DockerClientPool.newBuilder()
+      .connectionPoolSize(params.connectionPoolSize)
+      .connectTimeoutMillis(params.connectTimeout)
+      .readTimeoutMillis(params.readTimeout)
       .build();
   }
 
   protected ContainerConfig createContainerConfig(String imageName, Map<String, List<PortBinding>> portBinding,
                                                   String[] envs, String cmd, Map<String, String> labels) throws DockerException {
-    HostConfig hostConfig = HostConfig.builder()
-      .portBindings(portBinding)
-      .build();
+    HostConfig hostConfig = createHostConfig(portBinding);
 
     // make sure the labels includes the default label information
-    if (labels != null) {
-      labels.put(DockerRuleBuilder.DEFAULT_LABEL_KEY, DockerRuleBuilder.DEFAULT_LABEL_VALUE);
+    if (labels == null) {
+      labels = new HashMap<>();
     }
+    labels.put(DockerRuleBuilder.DEFAULT_LABEL_KEY, DockerRuleBuilder.DEFAULT_LABEL_VALUE);
 
     ContainerConfig.Builder configBuilder = ContainerConfig.builder()
       .hostConfig(hostConfig)
@@ -335,6 +925,29 @@ public class DockerRule extends ExternalResource {
     return configBuilder.build();
   }
 
+  /**
+   * @param portBinding the ports to publish
+   * @return the host configuration of the container: its ports, tmpfs mounts and resources
+   */
+  protected HostConfig createHostConfig(Map<String, List<PortBinding>> portBinding) {
+    HostConfig.Builder builder = HostConfig.builder()
+      .portBindings(portBinding);
+    if (params == null) {
+      return builder.build();
+    }
+    if (!params.tmpfs.isEmpty()) {
+      builder.tmpfs(ImmutableMap.copyOf(params.tmpfs));
+    }
+    builder.cpusetCpus(params.cpuSet != null ? params.cpuSet : pinnedCpus)
+      .cpuShares(params.cpuShares)
+      .memory(params.memory)
+      .shmSize(params.shmSize);
+    if (!params.ulimits.isEmpty()) {
+      builder.ulimits(params.ulimits);
+    }
+    return builder.build();
+  }
+
   protected static Map<String, List<PortBinding>> generatePortBinding(String... ports) throws DockerException {
 
     Map<String, List<PortBinding>> portBindings = new HashMap<>();
@@ -357,21 +970,98 @@ public class DockerRule extends ExternalResource {
     return portBindings;
   }
 
-  private static boolean isUnix() {
-    String os = System.getProperty("os.name").toLowerCase();
-    return os.contains("nix") || os.contains("nux") || os.contains("aix") || os.equals("mac os x");
+  protected void waitForLog(String messageToMatch) throws DockerException, InterruptedException, UnsupportedEncodingException {
+    waitForLogs(Collections.singletonList(LogPattern.literal(messageToMatch, 1)), Deadline.after(params.logTimeout));
   }
 
-  protected void waitForLog(String messageToMatch) throws DockerException, InterruptedException, UnsupportedEncodingException {
-    LogStream logs = dockerClient.logs(getContainer().id(), follow(), stdout());
-    String log;
-    do {
-      LogMessage logMessage = logs.next();
-      ByteBuffer buffer = logMessage.content();
-      byte[] bytes = new byte[buffer.remaining()];
-      buffer.get(bytes);
-      log = new String(bytes);
-    } while (!log.contains(messageToMatch));
+  /**
+   * Follow the stdout and stderr of the container until every pattern has been found.
+   * For a container that was already running, only the logs since its last start are searched.
+   *
+   * @param patterns the patterns to find
+   * @param deadline the time at which to give up
+   * @throws DockerException      a DockerException
+   * @throws InterruptedException an InterruptedException
+   */
+  void waitForLogs(List<LogPattern> patterns, Deadline deadline) throws DockerException, InterruptedException {
+    List<DockerClient.LogsParam> logsParams = new ArrayList<>();
+    logsParams.add(follow());
+    logsParams.add(stdout());
+    logsParams.add(stderr());
+    if (params.logTail != null) {
+      logsParams.add(tail(params.logTail));
+    }
+    if (!created) {
+      Integer startedAt = startedAt();
+      if (startedAt != null) {
+        logsParams.add(since(startedAt));
+      }
+    }
+
+    final LogMatcher matcher = new LogMatcher(patterns);
+    final ContainerLogs logs = ContainerLogs.open(api, dockerClient, getContainer().id(),
+      logsParams.toArray(new DockerClient.LogsParam[logsParams.size()]));
+    final AtomicBoolean expired = new AtomicBoolean();
+    if (monitor != null) {
+      monitor.onExit(new Runnable() {
+        @Override
+        public void run() {
+          closeQuietly(logs);
+        }
+      });
+    }
+    ScheduledFuture<?> timeout = null;
+    if (!deadline.isNone()) {
+      // the log blocks until the container writes something, closing it unblocks the reader
+      timeout = Schedulers.shared().schedule(new Runnable() {
+        @Override
+        public void run() {
+          expired.set(true);
+          closeQuietly(logs);
+        }
+      }, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+    try {
+      boolean found = false;
+      while (!found && logs.hasNext()) {
+        found = matcher.feed(logs.next());
+      }
+      if (!found && !matcher.finish()) {
+        if (!expired.get() && monitor != null) {
+          // a followed log only ends when the container stops
+          throw monitor.exitFailure();
+        }
+        throw new IllegalStateException(expired.get()
+          ? "Timeout while waiting for log messages " + matcher.missing()
+          : "The logs ended before the log messages " + matcher.missing() + " were found");
+      }
+    } catch (RuntimeException e) {
+      if (expired.get() && !(e instanceof IllegalStateException)) {
+        throw new IllegalStateException("Timeout while waiting for log messages " + matcher.missing(), e);
+      }
+      throw e;
+    } finally {
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+      closeQuietly(logs);
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to close " + closeable, e);
+    }
+  }
+
+  private Integer startedAt() throws DockerException, InterruptedException {
+    ContainerInfo info = api.inspectContainer(getContainer().id());
+    if (info == null || info.state() == null || info.state().startedAt() == null) {
+      return null;
+    }
+    return (int) TimeUnit.MILLISECONDS.toSeconds(info.state().startedAt().getTime());
   }
 
   protected ContainerCreation getContainer() {
@@ -383,6 +1073,10 @@ public class DockerRule extends ExternalResource {
   }
 
   protected List<Container> getContainerByLabel(String labelKey, String labelValue) throws DockerException, InterruptedException {
-    return dockerClient.listContainers(DockerClient.ListContainersParam.withLabel(labelKey, labelValue));
+    ContainerIndex index = ContainerIndex.forClient(dockerClient);
+    if (index != null) {
+      return index.byLabel(labelKey, labelValue);
+    }
+    return api.listContainers(DockerClient.ListContainersParam.withLabel(labelKey, labelValue));
   }
 }
@@ -1,17 +1,23 @@
 package com.github.klousiaj.junit;
 
+import com.spotify.docker.client.messages.HostConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Pattern;
 
 public class DockerRuleBuilder {
-  private final DockerRuleParams params = new DockerRuleParams();
+  final DockerRuleParams params = new DockerRuleParams();
 
   static final String DEFAULT_LABEL_KEY = "com.github.klousiaj.creator";
   static final String DEFAULT_LABEL_VALUE = "docker-junit-rule";
 
   private static final String LABEL_PATTERN_STR = "[a-zA-Z0-9\\.-]+:{1}.+";
   static final Pattern LABEL_PATTERN = Pattern.compile(LABEL_PATTERN_STR);
+  static final Pattern SIZE_PATTERN = Pattern.compile("[1-9][0-9]*[bkmg]?");
+  static final Pattern CPU_SET_PATTERN = Pattern.compile("[0-9]+(-[0-9]+)?(,[0-9]+(-[0-9]+)?)*");
 
 
   /**
@@ -23,6 +29,53 @@ public class DockerRuleBuilder {
     return this;
   }
 
+  /**
+   * @param pullPolicy when to pull the image, the docker.junit.rule.pull system property or
+   *                   if-missing by default
+   * @return The builder
+   * @see PullPolicy
+   */
+  public DockerRuleBuilder pullPolicy(PullPolicy pullPolicy) {
+    params.pullPolicy = pullPolicy;
+    return this;
+  }
+
+  /**
+   * Pull the images of docker hub through a registry mirror, such as a pull-through cache on the
+   * local network, and tag them with their own name. The images of other registries are pulled
+   * from their registry. Defaults to the docker.junit.rule.mirror system property.
+   *
+   * @param registryMirror the host and port of the mirror, for example localhost:5000
+   * @return The builder
+   */
+  public DockerRuleBuilder registryMirror(String registryMirror) {
+    params.registryMirror = registryMirror;
+    return this;
+  }
+
+  /**
+   * @param timeoutInMillis Maximum time of the pull of the image, retries included. Defaults
+   *                        to 10 minutes, 0 for no limit
+   * @return The builder
+   */
+  public DockerRuleBuilder pullTimeout(long timeoutInMillis) {
+    params.pullTimeout = timeoutInMillis;
+    return this;
+  }
+
+  /**
+   * @param attempts the number of attempts to pull the image when the registry fails, with
+   *                 an exponential backoff between them. Defaults to 3
+   * @return The builder
+   */
+  public DockerRuleBuilder pullAttempts(int attempts) {
+    if (attempts < 1) {
+      throw new IllegalArgumentException("The number of attempts must be positive, was " + attempts);
+    }
+    params.pullAttempts = attempts;
+    return this;
+  }
+
   /**
    * @param containerName the name specified for the container
    * @return the builder
@@ -59,6 +112,25 @@ public class DockerRuleBuilder {
     return this;
   }
 
+  /**
+   * <p>
+   * Pick the random host ports before the container is created rather than letting docker pick
+   * them. The ports are then known without inspecting the started container, and the test JVMs
+   * of a host never pick the same port. When a port is taken before the container binds it, the
+   * container is created again with other ports.
+   * </p>
+   * <p>
+   * Enabled by default. Only used when the docker daemon runs on this host.
+   * </p>
+   *
+   * @param allocatePorts false to let docker pick the random host ports
+   * @return the builder
+   */
+  public DockerRuleBuilder allocatePorts(boolean allocatePorts) {
+    params.allocatePorts = allocatePorts;
+    return this;
+  }
+
   /**
    * <p>
    * The environment variables to be passed to the container.
@@ -109,6 +181,79 @@ public class DockerRuleBuilder {
     return this;
   }
 
+  /**
+   * Share the container with every other shared rule in the JVM that has the same
+   * configuration (image, name, ports, envs, cmd and labels). The container is started
+   * by the first rule and kept until the JVM exits.
+   * <p>
+   * This is an alternative to wrapping the test classes in a JUnit Test @Suite.
+   *
+   * @param shared true if the container should be shared
+   * @return the builder
+   */
+  public DockerRuleBuilder shared(boolean shared) {
+    return shared(shared, -1);
+  }
+
+  /**
+   * Share the container with every other shared rule in the JVM that has the same
+   * configuration (image, name, ports, envs, cmd and labels). The container is started
+   * by the first rule and removed once the last rule has stopped and the linger time
+   * has expired.
+   *
+   * @param shared         true if the container should be shared
+   * @param lingerInMillis time to keep an unused container before removing it. 0 removes it
+   *                       immediately, a negative value keeps it until the JVM exits
+   * @return the builder
+   */
+  public DockerRuleBuilder shared(boolean shared, long lingerInMillis) {
+    params.shared = shared;
+    params.sharedLinger = lingerInMillis;
+    return this;
+  }
+
+  /**
+   * <p>
+   * Share the container with the rules of the other test JVMs of this host that have the same
+   * configuration, such as the parallel forks of Gradle or Maven. The first JVM starts the
+   * container while the others wait for it, and the last JVM to release it removes it. Implies
+   * {@link #shared(boolean)} within each JVM.
+   * </p>
+   * <p>
+   * The JVMs lease the container through a lock file in the directory of the
+   * docker.junit.rule.leases system property, the temporary directory by default, which must be
+   * the same for every JVM. The lease of a JVM that died is dropped by the next JVM using the file.
+   * </p>
+   *
+   * @param sharedAcrossJvms true to share the container between the test JVMs
+   * @return the builder
+   */
+  public DockerRuleBuilder sharedAcrossJvms(boolean sharedAcrossJvms) {
+    params.sharedAcrossJvms = sharedAcrossJvms;
+    if (sharedAcrossJvms) {
+      params.shared = true;
+    }
+    return this;
+  }
+
+  /**
+   * Connect the container to an existing user-defined network before it starts, where the
+   * other containers of the network reach it by its aliases.
+   *
+   * @param network the name of the network
+   * @param aliases the host names of the container on the network
+   * @return the builder
+   * @see DockerTopology
+   */
+  public DockerRuleBuilder network(String network, String... aliases) {
+    if (network == null || network.isEmpty()) {
+      throw new IllegalArgumentException("The name of the network is required");
+    }
+    params.network = network;
+    params.networkAliases = new ArrayList<>(Arrays.asList(aliases));
+    return this;
+  }
+
   /**
    * Allow the user to specify whether a volume associated with the requested image
    * should be removed as part of the cleanup.
@@ -125,6 +270,38 @@ public class DockerRuleBuilder {
     return this;
   }
 
+  /**
+   * <p>
+   * Pause the container while no test uses it, so that its processes do not take CPU from the
+   * tests that are running. The container is unpaused by the next rule that uses it, which is
+   * much faster than starting a new one.
+   * </p>
+   * <p>
+   * A shared container is paused while it lingers after its last rule released it. A container
+   * left running is paused when its rule stops, and unpaused by the next rule using it.
+   * </p>
+   *
+   * @param pauseWhenIdle true to pause the idle container
+   * @return the builder
+   */
+  public DockerRuleBuilder pauseWhenIdle(boolean pauseWhenIdle) {
+    params.pauseWhenIdle = pauseWhenIdle;
+    return this;
+  }
+
+  /**
+   * Kill and remove the container in the background when the rule stops, so that the next
+   * test does not wait for it. The containers still queued when the JVM exits are removed
+   * before it exits.
+   *
+   * @param asyncTeardown true to remove the container in the background
+   * @return the builder
+   */
+  public DockerRuleBuilder asyncTeardown(boolean asyncTeardown) {
+    params.asyncTeardown = asyncTeardown;
+    return this;
+  }
+
   /**
    * A convenience method that allows for labels to be specified as concatenated strings in the form:
    * <code>key:value</code>.
@@ -164,6 +341,55 @@ public class DockerRuleBuilder {
     return this;
   }
 
+  /**
+   * The maximum number of connections to the docker daemon. Rules with the same
+   * daemon and connection settings share one client and its connections.
+   *
+   * @param connectionPoolSize the maximum number of connections
+   * @return the builder
+   */
+  public DockerRuleBuilder connectionPoolSize(int connectionPoolSize) {
+    params.connectionPoolSize = connectionPoolSize;
+    return this;
+  }
+
+  /**
+   * @param connectTimeoutInMillis the timeout to establish a connection to the docker daemon
+   * @return the builder
+   */
+  public DockerRuleBuilder connectTimeout(long connectTimeoutInMillis) {
+    params.connectTimeout = connectTimeoutInMillis;
+    return this;
+  }
+
+  /**
+   * @param readTimeoutInMillis the timeout to read a response from the docker daemon
+   * @return the builder
+   */
+  public DockerRuleBuilder readTimeout(long readTimeoutInMillis) {
+    params.readTimeout = readTimeoutInMillis;
+    return this;
+  }
+
+  /**
+   * Copy a file or a directory of the host into the container before it is started. The
+   * files are streamed to the docker daemon, no image has to be built for them.
+   * <pre>
+   * {@code
+   * .copyToContainer("src/test/resources/nginx.conf", "/etc/nginx/nginx.conf")
+   * .copyToContainer("src/test/resources/fixtures", "/docker-entrypoint-initdb.d")
+   * }
+   * </pre>
+   *
+   * @param hostPath      the file or directory to copy
+   * @param containerPath the absolute path of the copy in the container
+   * @return the builder
+   */
+  public DockerRuleBuilder copyToContainer(String hostPath, String containerPath) {
+    params.files.add(new FileInjection(hostPath, containerPath));
+    return this;
+  }
+
   public DockerRuleBuilder cmd(String cmd) {
     params.cmd = cmd;
     return this;
@@ -188,23 +414,379 @@ public class DockerRuleBuilder {
    */
   @Deprecated
   public DockerRuleBuilder waitForPort(String portToWaitOn, int timeoutInMillis) {
-    params.portToWaitOn = portToWaitOn;
+    params.waitPort = portToWaitOn;
     params.waitTimeout = timeoutInMillis;
     return this;
   }
 
   /**
-   * @param logToWait The log message to wait.
+   * @param logToWait The log message to wait, within a single line.
    *                  This will stop blocking as soon as the docker logs contains that string
    * @return The builder
    */
   public DockerRuleBuilder waitForLog(String logToWait) {
-    params.logToWait = logToWait;
+    return waitForLog(logToWait, 1);
+  }
+
+  /**
+   * Wait until the log message appeared the given number of times on stdout or stderr.
+   * Can be called several times, the rule waits for every message. The logs are matched line
+   * by line, a message containing a line break is rejected.
+   *
+   * @param logToWait   The log message to wait, within a single line.
+   * @param occurrences The number of times the message must appear
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForLog(String logToWait, int occurrences) {
+    params.logPatterns.add(LogPattern.literal(logToWait, occurrences));
+    return this;
+  }
+
+  /**
+   * @param regex A regular expression that must be found in a line of the logs
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForLogPattern(String regex) {
+    return waitForLogPattern(regex, 1);
+  }
+
+  /**
+   * Wait until the regular expression has been found the given number of times in the lines
+   * of stdout or stderr. Can be called several times, the rule waits for every pattern.
+   *
+   * @param regex       A regular expression that must be found in a line of the logs
+   * @param occurrences The number of times the expression must be found
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForLogPattern(String regex, int occurrences) {
+    params.logPatterns.add(LogPattern.regex(regex, occurrences));
     return this;
   }
 
+  /**
+   * @param timeoutInMillis Maximum time to wait for the log messages. Defaults to 5 minutes
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForLogTimeout(long timeoutInMillis) {
+    params.logTimeout = timeoutInMillis;
+    return this;
+  }
+
+  /**
+   * Only search the last lines of the logs written before the rule started waiting. Mostly
+   * useful together with useRunning, to skip the history of a long running container.
+   *
+   * @param lines the number of existing lines to search
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForLogTail(int lines) {
+    params.logTail = lines;
+    return this;
+  }
+
+  /**
+   * Wait for the HEALTHCHECK of the image to pass. The rule is notified by the events of the
+   * docker daemon instead of polling the container.
+   *
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForHealthy() {
+    return waitForHealthy(DockerRuleParams.DEFAULT_READY_TIMEOUT);
+  }
+
+  /**
+   * Wait for the HEALTHCHECK of the image to pass.
+   *
+   * @param timeoutInMillis Maximum waiting time in milliseconds
+   * @return The builder
+   */
+  public DockerRuleBuilder waitForHealthy(long timeoutInMillis) {
+    params.waitForHealthy = true;
+    params.healthTimeout = timeoutInMillis;
+    return this;
+  }
+
+  /**
+   * Bound the whole start of the container, from its creation to the end of the waits.
+   * The pull of the image, bounded by pullTimeout, is not part of it.
+   * When the time is up, the pending docker call or wait is aborted and the container removed.
+   *
+   * @param timeoutInMillis Maximum startup time in milliseconds, 0 for no limit
+   * @return The builder
+   */
+  public DockerRuleBuilder startupTimeout(long timeoutInMillis) {
+    params.startupTimeout = timeoutInMillis;
+    return this;
+  }
+
+  /**
+   * Mount an in-memory file system at the given path of the container, limited by default to
+   * half of the memory of the docker host.
+   *
+   * @param containerPath the absolute path in the container
+   * @return The builder
+   * @see #tmpfs(String, String)
+   */
+  public DockerRuleBuilder tmpfs(String containerPath) {
+    return tmpfs(containerPath, null);
+  }
+
+  /**
+   * <p>
+   * Mount an in-memory file system at the given path of the container. Writes and fsyncs to
+   * it do not reach the disk, which speeds up the databases that sync every commit. Its content
+   * is lost when the container stops and is not part of a warm snapshot.
+   * </p>
+   * <p>
+   * A tmpfs mounted on a VOLUME of the image replaces that volume.
+   * </p>
+   *
+   * @param containerPath the absolute path in the container
+   * @param size          the maximum size, as a number of bytes followed by an optional unit
+   *                      b, k, m or g, for example 512m. null for the default limit
+   * @return The builder
+   */
+  public DockerRuleBuilder tmpfs(String containerPath, String size) {
+    if (containerPath == null || !containerPath.startsWith("/")) {
+      throw new IllegalArgumentException("The tmpfs path must be an absolute path in the container, was " + containerPath);
+    }
+    if (size != null && !SIZE_PATTERN.matcher(size).matches()) {
+      throw new IllegalArgumentException("Invalid tmpfs size " + size + ", expected a number followed by b, k, m or g");
+    }
+    params.tmpfs.put(containerPath, size == null ? "" : "size=" + size);
+    return this;
+  }
+
+  /**
+   * Keep the data directories of a database in memory.
+   *
+   * @param preset the database of the image
+   * @return The builder
+   * @see #tmpfs(String, String)
+   */
+  public DockerRuleBuilder inMemory(InMemoryPreset preset) {
+    return inMemory(preset, null);
+  }
+
+  /**
+   * Keep the data directories of a database in memory, each limited to the given size.
+   *
+   * @param preset the database of the image
+   * @param size   the maximum size of each directory, for example 512m. null for the default
+   * @return The builder
+   * @see #tmpfs(String, String)
+   */
+  public DockerRuleBuilder inMemory(InMemoryPreset preset, String size) {
+    for (String path : preset.paths()) {
+      tmpfs(path, size);
+    }
+    return this;
+  }
+
+  /**
+   * Only run the container on the given CPUs of the docker host.
+   *
+   * @param cpus the CPUs, for example 0-3 or 0,2
+   * @return The builder
+   * @see #pinCpus()
+   */
+  public DockerRuleBuilder cpuSet(String cpus) {
+    if (cpus == null || !CPU_SET_PATTERN.matcher(cpus).matches()) {
+      throw new IllegalArgumentException("Invalid cpu set " + cpus + ", expected for example 0-3 or 0,2");
+    }
+    params.cpuSet = cpus;
+    return this;
+  }
+
+  /**
+   * @param shares the relative weight of the container when the CPUs are busy, 1024 by default
+   * @return The builder
+   */
+  public DockerRuleBuilder cpuShares(long shares) {
+    params.cpuShares = shares;
+    return this;
+  }
+
+  /**
+   * <p>
+   * Run the containers of each test JVM on their own CPUs of the docker host, so that forks
+   * running in parallel do not compete for them. A cpuSet takes precedence.
+   * </p>
+   * <p>
+   * The docker.junit.rule.forks system property gives the number of forks running at the
+   * same time. It defaults to 1, which leaves the CPUs unrestricted. Surefire numbers its
+   * forks with {@code -Ddocker.junit.rule.fork=${surefire.forkNumber}}. Other test JVMs,
+   * Gradle workers included, take the first number that no other running JVM of this host
+   * holds.
+   * </p>
+   *
+   * @return The builder
+   */
+  public DockerRuleBuilder pinCpus() {
+    params.pinCpus = true;
+    return this;
+  }
+
+  /**
+   * Run the containers of each test JVM on their own share of the CPUs of the docker host.
+   *
+   * @param forks the number of forks running at the same time
+   * @return The builder
+   * @see #pinCpus()
+   */
+  public DockerRuleBuilder pinCpus(int forks) {
+    if (forks < 1) {
+      throw new IllegalArgumentException("The number of forks must be positive, was " + forks);
+    }
+    params.pinCpus = true;
+    params.pinForks = forks;
+    return this;
+  }
+
+  /**
+   * @param size the memory limit of the container, for example 512m
+   * @return The builder
+   */
+  public DockerRuleBuilder memory(String size) {
+    params.memory = bytes(size);
+    return this;
+  }
+
+  /**
+   * @param size the size of /dev/shm, for example 256m. 64m by default
+   * @return The builder
+   */
+  public DockerRuleBuilder shmSize(String size) {
+    params.shmSize = bytes(size);
+    return this;
+  }
+
+  /**
+   * @param name the resource, for example nofile or nproc
+   * @param soft the soft limit
+   * @param hard the hard limit
+   * @return The builder
+   */
+  public DockerRuleBuilder ulimit(String name, int soft, int hard) {
+    if (name == null || name.isEmpty() || soft > hard) {
+      throw new IllegalArgumentException("Invalid ulimit " + name + "=" + soft + ":" + hard);
+    }
+    params.ulimits.add(HostConfig.Ulimit.builder().name(name).soft(soft).hard(hard).build());
+    return this;
+  }
+
+  /**
+   * Start from a snapshot of a ready container instead of the image.
+   *
+   * @param seedVersion the version of the snapshot
+   * @return The builder
+   * @see #warmSnapshot(String, ContainerSeeder)
+   */
+  public DockerRuleBuilder warmSnapshot(String seedVersion) {
+    return warmSnapshot(seedVersion, null);
+  }
+
+  /**
+   * <p>
+   * Start from a snapshot of a ready, seeded container instead of the image.
+   * </p>
+   * <p>
+   * The first time, the container is started from the image, the rule waits until it is
+   * ready, the seeder loads its data and the container is committed to a local image. The
+   * following starts use that image and skip both the initialization and the seeding. The
+   * snapshot is tagged with a hash of the configuration and of the seed version: change the
+   * version whenever the seeder changes.
+   * </p>
+   * <p>
+   * <b>Note</b> - data written to the VOLUMEs declared by the image is not part of the
+   * snapshot. Configure the image to keep its data elsewhere.
+   * </p>
+   *
+   * @param seedVersion the version of the snapshot
+   * @param seeder      loads the data into the container, may be null
+   * @return The builder
+   */
+  public DockerRuleBuilder warmSnapshot(String seedVersion, ContainerSeeder seeder) {
+    params.snapshotVersion = seedVersion;
+    params.seeder = seeder;
+    return this;
+  }
+
+  /**
+   * Run a command in the container on each DockerRule#reset(), for example to drop the data
+   * of the previous test. The reset fails when the command exits with another code than 0.
+   *
+   * @param command the command and its arguments
+   * @return The builder
+   * @see DockerRule#resetBeforeEach()
+   */
+  public DockerRuleBuilder resetCommand(String... command) {
+    params.resetCommand = command;
+    return this;
+  }
+
+  /**
+   * Reset the container from the tests on each DockerRule#reset(), after the reset command.
+   *
+   * @param reset brings the container back to the state the tests expect
+   * @return The builder
+   * @see DockerRule#resetBeforeEach()
+   */
+  public DockerRuleBuilder resetWith(ContainerReset reset) {
+    params.reset = reset;
+    return this;
+  }
+
+  /**
+   * After a reset, run this command in the container until it exits with 0. Without a probe,
+   * the rule waits for the port it waits for at startup, if any.
+   *
+   * @param command the command and its arguments
+   * @return The builder
+   */
+  public DockerRuleBuilder resetProbe(String... command) {
+    params.resetProbe = command;
+    return this;
+  }
+
+  /**
+   * @param timeoutInMillis Maximum time of a reset, probe included. Defaults to 30 seconds
+   * @return The builder
+   */
+  public DockerRuleBuilder resetTimeout(long timeoutInMillis) {
+    params.resetTimeout = timeoutInMillis;
+    return this;
+  }
+
+  /**
+   * Be notified of the phases of the rule and of its calls to the docker daemon, with their
+   * durations.
+   *
+   * @param listener the listener
+   * @return The builder
+   * @see DockerRuleListener
+   */
+  public DockerRuleBuilder listener(DockerRuleListener listener) {
+    params.listeners.add(listener);
+    return this;
+  }
+
+  /**
+   * @param size a number of bytes followed by an optional unit b, k, m or g
+   * @return the number of bytes
+   */
+  static long bytes(String size) {
+    if (size == null || !SIZE_PATTERN.matcher(size).matches()) {
+      throw new IllegalArgumentException("Invalid size " + size + ", expected a number followed by b, k, m or g");
+    }
+    char unit = size.charAt(size.length() - 1);
+    int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+    String number = Character.isDigit(unit) ? size : size.substring(0, size.length() - 1);
+    return Long.parseLong(number) << shift;
+  }
+
   public DockerRule build() {
-    return new DockerRule(params).initialize();
+    return new DockerRule(params).prefetch();
   }
 
 }
@@ -0,0 +1,104 @@
+package com.github.klousiaj.junit;
+
+/**
+ * A lifecycle phase of a rule or a call to the docker daemon, and how long it took.
+ *
+ * @see DockerRuleListener
+ */
+public final class DockerRuleEvent {
+
+  public enum Type {
+    /**
+     * A phase of the rule: image, pull, attach, wait, seed, start or stop
+     */
+    PHASE,
+    /**
+     * A call to the docker daemon, named after the method of the DockerClient
+     */
+    API_CALL,
+    /**
+     * A layer of the image pulled for the rule, named after its id
+     */
+    LAYER
+  }
+
+  private final Type type;
+  private final String name;
+  private final String image;
+  private final String containerId;
+  private final String thread;
+  private final long timestamp;
+  private final long startNanos;
+  private final long durationNanos;
+  private final Throwable failure;
+
+  DockerRuleEvent(Type type, String name, String image, String containerId, long timestamp,
+                  long startNanos, long durationNanos, Throwable failure) {
+    this.type = type;
+    this.name = name;
+    this.image = image;
+    this.containerId = containerId;
+    this.thread = Thread.currentThread().getName();
+    this.timestamp = timestamp;
+    this.startNanos = startNanos;
+    this.durationNanos = durationNanos;
+    this.failure = failure;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the image of the rule
+   */
+  public String getImage() {
+    return image;
+  }
+
+  /**
+   * @return the container of the rule, null until it is created
+   */
+  public String getContainerId() {
+    return containerId;
+  }
+
+  public String getThread() {
+    return thread;
+  }
+
+  /**
+   * @return the wall clock time at the beginning, in milliseconds since the epoch
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the System#nanoTime at the beginning, to order and nest the events
+   */
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  /**
+   * @return why the phase or call failed, null when it succeeded
+   */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  @Override
+  public String toString() {
+    return type + " " + name + " " + image + " " + (durationNanos / 1000000) + "ms"
+      + (failure == null ? "" : " failed: " + failure);
+  }
+}
@@ -0,0 +1,19 @@
+package com.github.klousiaj.junit;
+
+/**
+ * <p>
+ * Notified of the timed phases of the rules and of their calls to the docker daemon.
+ * </p>
+ * <p>
+ * Listeners are added with DockerRuleBuilder#listener, or to every rule of the build through a
+ * META-INF/services/com.github.klousiaj.junit.DockerRuleListener file. They are called on the
+ * thread that did the work and must not block; their exceptions are logged and ignored.
+ * </p>
+ */
+public interface DockerRuleListener {
+
+  /**
+   * @param event a phase or a docker call that just ended
+   */
+  void onEvent(DockerRuleEvent event);
+}
@@ -1,23 +1,131 @@
 package com.github.klousiaj.junit;
 
+import com.spotify.docker.client.messages.HostConfig;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 class DockerRuleParams {
 
   String imageName;
   String containerName;
+  PullPolicy pullPolicy;
+  String registryMirror;
+  long pullTimeout = ImagePull.DEFAULT_PULL_TIMEOUT;
+  int pullAttempts = ImagePull.DEFAULT_PULL_ATTEMPTS;
 
   String[] ports;
+  boolean allocatePorts = true;
   String[] envs;
   Map<String,String> labels;
   String cmd;
+  Map<String, String> tmpfs = new LinkedHashMap<>();
+  String network;
+  List<String> networkAliases = new ArrayList<>();
+
+  String cpuSet;
+  Long cpuShares;
+  Long memory;
+  Long shmSize;
+  List<HostConfig.Ulimit> ulimits = new ArrayList<>();
+  boolean pinCpus = false;
+  Integer pinForks;
 
   boolean useRunning = false;
   boolean leaveRunning = false;
   boolean cleanVolumes = false;
+  boolean asyncTeardown = false;
+  boolean pauseWhenIdle = false;
+
+  int connectionPoolSize = DockerClientPool.DEFAULT_CONNECTION_POOL_SIZE;
+  long connectTimeout = DockerClientPool.DEFAULT_CONNECT_TIMEOUT;
+  long readTimeout = DockerClientPool.DEFAULT_READ_TIMEOUT;
 
-  @Deprecated
-  String portToWaitOn;
+  boolean shared = false;
+  long sharedLinger = -1;
+  boolean sharedAcrossJvms = false;
+
+  String waitPort;
   public int waitTimeout;
-  String logToWait;
+  List<LogPattern> logPatterns = new ArrayList<>();
+  long logTimeout = DEFAULT_READY_TIMEOUT;
+  Integer logTail;
+  boolean waitForHealthy = false;
+  long healthTimeout = DEFAULT_READY_TIMEOUT;
+  long startupTimeout = 0;
+
+  List<FileInjection> files = new ArrayList<>();
+
+  String snapshotVersion;
+  ContainerSeeder seeder;
+
+  List<DockerRuleListener> listeners = new ArrayList<>();
+
+  String[] resetCommand;
+  ContainerReset reset;
+  String[] resetProbe;
+  long resetTimeout = DEFAULT_RESET_TIMEOUT;
+
+  static final long DEFAULT_READY_TIMEOUT = 5 * 60 * 1000;
+  static final long DEFAULT_RESET_TIMEOUT = 30 * 1000;
+
+  /**
+   * Build a key that identifies the container described by these parameters. Two sets of
+   * parameters with the same key will result in equivalent containers. The wait conditions
+   * and the cleanup behavior are not part of the key.
+   *
+   * @return the key describing the container configuration
+   */
+  String configKey() {
+    StringBuilder key = new StringBuilder();
+    key.append("image=").append(imageName);
+    key.append("|name=").append(containerName);
+    key.append("|ports=").append(sorted(ports));
+    key.append("|envs=").append(sorted(envs));
+    key.append("|cmd=").append(cmd);
+    key.append("|labels=").append(sorted(labels));
+    if (!tmpfs.isEmpty()) {
+      key.append("|tmpfs=").append(new TreeMap<>(tmpfs));
+    }
+    if (!files.isEmpty()) {
+      key.append("|files=").append(files);
+    }
+    if (network != null) {
+      key.append("|network=").append(network).append(networkAliases);
+    }
+    if (cpuSet != null || cpuShares != null || memory != null || shmSize != null || !ulimits.isEmpty() || pinCpus) {
+      key.append("|resources=").append(cpuSet).append(',').append(cpuShares).append(',').append(memory)
+        .append(',').append(shmSize).append(',').append(ulimits).append(',').append(pinCpus);
+    }
+    if (snapshotVersion != null) {
+      key.append("|seed=").append(snapshotVersion);
+    }
+    if (sharedAcrossJvms) {
+      key.append("|acrossJvms");
+    }
+    return key.toString();
+  }
+
+  private static String sorted(Map<String, String> values) {
+    if (values == null) {
+      return null;
+    }
+    // the default label is added when the container is created, ignore it so the key is stable
+    Map<String, String> copy = new TreeMap<>(values);
+    copy.remove(DockerRuleBuilder.DEFAULT_LABEL_KEY);
+    return copy.toString();
+  }
+
+  private static String sorted(String[] values) {
+    if (values == null) {
+      return null;
+    }
+    String[] copy = values.clone();
+    Arrays.sort(copy);
+    return Arrays.toString(copy);
+  }
 }
@@ -0,0 +1,305 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.rules.ExternalResource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * JUnit rule starting named containers on a network of their own, each container once the
+ * containers it depends on are ready.
+ * </p>
+ * <p>
+ * The containers reach each other by their names, their aliases on the network. A container
+ * starts as soon as its last dependency is ready, concurrently with every other container
+ * that can start: the setup time of the topology is that of its slowest chain of dependencies
+ * instead of the sum of all of its containers. Give each container the readiness checks its
+ * dependents need, such as a log message.
+ * </p>
+ * <p>
+ * If any of the containers fails to start, the containers that are still starting are
+ * interrupted, every container that did start is stopped, the network is removed and the
+ * first failure is rethrown.
+ * </p>
+ * <pre>
+ * {@code
+ * @ClassRule
+ * public static DockerTopology topology = DockerTopology.builder()
+ *   .container("db", DockerRule.builder().image("postgres:9.6").waitForLog("ready to accept connections"))
+ *   .container("app", DockerRule.builder().image("my/app").ports("8080").envs("DB_HOST=db"), "db")
+ *   .build();
+ * }
+ * </pre>
+ */
+public class DockerTopology extends ExternalResource {
+  private static final Log logger = LogFactory.getLog(DockerTopology.class);
+  private static final long CANCEL_TIMEOUT_SECONDS = 30;
+
+  static final Pattern NAME_PATTERN = Pattern.compile("[a-zA-Z0-9]([a-zA-Z0-9-]*[a-zA-Z0-9])?");
+
+  static class Node {
+    final String name;
+    final DockerRule rule;
+    final List<String> dependencies;
+
+    Node(String name, DockerRule rule, List<String> dependencies) {
+      this.name = name;
+      this.rule = rule;
+      this.dependencies = dependencies;
+    }
+  }
+
+  private final String network;
+  // acquired from the pool when the topology starts, unless it was given one
+  private DockerClient client;
+  private final Map<String, Node> nodes = new LinkedHashMap<>();
+  private final Map<String, List<Node>> dependents = new HashMap<>();
+  private final List<DockerRule> started = Collections.synchronizedList(new ArrayList<DockerRule>());
+  private String networkId;
+
+  DockerTopology(String network, List<Node> nodes) {
+    this(network, null, nodes);
+  }
+
+  DockerTopology(String network, DockerClient client, List<Node> nodes) {
+    Map<String, List<String>> dependencies = new LinkedHashMap<>();
+    Map<String, Node> byName = new HashMap<>();
+    for (Node node : nodes) {
+      dependencies.put(node.name, node.dependencies);
+      byName.put(node.name, node);
+    }
+    for (String name : order(dependencies)) {
+      Node node = byName.get(name);
+      this.nodes.put(name, node);
+      dependents.put(name, new ArrayList<Node>());
+      for (String dependency : node.dependencies) {
+        dependents.get(dependency).add(node);
+      }
+    }
+    this.network = network;
+    this.client = client;
+  }
+
+  public static DockerTopologyBuilder builder() {
+    return new DockerTopologyBuilder();
+  }
+
+  /**
+   * @param dependencies the dependencies of each container, by name
+   * @return the names of the containers, each one after its dependencies
+   * @throws IllegalArgumentException on a dependency that is not a container of the topology,
+   *                                  or a cycle of dependencies
+   */
+  static List<String> order(Map<String, List<String>> dependencies) {
+    Map<String, Integer> waiting = new HashMap<>();
+    Map<String, List<String>> dependents = new HashMap<>();
+    LinkedList<String> ready = new LinkedList<>();
+    for (Map.Entry<String, List<String>> container : dependencies.entrySet()) {
+      for (String dependency : container.getValue()) {
+        if (!dependencies.containsKey(dependency)) {
+          throw new IllegalArgumentException("The container " + container.getKey()
+            + " depends on " + dependency + ", which is not part of the topology");
+        }
+        if (!dependents.containsKey(dependency)) {
+          dependents.put(dependency, new ArrayList<String>());
+        }
+        dependents.get(dependency).add(container.getKey());
+      }
+      waiting.put(container.getKey(), container.getValue().size());
+      if (container.getValue().isEmpty()) {
+        ready.add(container.getKey());
+      }
+    }
+    List<String> order = new ArrayList<>();
+    while (!ready.isEmpty()) {
+      String name = ready.removeFirst();
+      order.add(name);
+      if (dependents.containsKey(name)) {
+        for (String dependent : dependents.get(name)) {
+          int count = waiting.get(dependent) - 1;
+          waiting.put(dependent, count);
+          if (count == 0) {
+            ready.add(dependent);
+          }
+        }
+      }
+    }
+    if (order.size() < dependencies.size()) {
+      List<String> cycle = new ArrayList<>(dependencies.keySet());
+      cycle.removeAll(order);
+      throw new IllegalArgumentException("The containers " + cycle + " depend on each other");
+    }
+    return order;
+  }
+
+  @Override
+  protected void before() throws Throwable {
+    super.before();
+    this.start();
+  }
+
+  /**
+   * Create the network, then start every container once its dependencies are ready, and wait
+   * for all of them to be ready.
+   *
+   * @throws Throwable the first failure raised by one of the containers
+   */
+  public void start() throws Throwable {
+    if (client == null) {
+      client = DockerClientPool.acquire(nodes.values().iterator().next().rule.params);
+    }
+    try {
+      networkId = DockerNetwork.create(client, network);
+    } catch (Exception e) {
+      stop();
+      throw e;
+    }
+    logger.debug("Created network " + network + " (" + networkId + ")");
+
+    ExecutorService executor = Executors.newFixedThreadPool(nodes.size(), new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("docker-junit-rule-topology-%d")
+      .build());
+    CompletionService<Node> completion = new ExecutorCompletionService<>(executor);
+    Map<String, Integer> waiting = new HashMap<>();
+    for (Node node : nodes.values()) {
+      waiting.put(node.name, node.dependencies.size());
+      if (node.dependencies.isEmpty()) {
+        submit(completion, node);
+      }
+    }
+
+    Throwable failure = null;
+    try {
+      for (int ii = 0; ii < nodes.size() && failure == null; ii++) {
+        try {
+          Node ready = completion.take().get();
+          for (Node dependent : dependents.get(ready.name)) {
+            int count = waiting.get(dependent.name) - 1;
+            waiting.put(dependent.name, count);
+            if (count == 0) {
+              logger.debug("Starting " + dependent.name + ", its dependencies are ready");
+              submit(completion, dependent);
+            }
+          }
+        } catch (ExecutionException e) {
+          failure = StartFailure.unwrap(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = e;
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (failure != null) {
+      // wait for the interrupted containers to clean up after themselves before stopping the others
+      if (!executor.awaitTermination(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warn("Some containers did not stop starting within " + CANCEL_TIMEOUT_SECONDS + " seconds");
+      }
+      try {
+        stop();
+      } catch (RuntimeException e) {
+        failure.addSuppressed(e);
+      }
+      throw failure;
+    }
+  }
+
+  private void submit(CompletionService<Node> completion, final Node node) {
+    completion.submit(new Callable<Node>() {
+      @Override
+      public Node call() throws Exception {
+        try {
+          node.rule.start();
+        } catch (Exception | Error e) {
+          throw e;
+        } catch (Throwable t) {
+          throw new StartFailure(t);
+        }
+        started.add(node.rule);
+        return node;
+      }
+    });
+  }
+
+  @Override
+  protected void after() {
+    super.after();
+    this.stop();
+  }
+
+  /**
+   * Stop every container that was started, in the reverse order of their startup, then remove
+   * the network.
+   */
+  public void stop() {
+    List<DockerRule> toStop;
+    synchronized (started) {
+      toStop = new ArrayList<>(started);
+      started.clear();
+    }
+    Collections.reverse(toStop);
+
+    RuntimeException failure = null;
+    for (DockerRule rule : toStop) {
+      try {
+        rule.stop();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (networkId != null) {
+      DockerNetwork.remove(client, networkId);
+      networkId = null;
+    }
+    if (client != null) {
+      DockerClientPool.release(client);
+      client = null;
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @param name the name of a container of the topology
+   * @return the rule of the container
+   */
+  public DockerRule get(String name) {
+    Node node = nodes.get(name);
+    if (node == null) {
+      throw new IllegalArgumentException("The topology has no container named " + name);
+    }
+    return node.rule;
+  }
+
+  /**
+   * @return the name of the network of the topology
+   */
+  public String getNetwork() {
+    return network;
+  }
+}
@@ -0,0 +1,75 @@
+package com.github.klousiaj.junit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class DockerTopologyBuilder {
+  private final Map<String, DockerRuleBuilder> containers = new LinkedHashMap<>();
+  private final Map<String, List<String>> dependencies = new LinkedHashMap<>();
+  private String network;
+
+  DockerTopologyBuilder() {
+  }
+
+  /**
+   * @param network the name of the network created for the topology, a unique name by default
+   * @return the builder
+   */
+  public DockerTopologyBuilder network(String network) {
+    if (network == null || network.isEmpty()) {
+      throw new IllegalArgumentException("The name of the network is required");
+    }
+    this.network = network;
+    return this;
+  }
+
+  /**
+   * Add a container to the topology. The other containers reach it by its name, which is its
+   * alias on the network of the topology.
+   *
+   * @param name         the name of the container in the topology, a host name
+   * @param rule         the configuration of the container
+   * @param dependencies the names of the containers that must be ready before this one starts
+   * @return the builder
+   */
+  public DockerTopologyBuilder container(String name, DockerRuleBuilder rule, String... dependencies) {
+    if (name == null || !DockerTopology.NAME_PATTERN.matcher(name).matches()) {
+      throw new IllegalArgumentException("Invalid container name " + name + ", expected a host name");
+    }
+    if (containers.containsKey(name)) {
+      throw new IllegalArgumentException("The topology already has a container named " + name);
+    }
+    DockerRuleParams params = rule.params;
+    if (params.shared || params.useRunning || params.leaveRunning || params.asyncTeardown) {
+      throw new IllegalArgumentException("The container " + name
+        + " can not be shared, reused, left running nor removed in the background, it lives on the network of the topology");
+    }
+    containers.put(name, rule);
+    this.dependencies.put(name, new ArrayList<>(new LinkedHashSet<>(Arrays.asList(dependencies))));
+    return this;
+  }
+
+  /**
+   * @return the topology, with the images of its containers being fetched
+   */
+  public DockerTopology build() {
+    if (containers.isEmpty()) {
+      throw new IllegalArgumentException("At least one container is required");
+    }
+    String name = network != null ? network : "docker-junit-rule-" + UUID.randomUUID().toString().substring(0, 8);
+    // fail on an invalid graph before any image is fetched
+    DockerTopology.order(dependencies);
+    List<DockerTopology.Node> nodes = new ArrayList<>();
+    for (Map.Entry<String, DockerRuleBuilder> container : containers.entrySet()) {
+      container.getValue().network(name, container.getKey());
+      nodes.add(new DockerTopology.Node(container.getKey(), container.getValue().build(),
+        dependencies.get(container.getKey())));
+    }
+    return new DockerTopology(name, nodes);
+  }
+}
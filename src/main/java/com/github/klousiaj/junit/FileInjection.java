@@ -0,0 +1,182 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Copies host files and directories into a container that was created but not started yet.
+ * </p>
+ * <p>
+ * Everything is sent as one tar archive extracted at the root of the container, and the
+ * archive is produced while it is uploaded (see TarStream), so fixtures of any size are never
+ * held in memory nor written to a temporary file. docker-client only uploads directories that
+ * it first compresses to a temporary file: the archive is therefore sent through the
+ * connection of the client. When that is not possible, the files are staged in a temporary
+ * directory and copied with DockerClient#copyToContainer.
+ * </p>
+ */
+class FileInjection {
+  private static final Log logger = LogFactory.getLog(FileInjection.class);
+
+  final String hostPath;
+  final String containerPath;
+
+  FileInjection(String hostPath, String containerPath) {
+    if (containerPath == null || !containerPath.startsWith("/")) {
+      throw new IllegalArgumentException("The path in the container must be absolute, was " + containerPath);
+    }
+    this.hostPath = hostPath;
+    this.containerPath = containerPath;
+  }
+
+  @Override
+  public String toString() {
+    return hostPath + ":" + containerPath;
+  }
+
+  /**
+   * Add the names, sizes and modification times of the files to copy to a digest, so that it
+   * changes with the fixtures without reading them.
+   *
+   * @param injections the files to copy
+   * @param digest     the digest to update
+   */
+  static void digest(List<FileInjection> injections, MessageDigest digest) throws IOException {
+    for (TarStream.Entry entry : entries(injections)) {
+      BasicFileAttributes attributes = Files.readAttributes(entry.source, BasicFileAttributes.class);
+      String fingerprint = entry.name + "|" + (attributes.isDirectory() ? "dir"
+        : attributes.size() + "|" + attributes.lastModifiedTime().toMillis());
+      digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+  }
+
+  /**
+   * @param client      the docker client
+   * @param containerId the created container
+   * @param injections  the files to copy
+   */
+  static void copy(DockerClient client, String containerId, List<FileInjection> injections)
+    throws DockerException, InterruptedException, IOException {
+    List<TarStream.Entry> entries = entries(injections);
+    // the uploads of large fixtures must not be bound by the read timeout
+    WebTarget resource = RawDockerApi.resource(client);
+    if (resource != null) {
+      upload(resource, containerId, entries);
+      return;
+    }
+    stage(client, containerId, entries);
+  }
+
+  /**
+   * @param injections the files to copy
+   * @return an entry for every file and directory, named after its path in the container
+   */
+  static List<TarStream.Entry> entries(List<FileInjection> injections) throws IOException {
+    final List<TarStream.Entry> entries = new ArrayList<>();
+    for (FileInjection injection : injections) {
+      final Path root = Paths.get(injection.hostPath);
+      if (!Files.exists(root)) {
+        throw new IOException("Unable to copy " + root + " into the container, it does not exist");
+      }
+      final String target = injection.containerPath.replaceAll("^/+", "").replaceAll("/+$", "");
+      Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+          entries.add(new TarStream.Entry(dir, name(root, dir, target)));
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+          if (attrs.isRegularFile()) {
+            entries.add(new TarStream.Entry(file, name(root, file, target)));
+          } else {
+            logger.warn("Skipping " + file + ", only files and directories are copied into the container");
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    return entries;
+  }
+
+  private static String name(Path root, Path path, String target) {
+    String relative = root.relativize(path).toString().replace('\\', '/');
+    return relative.isEmpty() ? target : target + "/" + relative;
+  }
+
+  private static void upload(WebTarget resource, String containerId, List<TarStream.Entry> entries)
+    throws DockerException, IOException {
+    try (TarStream archive = new TarStream(entries)) {
+      Response response = resource.path("containers").path(containerId).path("archive")
+        .queryParam("path", "/")
+        .request()
+        .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+        .put(Entity.entity(archive, "application/x-tar"));
+      try {
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+          throw new DockerException("Unable to copy files into container " + containerId + ": "
+            + response.getStatus() + " " + response.readEntity(String.class));
+        }
+      } finally {
+        response.close();
+      }
+    } catch (ProcessingException e) {
+      throw new DockerException("Unable to copy files into container " + containerId, e);
+    }
+  }
+
+  private static void stage(DockerClient client, String containerId, List<TarStream.Entry> entries)
+    throws DockerException, InterruptedException, IOException {
+    final Path staging = Files.createTempDirectory("docker-junit-rule");
+    try {
+      for (TarStream.Entry entry : entries) {
+        Path target = staging.resolve(entry.name);
+        if (Files.isDirectory(entry.source)) {
+          Files.createDirectories(target);
+        } else {
+          Files.createDirectories(target.getParent());
+          Files.copy(entry.source, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+      }
+      client.copyToContainer(staging, containerId, "/");
+    } finally {
+      Files.walkFileTree(staging, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+          Files.delete(dir);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.klousiaj.junit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>
+ * The number of this test JVM among the test JVMs of the host that are running at the same
+ * time, from 1.
+ * </p>
+ * <p>
+ * Each number is a lock file of the temporary directory. A JVM takes the lowest number whose
+ * file no other JVM has locked, and keeps the lock until it exits, so the number is given to
+ * the next JVM that starts. Only the JVMs of this host are numbered, the forks of other
+ * machines using the same docker host are not.
+ * </p>
+ */
+class ForkSlot {
+  private static final Log logger = LogFactory.getLog(ForkSlot.class);
+
+  static final String LOCK_FILE_PREFIX = "docker-junit-rule-fork-";
+
+  private static final ForkSlot INSTANCE = new ForkSlot(Paths.get(System.getProperty("java.io.tmpdir")));
+
+  private final Path directory;
+  private FileLock lock;
+  private int number;
+
+  ForkSlot(Path directory) {
+    this.directory = directory;
+  }
+
+  static ForkSlot getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param slots the number of JVMs expected to run at the same time
+   * @return the number of this JVM, from 1, or 0 when the slots are all taken by other JVMs
+   */
+  synchronized int claim(int slots) {
+    if (lock != null) {
+      return number;
+    }
+    for (int slot = 1; slot <= slots; slot++) {
+      FileLock taken = tryLock(directory.resolve(LOCK_FILE_PREFIX + slot + ".lock"));
+      if (taken != null) {
+        lock = taken;
+        number = slot;
+        logger.debug("This JVM is fork " + slot + " of " + slots);
+        return slot;
+      }
+    }
+    return 0;
+  }
+
+  private static FileLock tryLock(Path file) {
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock taken = channel.tryLock();
+      if (taken != null) {
+        // the channel stays open with the lock, until the JVM exits
+        return taken;
+      }
+    } catch (IOException | OverlappingFileLockException e) {
+      logger.debug("Unable to lock " + file, e);
+    }
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.debug("Unable to close " + file, e);
+      }
+    }
+    return null;
+  }
+}
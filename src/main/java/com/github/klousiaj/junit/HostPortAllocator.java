@@ -0,0 +1,174 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.net.InetAddresses;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.DockerRequestException;
+import com.spotify.docker.client.messages.PortBinding;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Picks the host ports of the containers before they are created, instead of letting the
+ * daemon pick random ones, so that the ports are known without inspecting the started
+ * container.
+ * </p>
+ * <p>
+ * A port is free when this host can bind it. The ports handed out recently are kept in a lock
+ * file of the temporary directory, shared by the test JVMs of the host, so that parallel forks
+ * never pick the same port between the check and the start of their containers. A port taken
+ * anyway by another process shows up as a bind conflict when the container starts, and the
+ * rule retries with other ports.
+ * </p>
+ * <p>
+ * Only used when the docker daemon runs on this host, see {@link #isLocal(String)}.
+ * </p>
+ */
+class HostPortAllocator {
+  private static final Log logger = LogFactory.getLog(HostPortAllocator.class);
+
+  static final String LOCK_FILE = "docker-junit-rule-ports.lock";
+  static final long HOLD_MILLIS = 60000;
+  static final int MAX_ATTEMPTS = 3;
+  private static final int MAX_PROBES = 100;
+
+  private static final HostPortAllocator INSTANCE =
+    new HostPortAllocator(Paths.get(System.getProperty("java.io.tmpdir"), LOCK_FILE));
+
+  private final Path lockFile;
+
+  HostPortAllocator(Path lockFile) {
+    this.lockFile = lockFile;
+  }
+
+  static HostPortAllocator getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param dockerHost the host of the docker daemon
+   * @return true when the daemon publishes its ports on this host
+   */
+  static boolean isLocal(String dockerHost) {
+    if (dockerHost == null) {
+      return false;
+    }
+    if ("localhost".equalsIgnoreCase(dockerHost)) {
+      return true;
+    }
+    return InetAddresses.isInetAddress(dockerHost) && InetAddresses.forString(dockerHost).isLoopbackAddress();
+  }
+
+  /**
+   * @param e the failure to start a container
+   * @return true when the container could not bind one of its host ports
+   */
+  static boolean isBindConflict(DockerException e) {
+    String message = e instanceof DockerRequestException ? ((DockerRequestException) e).message() : null;
+    if (message == null) {
+      message = e.getMessage();
+    }
+    return message != null
+      && (message.contains("port is already allocated") || message.contains("address already in use"));
+  }
+
+  /**
+   * Give a free port of this host to each binding without host port.
+   *
+   * @param bindings the bindings of a container, left untouched
+   * @return the bindings with a host port each, the bindings themselves when they all had one
+   * @throws IOException when the lock file could not be used
+   */
+  synchronized Map<String, List<PortBinding>> allocate(Map<String, List<PortBinding>> bindings) throws IOException {
+    if (PortTable.isResolved(bindings)) {
+      return bindings;
+    }
+    Map<String, List<PortBinding>> allocated = new HashMap<>();
+    // the lock of the file excludes the other JVMs, the synchronized method the other threads
+    try (FileChannel channel = FileChannel.open(lockFile,
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      FileLock lock = channel.lock();
+      try {
+        long now = System.currentTimeMillis();
+        Map<Integer, Long> held = read(channel, now);
+        for (Map.Entry<String, List<PortBinding>> binding : bindings.entrySet()) {
+          PortBinding first = binding.getValue().get(0);
+          if (StringUtils.isEmpty(first.hostPort())) {
+            int port = freePort(held);
+            held.put(port, now + HOLD_MILLIS);
+            first = PortBinding.of(first.hostIp(), port);
+          }
+          allocated.put(binding.getKey(), Collections.singletonList(first));
+        }
+        write(channel, held);
+      } finally {
+        lock.release();
+      }
+    }
+    logger.debug("Allocated the host ports " + allocated);
+    return allocated;
+  }
+
+  private static int freePort(Map<Integer, Long> held) throws IOException {
+    for (int ii = 0; ii < MAX_PROBES; ii++) {
+      int port;
+      try (ServerSocket socket = new ServerSocket()) {
+        socket.bind(new InetSocketAddress(0));
+        port = socket.getLocalPort();
+      }
+      if (!held.containsKey(port)) {
+        return port;
+      }
+    }
+    throw new IOException("No free port found after " + MAX_PROBES + " attempts");
+  }
+
+  /**
+   * @return the ports handed out by this JVM and the others that are still held
+   */
+  private static Map<Integer, Long> read(FileChannel channel, long now) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+    channel.read(buffer, 0);
+    Map<Integer, Long> held = new HashMap<>();
+    for (String line : new String(buffer.array(), StandardCharsets.US_ASCII).split("\n")) {
+      String[] fields = line.trim().split(" ");
+      if (fields.length != 2) {
+        continue;
+      }
+      try {
+        long expiry = Long.parseLong(fields[1]);
+        if (expiry > now) {
+          held.put(Integer.valueOf(fields[0]), expiry);
+        }
+      } catch (NumberFormatException e) {
+        logger.debug("Ignoring the line '" + line + "' of the port lock file");
+      }
+    }
+    return held;
+  }
+
+  private static void write(FileChannel channel, Map<Integer, Long> held) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (Map.Entry<Integer, Long> port : held.entrySet()) {
+      content.append(port.getKey()).append(' ').append(port.getValue()).append('\n');
+    }
+    channel.truncate(0);
+    channel.write(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.US_ASCII)), 0);
+  }
+}
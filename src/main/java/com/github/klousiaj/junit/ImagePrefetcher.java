@@ -0,0 +1,85 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>
+ * Process wide service making sure the images needed by the rules are available on the docker host.
+ * </p>
+ * <p>
+ * Images are fetched in the background so that building the rules does not block class
+ * initialization. Concurrent requests for the same image on the same docker host share a
+ * single future, so the image is inspected and pulled only once.
+ * </p>
+ */
+class ImagePrefetcher {
+  private static final Log logger = LogFactory.getLog(ImagePrefetcher.class);
+
+  private static final ImagePrefetcher INSTANCE = new ImagePrefetcher();
+
+  private final ConcurrentMap<String, ListenableFuture<Void>> inFlight = new ConcurrentHashMap<>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+    .setDaemon(true)
+    .setNameFormat("docker-junit-rule-image-%d")
+    .build());
+
+  static ImagePrefetcher getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Make sure the image is available on the docker host of the client, pulling it if needed.
+   *
+   * @param client    the client connected to the docker host
+   * @param imageName the image to fetch
+   * @return a future completing once the image is available
+   */
+  ListenableFuture<Void> prefetch(DockerClient client, String imageName) {
+    return prefetch(client, ImagePull.of(imageName));
+  }
+
+  /**
+   * Make sure the image is available on the docker host of the client, according to its pull policy.
+   * Only the pulls of the same image with the same policy, mirror and snapshot are shared.
+   *
+   * @param client the client connected to the docker host
+   * @param pull   the image to fetch and how
+   * @return a future completing once the image is available
+   */
+  ListenableFuture<Void> prefetch(final DockerClient client, final ImagePull pull) {
+    final String imageName = pull.imageName;
+    final String key = client.getHost() + "|" + pull.key();
+    final SettableFuture<Void> future = SettableFuture.create();
+    ListenableFuture<Void> existing = inFlight.putIfAbsent(key, future);
+    if (existing != null) {
+      logger.debug("Image " + imageName + " is already being fetched");
+      return existing;
+    }
+
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          pull.run(client);
+          // leave the map before completing so callers never see a finished future
+          inFlight.remove(key, future);
+          future.set(null);
+        } catch (Throwable t) {
+          inFlight.remove(key, future);
+          future.setException(t);
+        }
+      }
+    });
+    return future;
+  }
+}
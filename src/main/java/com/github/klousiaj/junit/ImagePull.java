@@ -0,0 +1,362 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.hash.Hashing;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.exceptions.ImagePullFailedException;
+import com.spotify.docker.client.messages.ImageInfo;
+import com.spotify.docker.client.messages.ProgressDetail;
+import com.spotify.docker.client.messages.ProgressMessage;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * <p>
+ * Makes an image available on the docker host according to its pull policy.
+ * </p>
+ * <p>
+ * The images of docker hub are pulled through the registry mirror when there is one, and
+ * tagged with their own name, falling back to docker hub when the mirror fails. Transient
+ * failures are retried with an exponential backoff until the pull timeout. The progress of the
+ * layers is logged every PROGRESS_INTERVAL_MILLIS, and each pulled layer is reported to the
+ * listeners of the rule as a LAYER event.
+ * </p>
+ * <p>
+ * Each pull is recorded in a file of the docker.junit.rule.pulls directory, the
+ * docker-junit-rule-pulls directory of the temporary directory by default, whose modification
+ * time is the time of the last pull of the image on the docker host. The if-older-than policy
+ * compares its age against it.
+ * </p>
+ */
+class ImagePull {
+  private static final Log logger = LogFactory.getLog(ImagePull.class);
+
+  static final String MIRROR_PROPERTY = "docker.junit.rule.mirror";
+  static final String PULLS_PROPERTY = "docker.junit.rule.pulls";
+  static final long DEFAULT_PULL_TIMEOUT = 10 * 60 * 1000;
+  static final int DEFAULT_PULL_ATTEMPTS = 3;
+  static final long PROGRESS_INTERVAL_MILLIS = 10000;
+  private static final long INITIAL_BACKOFF_MILLIS = 1000;
+  private static final long MAX_BACKOFF_MILLIS = 30000;
+
+  final String imageName;
+  private final PullPolicy policy;
+  private final String mirror;
+  private final long timeout;
+  private final int attempts;
+  private final RuleInstrumentation instrumentation;
+  // the rule whose snapshot makes the pull useless when it exists, null if there is none
+  private final DockerRuleParams snapshotOf;
+
+  ImagePull(String imageName, PullPolicy policy, String mirror, long timeout, int attempts,
+            RuleInstrumentation instrumentation) {
+    this(imageName, policy, mirror, timeout, attempts, instrumentation, null);
+  }
+
+  private ImagePull(String imageName, PullPolicy policy, String mirror, long timeout, int attempts,
+                    RuleInstrumentation instrumentation, DockerRuleParams snapshotOf) {
+    this.imageName = imageName;
+    this.policy = policy != null ? policy : PullPolicy.configured();
+    this.mirror = normalize(mirror != null ? mirror : System.getProperty(MIRROR_PROPERTY));
+    this.timeout = timeout;
+    this.attempts = Math.max(attempts, 1);
+    this.instrumentation = instrumentation;
+    this.snapshotOf = snapshotOf;
+  }
+
+  /**
+   * @param params          the parameters of the rule
+   * @param instrumentation the instrumentation of the rule, null if it has none
+   * @return the pull of the image of the rule, skipped when the rule starts from an existing snapshot
+   */
+  static ImagePull of(DockerRuleParams params, RuleInstrumentation instrumentation) {
+    return of(params, instrumentation, params.snapshotVersion != null);
+  }
+
+  /**
+   * @param params          the parameters of the rule
+   * @param instrumentation the instrumentation of the rule, null if it has none
+   * @param unlessSnapshot  true to skip the pull when the snapshot of the rule exists
+   * @return the pull of the image of the rule
+   */
+  static ImagePull of(DockerRuleParams params, RuleInstrumentation instrumentation, boolean unlessSnapshot) {
+    return new ImagePull(params.imageName, params.pullPolicy, params.registryMirror, params.pullTimeout,
+      params.pullAttempts, instrumentation, unlessSnapshot ? params : null);
+  }
+
+  /**
+   * @param imageName the image
+   * @return the pull of the image with the default settings
+   */
+  static ImagePull of(String imageName) {
+    return new ImagePull(imageName, null, null, DEFAULT_PULL_TIMEOUT, DEFAULT_PULL_ATTEMPTS, null);
+  }
+
+  /**
+   * @return what makes two pulls of the same image different
+   */
+  String key() {
+    return imageName + "|" + policy + "|" + mirror + (snapshotOf == null ? "" : "|" + snapshotOf.configKey());
+  }
+
+  /**
+   * @param mirror the host, and port, of a registry mirror, with or without scheme
+   * @return the host and port, null when there is no mirror
+   */
+  static String normalize(String mirror) {
+    if (mirror == null || mirror.trim().isEmpty()) {
+      return null;
+    }
+    return mirror.trim().replaceFirst("^[a-zA-Z]+://", "").replaceAll("/+$", "");
+  }
+
+  /**
+   * @param imageName an image
+   * @param mirror    the host of a registry mirror
+   * @return the name of the image on the mirror, the image itself when it is not on docker hub
+   */
+  static String mirrored(String imageName, String mirror) {
+    int slash = imageName.indexOf('/');
+    if (slash > 0) {
+      String registry = imageName.substring(0, slash);
+      if (registry.contains(".") || registry.contains(":") || "localhost".equals(registry)) {
+        return imageName;
+      }
+    }
+    return mirror + "/" + (slash < 0 ? "library/" + imageName : imageName);
+  }
+
+  /**
+   * @param client the client connected to the docker host
+   */
+  void run(DockerClient client) throws DockerException, InterruptedException {
+    if (snapshotOf != null) {
+      // hashing the files copied into the container is left to the background
+      String snapshot = WarmSnapshot.image(snapshotOf);
+      if (WarmSnapshot.exists(client, snapshot)) {
+        logger.debug("Not fetching the image " + imageName + ", the rule starts from the snapshot " + snapshot);
+        return;
+      }
+    }
+    boolean present;
+    Date created = null;
+    try {
+      ImageInfo local = client.inspectImage(imageName);
+      present = true;
+      created = local == null ? null : local.created();
+    } catch (ImageNotFoundException e) {
+      present = false;
+    }
+    if (!present && policy.isOffline()) {
+      throw new IllegalStateException("The image " + imageName + " is not available on the docker host"
+        + " and the pull policy is " + policy + ", pull it first");
+    }
+    Date pulled = lastPull(client);
+    if (!policy.shouldPull(present, pulled != null ? pulled : created, System.currentTimeMillis())) {
+      return;
+    }
+    logger.info(!present ? "Unable to find the image " + imageName + " locally, pulling it"
+      : "Pulling the image " + imageName + ", the pull policy is " + policy);
+
+    RuleInstrumentation.Phase phase = instrumentation == null ? null : instrumentation.begin("pull");
+    try {
+      pull(client, Deadline.limit(timeout));
+      recordPull(client);
+    } catch (DockerException e) {
+      if (!present || !policy.isLocalFallback()) {
+        throw phase == null ? e : phase.failed(e);
+      }
+      logger.warn("Unable to pull the image " + imageName + ", using the local copy", e);
+    } finally {
+      if (phase != null) {
+        phase.end();
+      }
+    }
+  }
+
+  /**
+   * @param client the client connected to the docker host
+   * @return when the rules of this host last pulled the image on the docker host, null if they never did
+   */
+  Date lastPull(DockerClient client) {
+    Path marker = pullMarker(client);
+    try {
+      return Files.exists(marker) ? new Date(Files.getLastModifiedTime(marker).toMillis()) : null;
+    } catch (IOException e) {
+      logger.debug("Unable to read the last pull of the image " + imageName, e);
+      return null;
+    }
+  }
+
+  private void recordPull(DockerClient client) {
+    Path marker = pullMarker(client);
+    try {
+      Files.createDirectories(marker.getParent());
+      Files.write(marker, imageName.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      logger.debug("Unable to record the pull of the image " + imageName, e);
+    }
+  }
+
+  private Path pullMarker(DockerClient client) {
+    String directory = System.getProperty(PULLS_PROPERTY);
+    Path pulls = directory == null || directory.trim().isEmpty()
+      ? Paths.get(System.getProperty("java.io.tmpdir"), "docker-junit-rule-pulls") : Paths.get(directory);
+    return pulls.resolve(Hashing.sha256()
+      .hashString(client.getHost() + "|" + imageName, StandardCharsets.UTF_8)
+      .toString().substring(0, 16));
+  }
+
+  private void pull(DockerClient client, Deadline deadline) throws DockerException, InterruptedException {
+    String mirrored = mirror == null ? imageName : mirrored(imageName, mirror);
+    if (!mirrored.equals(imageName)) {
+      try {
+        pullWithRetries(client, mirrored, deadline);
+        client.tag(mirrored, imageName);
+        return;
+      } catch (DockerException e) {
+        if (deadline.isExpired()) {
+          throw e;
+        }
+        logger.warn("Unable to pull the image " + imageName + " from the mirror " + mirror + ", pulling it from its registry", e);
+      }
+    }
+    pullWithRetries(client, imageName, deadline);
+  }
+
+  private void pullWithRetries(DockerClient client, String image, Deadline deadline)
+    throws DockerException, InterruptedException {
+    long backoff = INITIAL_BACKOFF_MILLIS;
+    for (int attempt = 1; ; attempt++) {
+      try {
+        client.pull(image, new Progress(image, deadline));
+        return;
+      } catch (DockerException e) {
+        if (attempt >= attempts || !isTransient(e) || deadline.remainingMillis() <= backoff) {
+          throw e;
+        }
+        logger.warn("Unable to pull the image " + image + " (attempt " + attempt + " of " + attempts
+          + "), retrying in " + backoff + "ms: " + e.getMessage());
+      }
+      Thread.sleep(backoff);
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+
+  /**
+   * @param e the failure of a pull
+   * @return false when pulling again can not help: the image does not exist or access is denied
+   */
+  static boolean isTransient(DockerException e) {
+    if (e instanceof ImageNotFoundException) {
+      return false;
+    }
+    String message = String.valueOf(e.getMessage()).toLowerCase(Locale.ROOT);
+    return !(message.contains("not found") || message.contains("unauthorized") || message.contains("denied"));
+  }
+
+  /**
+   * Logs the progress of the layers of a pull, and aborts it at its deadline.
+   */
+  private class Progress implements ProgressHandler {
+    private final String image;
+    private final Deadline deadline;
+    private final Map<String, Layer> layers = new LinkedHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private long lastReport = startNanos;
+
+    Progress(String image, Deadline deadline) {
+      this.image = image;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void progress(ProgressMessage message) throws DockerException {
+      // docker-client only reports the errors of the pulls without progress handler
+      String error = message.error();
+      if (error != null) {
+        if (error.contains("404") || error.contains("not found")) {
+          throw new ImageNotFoundException(image, error);
+        }
+        throw new ImagePullFailedException(image, error);
+      }
+      if (deadline.isExpired()) {
+        throw new DockerException("Pulling the image " + image + " took more than " + timeout + "ms");
+      }
+      String id = message.id();
+      String status = message.status();
+      if (id == null || status == null || id.equals(tag())) {
+        return;
+      }
+      Layer layer = layers.get(id);
+      if (layer == null) {
+        layer = new Layer();
+        layers.put(id, layer);
+      }
+      ProgressDetail detail = message.progressDetail();
+      if (status.startsWith("Downloading") && detail != null && detail.total() > 0) {
+        layer.current = detail.current();
+        layer.total = detail.total();
+      } else if (status.equals("Download complete")) {
+        layer.current = layer.total;
+      } else if ((status.equals("Pull complete") || status.equals("Already exists")) && !layer.done) {
+        layer.done = true;
+        layer.current = layer.total;
+        if (logger.isDebugEnabled()) {
+          logger.debug("Pulled the layer " + id + " of " + image + " (" + megabytes(layer.total) + " MB) in "
+            + (System.nanoTime() - layer.startNanos) / 1000000 + "ms");
+        }
+        if (instrumentation != null) {
+          instrumentation.layer(id, layer.timestamp, layer.startNanos);
+        }
+      }
+      long now = System.nanoTime();
+      if (now - lastReport >= PROGRESS_INTERVAL_MILLIS * 1000000) {
+        lastReport = now;
+        report(now);
+      }
+    }
+
+    private String tag() {
+      int colon = image.lastIndexOf(':');
+      return colon > image.lastIndexOf('/') ? image.substring(colon + 1) : "latest";
+    }
+
+    private void report(long now) {
+      long current = 0;
+      long total = 0;
+      int done = 0;
+      for (Layer layer : layers.values()) {
+        current += layer.current;
+        total += layer.total;
+        done += layer.done ? 1 : 0;
+      }
+      logger.info("Pulling the image " + image + ": " + megabytes(current) + " of " + megabytes(total) + " MB, "
+        + done + " of " + layers.size() + " layers, " + (now - startNanos) / 1000000000 + "s");
+    }
+  }
+
+  private static class Layer {
+    final long timestamp = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+    long current;
+    long total;
+    boolean done;
+  }
+
+  private static String megabytes(long bytes) {
+    return String.valueOf(Math.round(bytes / 100000.0) / 10.0);
+  }
+}
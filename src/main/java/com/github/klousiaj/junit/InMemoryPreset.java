@@ -0,0 +1,30 @@
+package com.github.klousiaj.junit;
+
+/**
+ * The data directories of common database images, to keep them in memory with
+ * DockerRuleBuilder#inMemory. The data does not survive the container.
+ *
+ * @see DockerRuleBuilder#inMemory(InMemoryPreset, String)
+ */
+public enum InMemoryPreset {
+  POSTGRES("/var/lib/postgresql/data"),
+  MYSQL("/var/lib/mysql"),
+  MARIADB("/var/lib/mysql"),
+  MONGO("/data/db", "/data/configdb"),
+  REDIS("/data"),
+  ELASTICSEARCH("/usr/share/elasticsearch/data"),
+  CASSANDRA("/var/lib/cassandra");
+
+  private final String[] paths;
+
+  InMemoryPreset(String... paths) {
+    this.paths = paths;
+  }
+
+  /**
+   * @return the directories written by the database
+   */
+  public String[] paths() {
+    return paths.clone();
+  }
+}
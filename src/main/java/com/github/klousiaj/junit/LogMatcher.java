@@ -0,0 +1,198 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.LogMessage;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * <p>
+ * Incrementally matches the frames of a container log against a set of LogPatterns.
+ * </p>
+ * <p>
+ * The frames are decoded in place from their ByteBuffer into a reusable line buffer, one per
+ * stream, so that lines and multi-byte characters split across frames are reassembled and
+ * stdout and stderr never get mixed. Patterns are matched once per complete line. The last,
+ * incomplete line is also considered, without being counted twice once it is completed.
+ * </p>
+ * <p>
+ * Instances are not thread safe.
+ * </p>
+ */
+class LogMatcher {
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  private final List<LogPattern> patterns;
+  private final Matcher[] matchers;
+  private final int[] counts;
+  private final Map<LogMessage.Stream, LineDecoder> decoders = new EnumMap<>(LogMessage.Stream.class);
+
+  LogMatcher(List<LogPattern> patterns) {
+    this.patterns = new ArrayList<>(patterns);
+    this.matchers = new Matcher[patterns.size()];
+    this.counts = new int[patterns.size()];
+    for (int ii = 0; ii < this.patterns.size(); ii++) {
+      LogPattern pattern = this.patterns.get(ii);
+      if (pattern.regex != null) {
+        matchers[ii] = pattern.regex.matcher("");
+      }
+    }
+  }
+
+  /**
+   * @param message the next frame of the log
+   * @return true once every pattern has been found often enough
+   */
+  boolean feed(LogMessage message) {
+    return feed(message.stream(), message.content());
+  }
+
+  /**
+   * @param stream  the stream the frame belongs to
+   * @param content the content of the frame. It is consumed by this method
+   * @return true once every pattern has been found often enough
+   */
+  boolean feed(LogMessage.Stream stream, ByteBuffer content) {
+    LineDecoder decoder = decoders.get(stream);
+    if (decoder == null) {
+      decoder = new LineDecoder();
+      decoders.put(stream, decoder);
+    }
+    decoder.decode(content);
+    return isSatisfied();
+  }
+
+  /**
+   * Count the incomplete lines as complete, the log has ended.
+   *
+   * @return true if every pattern has been found often enough
+   */
+  boolean finish() {
+    for (LineDecoder decoder : decoders.values()) {
+      if (decoder.line.length() > 0) {
+        decoder.completeLine();
+      }
+    }
+    return isSatisfied();
+  }
+
+  boolean isSatisfied() {
+    for (int ii = 0; ii < patterns.size(); ii++) {
+      int found = counts[ii];
+      if (found < patterns.get(ii).occurrences) {
+        for (LineDecoder decoder : decoders.values()) {
+          found += count(ii, decoder.line);
+        }
+        if (found < patterns.get(ii).occurrences) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the patterns that have not been found often enough yet
+   */
+  List<LogPattern> missing() {
+    List<LogPattern> missing = new ArrayList<>();
+    for (int ii = 0; ii < patterns.size(); ii++) {
+      if (counts[ii] < patterns.get(ii).occurrences) {
+        missing.add(patterns.get(ii));
+      }
+    }
+    return missing;
+  }
+
+  private int count(int index, StringBuilder line) {
+    if (line.length() == 0) {
+      return 0;
+    }
+    int found = 0;
+    Matcher matcher = matchers[index];
+    if (matcher != null) {
+      matcher.reset(line);
+      while (matcher.find()) {
+        found++;
+      }
+      // do not hold on to the line buffer
+      matcher.reset("");
+    } else {
+      String literal = patterns.get(index).literal;
+      int from = line.indexOf(literal);
+      while (from >= 0) {
+        found++;
+        from = line.indexOf(literal, from + literal.length());
+      }
+    }
+    return found;
+  }
+
+  private void matchLine(StringBuilder line) {
+    for (int ii = 0; ii < patterns.size(); ii++) {
+      if (counts[ii] < patterns.get(ii).occurrences) {
+        counts[ii] += count(ii, line);
+      }
+    }
+  }
+
+  /**
+   * Decodes the frames of one stream into lines.
+   */
+  private class LineDecoder {
+    final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharBuffer chars = CharBuffer.allocate(8192);
+    // the bytes of a character split across two frames
+    final ByteBuffer carry = ByteBuffer.allocate(8);
+    final StringBuilder line = new StringBuilder();
+
+    void decode(ByteBuffer content) {
+      while (carry.position() > 0 && content.hasRemaining()) {
+        carry.put(content.get());
+        carry.flip();
+        decodeAvailable(carry);
+        carry.compact();
+      }
+      decodeAvailable(content);
+      if (content.hasRemaining()) {
+        carry.put(content);
+      }
+    }
+
+    private void decodeAvailable(ByteBuffer bytes) {
+      CoderResult result;
+      do {
+        result = decoder.decode(bytes, chars, false);
+        chars.flip();
+        while (chars.hasRemaining()) {
+          char next = chars.get();
+          if (next == '\n') {
+            completeLine();
+          } else {
+            line.append(next);
+            if (line.length() >= MAX_LINE_LENGTH) {
+              completeLine();
+            }
+          }
+        }
+        chars.clear();
+      } while (result.isOverflow());
+    }
+
+    void completeLine() {
+      matchLine(line);
+      line.setLength(0);
+    }
+  }
+}
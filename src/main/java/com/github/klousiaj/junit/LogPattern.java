@@ -0,0 +1,43 @@
+package com.github.klousiaj.junit;
+
+import java.util.regex.Pattern;
+
+/**
+ * A message expected in the logs of a container, either a literal string or a regular
+ * expression, together with the number of times it must appear.
+ */
+final class LogPattern {
+  final String literal;
+  final Pattern regex;
+  final int occurrences;
+
+  private LogPattern(String literal, Pattern regex, int occurrences) {
+    if (occurrences < 1) {
+      throw new IllegalArgumentException("The number of occurrences must be at least 1, was " + occurrences);
+    }
+    this.literal = literal;
+    this.regex = regex;
+    this.occurrences = occurrences;
+  }
+
+  static LogPattern literal(String literal, int occurrences) {
+    if (literal == null || literal.isEmpty()) {
+      throw new IllegalArgumentException("The log message to wait for must not be empty");
+    }
+    if (literal.indexOf('\n') >= 0 || literal.indexOf('\r') >= 0) {
+      // the logs are matched line by line
+      throw new IllegalArgumentException("The log message to wait for must be a single line, was " + literal);
+    }
+    return new LogPattern(literal, null, occurrences);
+  }
+
+  static LogPattern regex(String regex, int occurrences) {
+    return new LogPattern(null, Pattern.compile(regex), occurrences);
+  }
+
+  @Override
+  public String toString() {
+    String description = literal != null ? "\"" + literal + "\"" : "/" + regex.pattern() + "/";
+    return occurrences == 1 ? description : description + " x" + occurrences;
+  }
+}
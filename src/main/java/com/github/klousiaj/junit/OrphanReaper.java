@@ -0,0 +1,394 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.ContainerNotFoundException;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.Container;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Removes the containers left behind by earlier test JVMs, the sessions.
+ * </p>
+ * <p>
+ * Every container created by a rule is labelled with the session that created it, and with
+ * whether it was meant to be left running. The rules of this host also record the last time,
+ * and the session, that used each container, in the docker-junit-rule-uses directory of the
+ * temporary directory. A container is an orphan when its session was a JVM of this host that
+ * is no longer running and it was not meant to be left running, or when it has not been used
+ * for the time to live, docker.junit.rule.reaper.ttl milliseconds, 24 hours by default and 0
+ * to keep them. A container is kept while the session that created it or last used it is
+ * running, and while a JVM holds its lease when it is shared across JVMs. The orphans are
+ * removed with their anonymous volumes, when the first rule of the session uses a daemon and
+ * then every 10 minutes, in the background.
+ * </p>
+ * <p>
+ * A session is only known to be dead when it was a JVM of this host and of the same pid
+ * namespace, and its pid is gone or was given to a process started after it. The sessions that
+ * can not be verified are taken to be running.
+ * </p>
+ * <p>
+ * Set the docker.junit.rule.reaper system property to false to keep every container.
+ * </p>
+ */
+class OrphanReaper {
+  private static final Log logger = LogFactory.getLog(OrphanReaper.class);
+
+  static final String SESSION_LABEL = "com.github.klousiaj.session";
+  static final String LEAVE_RUNNING_LABEL = "com.github.klousiaj.leaveRunning";
+  static final String ENABLED_PROPERTY = "docker.junit.rule.reaper";
+  static final String TTL_PROPERTY = "docker.junit.rule.reaper.ttl";
+  static final long DEFAULT_TTL = 24 * 60 * 60 * 1000;
+  static final long INTERVAL = 10 * 60 * 1000;
+  static final int PARALLELISM = 4;
+  static final Path USES = Paths.get(System.getProperty("java.io.tmpdir"), "docker-junit-rule-uses");
+
+  // the clock ticks of /proc/[pid]/stat, and how far the start of a process may be from the start of its JVM
+  private static final long CLOCK_TICKS_PER_SECOND = 100;
+  private static final long START_TOLERANCE_MILLIS = 10000;
+  private static final Pattern BOOT_TIME = Pattern.compile("(?m)^btime ([0-9]+)$");
+  private static final Pattern PID_NAMESPACE = Pattern.compile("pid:\\[([0-9]+)\\]");
+
+  private enum Liveness {
+    RUNNING, DEAD, UNKNOWN
+  }
+
+  /**
+   * The session of this JVM: its pid, its host and its start time.
+   */
+  static final String SESSION = session();
+
+  // true when the start times of the processes of this host can be compared to the start times of the sessions
+  static final boolean START_TIMES = startTimesMatch();
+
+  private static final Map<DockerClient, OrphanReaper> reapers = new IdentityHashMap<>();
+  private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("docker-junit-rule-orphans-%d")
+      .build());
+  private static final ExecutorService REMOVER = Executors.newFixedThreadPool(PARALLELISM,
+    new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("docker-junit-rule-orphan-removal-%d")
+      .build());
+
+  private final DockerClient client;
+  private final long ttl;
+  private final Path uses;
+  private ScheduledFuture<?> sweeps;
+
+  OrphanReaper(DockerClient client, long ttl) {
+    this(client, ttl, USES);
+  }
+
+  OrphanReaper(DockerClient client, long ttl, Path uses) {
+    this.client = client;
+    this.ttl = ttl;
+    this.uses = uses;
+  }
+
+  /**
+   * Start sweeping the daemon of the client, once per client.
+   *
+   * @param client the docker client
+   */
+  static void startFor(DockerClient client) {
+    if ("false".equalsIgnoreCase(System.getProperty(ENABLED_PROPERTY))) {
+      return;
+    }
+    synchronized (reapers) {
+      if (reapers.containsKey(client)) {
+        return;
+      }
+      final OrphanReaper reaper = new OrphanReaper(client, ttl());
+      reaper.sweeps = SWEEPER.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          reaper.sweep();
+        }
+      }, 0, INTERVAL, TimeUnit.MILLISECONDS);
+      reapers.put(client, reaper);
+    }
+  }
+
+  /**
+   * Stop sweeping with a client that is being closed.
+   *
+   * @param client the docker client
+   */
+  static void discard(DockerClient client) {
+    OrphanReaper reaper;
+    synchronized (reapers) {
+      reaper = reapers.remove(client);
+    }
+    if (reaper != null) {
+      reaper.sweeps.cancel(false);
+    }
+  }
+
+  /**
+   * @param labels  the labels of the rule, may be null
+   * @param leaveRunning whether the container is left running after the tests
+   * @return the labels of the rule and the labels of the session
+   */
+  static Map<String, String> sessionLabels(Map<String, String> labels, boolean leaveRunning) {
+    Map<String, String> all = labels == null ? new HashMap<String, String>() : new HashMap<>(labels);
+    // both are always set, a snapshot image carries the labels of the container it was committed from
+    all.put(SESSION_LABEL, SESSION);
+    all.put(LEAVE_RUNNING_LABEL, String.valueOf(leaveRunning));
+    return all;
+  }
+
+  /**
+   * Record that this session uses a container, which is idle from now on.
+   *
+   * @param containerId the container
+   */
+  static void used(String containerId) {
+    used(USES, containerId);
+  }
+
+  static void used(Path uses, String containerId) {
+    try {
+      Files.createDirectories(uses);
+      Files.write(uses.resolve(containerId), SESSION.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      logger.debug("Unable to record the use of the container " + containerId, e);
+    }
+  }
+
+  private void sweep() {
+    try {
+      int removed = reap(System.currentTimeMillis());
+      if (removed > 0) {
+        logger.info("Removed " + removed + " containers left behind by earlier test runs");
+      }
+    } catch (DockerException | RuntimeException e) {
+      logger.debug("Unable to look for the containers left behind by earlier test runs", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Remove the orphans, in parallel.
+   *
+   * @param now the current time in milliseconds
+   * @return the number of containers removed
+   */
+  int reap(long now) throws DockerException, InterruptedException {
+    List<Container> containers = client.listContainers(DockerClient.ListContainersParam.allContainers(),
+      DockerClient.ListContainersParam.withLabel(DockerRuleBuilder.DEFAULT_LABEL_KEY, DockerRuleBuilder.DEFAULT_LABEL_VALUE));
+    List<Future<Boolean>> removals = new ArrayList<>();
+    for (final String id : orphans(containers, now)) {
+      removals.add(REMOVER.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          try {
+            client.removeContainer(id, DockerClient.RemoveContainerParam.forceKill(),
+              DockerClient.RemoveContainerParam.removeVolumes());
+            return true;
+          } catch (ContainerNotFoundException e) {
+            return false;
+          } finally {
+            Files.deleteIfExists(uses.resolve(id));
+          }
+        }
+      }));
+    }
+    int removed = 0;
+    for (Future<Boolean> removal : removals) {
+      try {
+        if (removal.get()) {
+          removed++;
+        }
+      } catch (ExecutionException e) {
+        logger.debug("Unable to remove a container left behind by an earlier test run", e.getCause());
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @param containers the containers created by the rules
+   * @param now        the current time in milliseconds
+   * @return the ids of the orphans
+   */
+  List<String> orphans(List<Container> containers, long now) {
+    List<String> orphans = new ArrayList<>();
+    for (Container container : containers) {
+      Map<String, String> labels = container.labels();
+      String session = labels == null ? null : labels.get(SESSION_LABEL);
+      if (SESSION.equals(session)) {
+        continue;
+      }
+      boolean leaveRunning = labels != null && "true".equals(labels.get(LEAVE_RUNNING_LABEL));
+      String lease = labels == null ? null : labels.get(ContainerLease.LEASE_LABEL);
+      if (lease != null && ContainerLease.isHeld(lease)) {
+        // another JVM still uses it
+        continue;
+      }
+      String user = null;
+      long lastUse = container.created() == null ? now : container.created() * 1000;
+      Path use = uses.resolve(container.id());
+      try {
+        if (Files.exists(use)) {
+          user = new String(Files.readAllBytes(use), StandardCharsets.UTF_8).trim();
+          lastUse = Math.max(lastUse, Files.getLastModifiedTime(use).toMillis());
+        }
+      } catch (IOException e) {
+        logger.debug("Unable to read the last use of the container " + container.id(), e);
+        continue;
+      }
+      if ((session != null && isRunning(session)) || (user != null && isRunning(user))) {
+        // a running JVM created it or uses it
+        continue;
+      }
+      boolean expired = ttl > 0 && now - lastUse > ttl;
+      if (expired || (!leaveRunning && session != null && isDead(session))) {
+        orphans.add(container.id());
+      }
+    }
+    return orphans;
+  }
+
+  /**
+   * @param session the session of a container
+   * @return true when the session was a JVM of this host that is no longer running. The
+   * sessions of other hosts, other pid namespaces, or of hosts without /proc, are not known
+   * to be dead
+   */
+  static boolean isDead(String session) {
+    return liveness(session) == Liveness.DEAD;
+  }
+
+  /**
+   * @param session the session of a container
+   * @return true when the session is this JVM, or a JVM of this host that is still running
+   * or can not be told apart from the process that has its pid now
+   */
+  static boolean isRunning(String session) {
+    return liveness(session) == Liveness.RUNNING;
+  }
+
+  private static Liveness liveness(String session) {
+    if (session.equals(SESSION)) {
+      return Liveness.RUNNING;
+    }
+    int at = session.indexOf('@');
+    int colon = session.lastIndexOf(':');
+    if (at <= 0 || colon <= at) {
+      return Liveness.UNKNOWN;
+    }
+    String host = session.substring(at + 1, colon);
+    // without its pid namespace, a pid may belong to a JVM this one can not see
+    if (!host.equals(host(SESSION)) || host.indexOf('#') < 0 || !new File("/proc/self").exists()) {
+      return Liveness.UNKNOWN;
+    }
+    String pid = session.substring(0, at);
+    if (!new File("/proc/" + pid).exists()) {
+      return Liveness.DEAD;
+    }
+    long started = START_TIMES ? processStart(pid) : -1;
+    long sessionStart;
+    try {
+      sessionStart = Long.parseLong(session.substring(colon + 1));
+    } catch (NumberFormatException e) {
+      return Liveness.RUNNING;
+    }
+    if (started >= 0 && started > sessionStart + START_TOLERANCE_MILLIS) {
+      // the pid was given to another process after the JVM exited
+      return Liveness.DEAD;
+    }
+    return Liveness.RUNNING;
+  }
+
+  /**
+   * @param pid a process of this host, or self
+   * @return when the process started, in milliseconds since the epoch, -1 if unknown
+   */
+  private static long processStart(String pid) {
+    try {
+      String stat = new String(Files.readAllBytes(Paths.get("/proc", pid, "stat")), StandardCharsets.UTF_8);
+      // the command, between parentheses, may contain spaces: the fields are counted from the state
+      String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+      long ticks = Long.parseLong(fields[19]);
+      Matcher boot = BOOT_TIME.matcher(new String(Files.readAllBytes(Paths.get("/proc/stat")), StandardCharsets.UTF_8));
+      if (!boot.find()) {
+        return -1;
+      }
+      return Long.parseLong(boot.group(1)) * 1000 + ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+    } catch (IOException | RuntimeException e) {
+      logger.debug("Unable to read the start time of the process " + pid, e);
+      return -1;
+    }
+  }
+
+  private static boolean startTimesMatch() {
+    long started = processStart("self");
+    return started >= 0
+      && Math.abs(ManagementFactory.getRuntimeMXBean().getStartTime() - started) <= START_TOLERANCE_MILLIS;
+  }
+
+  private static String host(String session) {
+    return session.substring(session.indexOf('@') + 1, session.lastIndexOf(':'));
+  }
+
+  private static long ttl() {
+    String value = System.getProperty(TTL_PROPERTY);
+    if (value == null || value.trim().isEmpty()) {
+      return DEFAULT_TTL;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      logger.warn("Ignoring " + TTL_PROPERTY + "=" + value + ", it is not a number");
+      return DEFAULT_TTL;
+    }
+  }
+
+  private static String session() {
+    RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    // pid@host#pid namespace, then the start time tells apart the JVMs that got the same pid
+    String name = runtime.getName();
+    String namespace = pidNamespace();
+    return (name.indexOf('@') > 0 ? name : "0@" + name) + (namespace == null ? "" : "#" + namespace)
+      + ":" + runtime.getStartTime();
+  }
+
+  private static String pidNamespace() {
+    try {
+      Matcher namespace = PID_NAMESPACE.matcher(Files.readSymbolicLink(Paths.get("/proc/self/ns/pid")).toString());
+      return namespace.matches() ? namespace.group(1) : null;
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+}
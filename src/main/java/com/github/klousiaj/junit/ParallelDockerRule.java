@@ -0,0 +1,152 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.junit.rules.ExternalResource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * JUnit rule starting several DockerRules concurrently and stopping all of them afterwards.
+ * </p>
+ * <p>
+ * If any of the rules fails to start, the rules that are still starting are interrupted,
+ * every rule that did start is stopped and the first failure is rethrown.
+ * </p>
+ * <pre>
+ * {@code
+ * @ClassRule
+ * public static ParallelDockerRule containers = DockerRule.parallel(rabbitRule, mongoRule);
+ * }
+ * </pre>
+ */
+public class ParallelDockerRule extends ExternalResource {
+  private static final Log logger = LogFactory.getLog(ParallelDockerRule.class);
+  private static final long CANCEL_TIMEOUT_SECONDS = 30;
+
+  private final List<DockerRule> rules;
+  private final List<DockerRule> started = Collections.synchronizedList(new ArrayList<DockerRule>());
+
+  ParallelDockerRule(DockerRule... rules) {
+    if (rules == null || rules.length == 0) {
+      throw new IllegalArgumentException("At least one rule is required");
+    }
+    this.rules = Arrays.asList(rules);
+  }
+
+  @Override
+  protected void before() throws Throwable {
+    super.before();
+    this.start();
+  }
+
+  /**
+   * Start all of the rules concurrently and wait for every one of them to be ready.
+   *
+   * @throws Throwable the first failure raised by one of the rules
+   */
+  public void start() throws Throwable {
+    ExecutorService executor = Executors.newFixedThreadPool(rules.size(), new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("docker-junit-rule-parallel-%d")
+      .build());
+    CompletionService<DockerRule> completion = new ExecutorCompletionService<>(executor);
+    for (final DockerRule rule : rules) {
+      completion.submit(new Callable<DockerRule>() {
+        @Override
+        public DockerRule call() throws Exception {
+          try {
+            rule.start();
+          } catch (Exception | Error e) {
+            throw e;
+          } catch (Throwable t) {
+            throw new StartFailure(t);
+          }
+          started.add(rule);
+          return rule;
+        }
+      });
+    }
+
+    Throwable failure = null;
+    try {
+      for (int ii = 0; ii < rules.size() && failure == null; ii++) {
+        try {
+          completion.take().get();
+        } catch (ExecutionException e) {
+          failure = StartFailure.unwrap(e);
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = e;
+    } finally {
+      executor.shutdownNow();
+    }
+
+    if (failure != null) {
+      // wait for the interrupted rules to clean up after themselves before stopping the others
+      if (!executor.awaitTermination(CANCEL_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        logger.warn("Some containers did not stop starting within " + CANCEL_TIMEOUT_SECONDS + " seconds");
+      }
+      try {
+        stop();
+      } catch (RuntimeException e) {
+        failure.addSuppressed(e);
+      }
+      throw failure;
+    }
+  }
+
+  @Override
+  protected void after() {
+    super.after();
+    this.stop();
+  }
+
+  /**
+   * Stop every rule that was started, in the reverse order of their startup.
+   */
+  public void stop() {
+    List<DockerRule> toStop;
+    synchronized (started) {
+      toStop = new ArrayList<>(started);
+      started.clear();
+    }
+    Collections.reverse(toStop);
+
+    RuntimeException failure = null;
+    for (DockerRule rule : toStop) {
+      try {
+        rule.stop();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return the rules combined by this rule
+   */
+  public List<DockerRule> getRules() {
+    return Collections.unmodifiableList(rules);
+  }
+}
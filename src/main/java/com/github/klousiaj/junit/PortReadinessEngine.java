@@ -0,0 +1,259 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Waits for ports to accept connections.
+ * </p>
+ * <p>
+ * A single thread drives every wait in the JVM with non-blocking connects on one Selector.
+ * A refused or timed out connection attempt is retried with an exponential backoff until
+ * the deadline of the wait expires. Every channel is closed as soon as its attempt is over.
+ * </p>
+ */
+class PortReadinessEngine {
+  private static final Log logger = LogFactory.getLog(PortReadinessEngine.class);
+
+  static final long INITIAL_BACKOFF_MILLIS = 10;
+  static final long MAX_BACKOFF_MILLIS = 500;
+  static final long ATTEMPT_TIMEOUT_MILLIS = 1000;
+
+  private static final PortReadinessEngine INSTANCE = new PortReadinessEngine();
+
+  private final Queue<Probe> submitted = new ConcurrentLinkedQueue<>();
+  private final PriorityQueue<Probe> scheduled = new PriorityQueue<>(16, new Comparator<Probe>() {
+    @Override
+    public int compare(Probe first, Probe second) {
+      return Long.compare(first.nextAttempt - second.nextAttempt, 0);
+    }
+  });
+  private Selector selector;
+
+  static PortReadinessEngine getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param address  the address to connect to
+   * @param deadline the time at which to give up
+   * @return a future completing when a connection to the address succeeded, or failing with
+   * an IllegalStateException when the deadline expired first
+   */
+  ListenableFuture<Void> await(InetSocketAddress address, Deadline deadline) {
+    Probe probe = new Probe(address, deadline);
+    submitted.add(probe);
+    probe.future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        // let the selector thread clean up cancelled probes right away
+        wakeup();
+      }
+    }, MoreExecutors.directExecutor());
+    ensureStarted().wakeup();
+    return probe.future;
+  }
+
+  /**
+   * @param addresses the addresses to connect to
+   * @param deadline  the time at which to give up
+   * @return a future completing when every address accepted a connection
+   */
+  ListenableFuture<List<Void>> awaitAll(Collection<InetSocketAddress> addresses, Deadline deadline) {
+    List<ListenableFuture<Void>> futures = new ArrayList<>();
+    for (InetSocketAddress address : addresses) {
+      futures.add(await(address, deadline));
+    }
+    return Futures.allAsList(futures);
+  }
+
+  private synchronized Selector ensureStarted() {
+    if (selector == null) {
+      try {
+        selector = Selector.open();
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to open a selector", e);
+      }
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          loop();
+        }
+      }, "docker-junit-rule-ports");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return selector;
+  }
+
+  private synchronized void wakeup() {
+    if (selector != null) {
+      selector.wakeup();
+    }
+  }
+
+  private void loop() {
+    while (true) {
+      try {
+        poll();
+      } catch (IOException | RuntimeException e) {
+        logger.error("Unexpected failure while waiting for ports", e);
+      }
+    }
+  }
+
+  private void poll() throws IOException {
+    Probe probe;
+    while ((probe = submitted.poll()) != null) {
+      probe.nextAttempt = System.nanoTime();
+      scheduled.add(probe);
+    }
+
+    long now = System.nanoTime();
+    while (!scheduled.isEmpty() && scheduled.peek().nextAttempt - now <= 0) {
+      connect(scheduled.poll(), now);
+    }
+
+    long nextWakeup = Long.MAX_VALUE;
+    if (!scheduled.isEmpty()) {
+      nextWakeup = scheduled.peek().nextAttempt;
+    }
+    for (SelectionKey key : selector.keys()) {
+      if (!key.isValid()) {
+        continue;
+      }
+      Probe connecting = (Probe) key.attachment();
+      if (connecting.future.isDone()) {
+        connecting.close();
+      } else if (connecting.attemptEnd - now <= 0) {
+        retry(connecting, now);
+      } else if (nextWakeup == Long.MAX_VALUE || connecting.attemptEnd - nextWakeup < 0) {
+        nextWakeup = connecting.attemptEnd;
+      }
+    }
+
+    if (nextWakeup == Long.MAX_VALUE) {
+      selector.select();
+    } else {
+      long timeout = TimeUnit.NANOSECONDS.toMillis(nextWakeup - System.nanoTime());
+      selector.select(Math.max(1, timeout));
+    }
+
+    now = System.nanoTime();
+    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+    while (selected.hasNext()) {
+      SelectionKey key = selected.next();
+      selected.remove();
+      if (!key.isValid()) {
+        continue;
+      }
+      Probe connecting = (Probe) key.attachment();
+      try {
+        if (connecting.channel.finishConnect()) {
+          connecting.close();
+          connecting.future.set(null);
+        }
+      } catch (IOException e) {
+        retry(connecting, now);
+      }
+    }
+  }
+
+  private void connect(Probe probe, long now) {
+    if (probe.future.isDone()) {
+      return;
+    }
+    // a deadline that expired before the wait began still gets one attempt
+    if (probe.probed && probe.deadline.isExpired()) {
+      fail(probe);
+      return;
+    }
+    try {
+      probe.channel = SocketChannel.open();
+      probe.channel.configureBlocking(false);
+      if (probe.channel.connect(probe.address)) {
+        probe.close();
+        probe.future.set(null);
+        return;
+      }
+      long attempt = TimeUnit.MILLISECONDS.toNanos(ATTEMPT_TIMEOUT_MILLIS);
+      if (!probe.deadline.isExpired()) {
+        attempt = Math.min(attempt, probe.deadline.remainingNanos());
+      }
+      probe.attemptEnd = now + attempt;
+      probe.probed = true;
+      probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+    } catch (UnresolvedAddressException e) {
+      probe.close();
+      probe.future.setException(new IllegalStateException("Unable to resolve " + probe.address, e));
+    } catch (IOException e) {
+      retry(probe, now);
+    }
+  }
+
+  private void retry(Probe probe, long now) {
+    probe.close();
+    if (probe.deadline.isExpired()) {
+      fail(probe);
+      return;
+    }
+    long backoff = Math.min(TimeUnit.MILLISECONDS.toNanos(probe.backoffMillis), probe.deadline.remainingNanos());
+    probe.backoffMillis = Math.min(probe.backoffMillis * 2, MAX_BACKOFF_MILLIS);
+    probe.nextAttempt = now + backoff;
+    scheduled.add(probe);
+  }
+
+  private void fail(Probe probe) {
+    probe.close();
+    probe.future.setException(new IllegalStateException("Timeout while waiting for port " + probe.address.getPort()));
+  }
+
+  private static class Probe {
+    final InetSocketAddress address;
+    final Deadline deadline;
+    final SettableFuture<Void> future = SettableFuture.create();
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    long nextAttempt;
+    long attemptEnd;
+    boolean probed;
+    SocketChannel channel;
+
+    Probe(InetSocketAddress address, Deadline deadline) {
+      this.address = address;
+      this.deadline = deadline;
+    }
+
+    void close() {
+      if (channel != null) {
+        try {
+          // closing the channel also cancels its selection key
+          channel.close();
+        } catch (IOException e) {
+          logger.debug("Unable to close the channel to " + address, e);
+        }
+        channel = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.messages.PortBinding;
+import org.apache.commons.lang.StringUtils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * The host ports of a container by container port, as in "6379/tcp".
+ * </p>
+ * <p>
+ * Immutable. The host ports are parsed once, so that a lookup neither parses nor allocates.
+ * </p>
+ */
+final class PortTable {
+  static final PortTable EMPTY = new PortTable(new String[0], new int[0]);
+
+  private final String[] containerPorts;
+  private final int[] hostPorts;
+
+  private PortTable(String[] containerPorts, int[] hostPorts) {
+    this.containerPorts = containerPorts;
+    this.hostPorts = hostPorts;
+  }
+
+  /**
+   * @param bindings the port bindings of a container, by container port with or without protocol
+   * @return the published ports of the bindings, a binding without host port is left out
+   */
+  static PortTable of(Map<String, List<PortBinding>> bindings) {
+    if (bindings == null || bindings.isEmpty()) {
+      return EMPTY;
+    }
+    String[] containerPorts = new String[bindings.size()];
+    int[] hostPorts = new int[bindings.size()];
+    int size = 0;
+    for (Map.Entry<String, List<PortBinding>> binding : bindings.entrySet()) {
+      String hostPort = hostPort(binding.getValue());
+      if (hostPort != null) {
+        String containerPort = binding.getKey();
+        containerPorts[size] = containerPort.indexOf('/') < 0 ? containerPort + "/tcp" : containerPort;
+        hostPorts[size] = Integer.parseInt(hostPort);
+        size++;
+      }
+    }
+    if (size < containerPorts.length) {
+      String[] trimmedPorts = new String[size];
+      int[] trimmedHostPorts = new int[size];
+      System.arraycopy(containerPorts, 0, trimmedPorts, 0, size);
+      System.arraycopy(hostPorts, 0, trimmedHostPorts, 0, size);
+      return new PortTable(trimmedPorts, trimmedHostPorts);
+    }
+    return new PortTable(containerPorts, hostPorts);
+  }
+
+  /**
+   * @param bindings the port bindings of a container
+   * @return true when every container port has a host port, which is then known before the
+   * container starts
+   */
+  static boolean isResolved(Map<String, List<PortBinding>> bindings) {
+    for (List<PortBinding> binding : bindings.values()) {
+      if (hostPort(binding) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String hostPort(List<PortBinding> binding) {
+    if (binding == null || binding.isEmpty() || StringUtils.isEmpty(binding.get(0).hostPort())) {
+      return null;
+    }
+    return binding.get(0).hostPort();
+  }
+
+  /**
+   * @param containerPort the container port, as in "6379/tcp"
+   * @return the host port, -1 if the port is not published
+   */
+  int hostPort(String containerPort) {
+    for (int ii = 0; ii < containerPorts.length; ii++) {
+      if (containerPorts[ii].equals(containerPort)) {
+        return hostPorts[ii];
+      }
+    }
+    return -1;
+  }
+
+  int size() {
+    return containerPorts.length;
+  }
+}
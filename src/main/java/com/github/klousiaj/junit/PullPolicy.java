@@ -0,0 +1,160 @@
+package com.github.klousiaj.junit;
+
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * When the image of a rule is pulled from its registry.
+ * </p>
+ * <p>
+ * The rules without a policy use the one of the docker.junit.rule.pull system property:
+ * always, if-missing, never (or offline) or if-older-than:&lt;duration&gt; with a duration
+ * such as 500ms, 30s, 10m, 12h or 7d. The default is if-missing.
+ * </p>
+ */
+public final class PullPolicy {
+  static final String POLICY_PROPERTY = "docker.junit.rule.pull";
+
+  private static final Pattern DURATION = Pattern.compile("([0-9]+)(ms|s|m|h|d)");
+
+  private static final PullPolicy ALWAYS = new PullPolicy("always", 0);
+  private static final PullPolicy IF_MISSING = new PullPolicy("if-missing", -1);
+  private static final PullPolicy NEVER = new PullPolicy("never", -1);
+
+  private final String name;
+  private final long maxAge;
+
+  private PullPolicy(String name, long maxAge) {
+    this.name = name;
+    this.maxAge = maxAge;
+  }
+
+  /**
+   * @return a policy pulling the image every time, to pick up the latest push of a tag
+   */
+  public static PullPolicy always() {
+    return ALWAYS;
+  }
+
+  /**
+   * @return a policy pulling the image only when there is no local copy, the default
+   */
+  public static PullPolicy ifMissing() {
+    return IF_MISSING;
+  }
+
+  /**
+   * Pull the image when there is no local copy, or when the rules of this host last pulled it
+   * more than maxAgeInMillis ago. An image they never pulled is pulled when it was built more
+   * than maxAgeInMillis ago. A failed pull then falls back to the local copy.
+   *
+   * @param maxAgeInMillis the time since the last pull of the local image after which it is pulled again
+   * @return the policy
+   */
+  public static PullPolicy ifOlderThan(long maxAgeInMillis) {
+    if (maxAgeInMillis < 0) {
+      throw new IllegalArgumentException("The age of the image must not be negative, was " + maxAgeInMillis);
+    }
+    return new PullPolicy("if-older-than:" + maxAgeInMillis + "ms", maxAgeInMillis);
+  }
+
+  /**
+   * @return a policy never pulling the image, for offline builds. The rule fails when the
+   * image is not available locally
+   */
+  public static PullPolicy never() {
+    return NEVER;
+  }
+
+  /**
+   * @param policy always, if-missing, never, offline or if-older-than:&lt;duration&gt;
+   * @return the policy
+   */
+  static PullPolicy parse(String policy) {
+    String value = policy.trim().toLowerCase(Locale.ROOT);
+    switch (value) {
+      case "always":
+        return ALWAYS;
+      case "if-missing":
+        return IF_MISSING;
+      case "never":
+      case "offline":
+        return NEVER;
+      default:
+        if (value.startsWith("if-older-than:")) {
+          return ifOlderThan(millis(value.substring("if-older-than:".length())));
+        }
+        throw new IllegalArgumentException("Invalid pull policy " + policy
+          + ", expected always, if-missing, never or if-older-than:<duration>");
+    }
+  }
+
+  /**
+   * @return the policy of the docker.junit.rule.pull system property, if-missing when it is not set
+   */
+  static PullPolicy configured() {
+    String policy = System.getProperty(POLICY_PROPERTY);
+    if (policy == null || policy.trim().isEmpty()) {
+      return IF_MISSING;
+    }
+    return parse(policy);
+  }
+
+  private static long millis(String duration) {
+    Matcher matcher = DURATION.matcher(duration);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid duration " + duration + ", expected a number followed by ms, s, m, h or d");
+    }
+    long value = Long.parseLong(matcher.group(1));
+    switch (matcher.group(2)) {
+      case "ms":
+        return value;
+      case "s":
+        return value * 1000;
+      case "m":
+        return value * 60 * 1000;
+      case "h":
+        return value * 60 * 60 * 1000;
+      default:
+        return value * 24 * 60 * 60 * 1000;
+    }
+  }
+
+  boolean isOffline() {
+    return this == NEVER;
+  }
+
+  /**
+   * @return true when a failed pull may fall back to the local copy of the image
+   */
+  boolean isLocalFallback() {
+    return maxAge > 0;
+  }
+
+  /**
+   * @param present true when there is a local copy of the image
+   * @param updated when the local copy was last pulled, or built when that is unknown, null if both are unknown
+   * @param now     the current time in milliseconds since the epoch
+   * @return true when the image has to be pulled
+   */
+  boolean shouldPull(boolean present, Date updated, long now) {
+    if (isOffline()) {
+      return false;
+    }
+    if (!present || this == ALWAYS) {
+      return true;
+    }
+    if (maxAge < 0) {
+      return false;
+    }
+    return updated == null || now - updated.getTime() > maxAge;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,88 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerClient;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.ws.rs.client.WebTarget;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * Requests that docker-client does not make the way the rules need them, sent through the
+ * connection of a DefaultDockerClient.
+ * </p>
+ * <p>
+ * The connection is reached through the private noTimeoutResource method of docker-client
+ * 6.1.1, the version the build pins. When another version does not have it, a warning is
+ * logged once and the callers fall back to the public API of the client.
+ * </p>
+ */
+final class RawDockerApi {
+  private static final Log logger = LogFactory.getLog(RawDockerApi.class);
+
+  private static final Method NO_TIMEOUT_RESOURCE = noTimeoutResource();
+  private static final AtomicBoolean warned = new AtomicBoolean();
+
+  private RawDockerApi() {
+  }
+
+  private static Method noTimeoutResource() {
+    try {
+      Method resource = DefaultDockerClient.class.getDeclaredMethod("noTimeoutResource");
+      resource.setAccessible(true);
+      return resource;
+    } catch (NoSuchMethodException | RuntimeException e) {
+      logger.debug("Unable to find DefaultDockerClient.noTimeoutResource", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param client the docker client
+   * @return the root of the API of the daemon without read timeout, null when the client is
+   * not a DefaultDockerClient or does not give access to it
+   */
+  static WebTarget resource(DockerClient client) {
+    return resource(client, NO_TIMEOUT_RESOURCE);
+  }
+
+  /**
+   * @param client   the docker client
+   * @param resource the method of DefaultDockerClient returning the resource, null if there is none
+   * @return the resource, null when it can not be reached
+   */
+  static WebTarget resource(DockerClient client, Method resource) {
+    if (!(client instanceof DefaultDockerClient)) {
+      return null;
+    }
+    if (resource == null) {
+      unsupported(null);
+      return null;
+    }
+    try {
+      return (WebTarget) resource.invoke(client);
+    } catch (IllegalAccessException | InvocationTargetException | RuntimeException e) {
+      unsupported(e);
+      return null;
+    }
+  }
+
+  /**
+   * Warn, once, that the connection of the docker client can not be used.
+   *
+   * @param cause the failure, null if there is none
+   */
+  static void unsupported(Exception cause) {
+    if (warned.compareAndSet(false, true)) {
+      logger.warn("Unable to send requests through the connection of the docker client, this version of"
+        + " docker-client is not supported: followed logs are only closed once their container stops,"
+        + " files are staged on disk before being copied and network aliases are ignored", cause);
+    } else {
+      logger.debug("Unable to send requests through the connection of the docker client", cause);
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.ContainerCreation;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * <p>
+ * Times the phases of a rule and its calls to the docker daemon, for the listeners of the rule.
+ * </p>
+ * <p>
+ * The calls are timed by a proxy of the client. Only the rule itself uses the proxy: the
+ * services shared between the rules (the client pool, the events and the container index) are
+ * keyed by the pooled client and keep receiving it.
+ * </p>
+ */
+class RuleInstrumentation {
+  private static final Log logger = LogFactory.getLog(RuleInstrumentation.class);
+
+  private static List<DockerRuleListener> discovered;
+
+  private final DockerRule rule;
+  private final List<DockerRuleListener> listeners;
+
+  /**
+   * The phase in progress, ended once.
+   */
+  class Phase {
+    private final String name;
+    private final long timestamp = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private Throwable failure;
+    private boolean ended;
+
+    private Phase(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @param failure why the phase failed
+     * @return the failure, to rethrow it
+     */
+    <T extends Throwable> T failed(T failure) {
+      this.failure = failure;
+      return failure;
+    }
+
+    void end() {
+      if (!ended) {
+        ended = true;
+        emit(DockerRuleEvent.Type.PHASE, name, timestamp, startNanos, failure);
+      }
+    }
+  }
+
+  RuleInstrumentation(DockerRule rule, List<DockerRuleListener> listeners) {
+    this.rule = rule;
+    this.listeners = listeners;
+  }
+
+  /**
+   * @return the listeners of every rule: the service providers and, when the
+   * docker.junit.rule.trace system property is set, the trace reporter
+   */
+  static synchronized List<DockerRuleListener> discovered() {
+    if (discovered == null) {
+      List<DockerRuleListener> found = new ArrayList<>();
+      try {
+        for (DockerRuleListener listener : ServiceLoader.load(DockerRuleListener.class)) {
+          found.add(listener);
+        }
+      } catch (ServiceConfigurationError e) {
+        logger.warn("Unable to load the docker rule listeners", e);
+      }
+      TraceReporter reporter = TraceReporter.fromSystemProperty();
+      if (reporter != null) {
+        found.add(reporter);
+      }
+      discovered = Collections.unmodifiableList(found);
+    }
+    return discovered;
+  }
+
+  boolean isEnabled() {
+    return !listeners.isEmpty();
+  }
+
+  /**
+   * @param client the client of the rule
+   * @return a client timing its calls, or the client itself when nobody listens
+   */
+  DockerClient wrap(final DockerClient client) {
+    if (!isEnabled()) {
+      return client;
+    }
+    return (DockerClient) Proxy.newProxyInstance(DockerClient.class.getClassLoader(),
+      new Class<?>[]{DockerClient.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getDeclaringClass() == Object.class) {
+            return method.getName().equals("equals") ? proxy == args[0] : method.invoke(client, args);
+          }
+          if (method.getName().equals("getHost") || method.getName().equals("close")) {
+            return method.invoke(client, args);
+          }
+          long timestamp = System.currentTimeMillis();
+          long startNanos = System.nanoTime();
+          Throwable failure = null;
+          try {
+            return method.invoke(client, args);
+          } catch (InvocationTargetException e) {
+            failure = e.getCause();
+            throw failure;
+          } finally {
+            emit(DockerRuleEvent.Type.API_CALL, method.getName(), timestamp, startNanos, failure);
+          }
+        }
+      });
+  }
+
+  /**
+   * @param name the name of the phase
+   * @return the phase, to end once it is over
+   */
+  Phase begin(String name) {
+    return new Phase(name);
+  }
+
+  /**
+   * @param id         the id of a layer of the image that was just pulled
+   * @param timestamp  the wall clock time of its first progress
+   * @param startNanos the System#nanoTime of its first progress
+   */
+  void layer(String id, long timestamp, long startNanos) {
+    emit(DockerRuleEvent.Type.LAYER, id, timestamp, startNanos, null);
+  }
+
+  private void emit(DockerRuleEvent.Type type, String name, long timestamp, long startNanos, Throwable failure) {
+    if (listeners.isEmpty()) {
+      return;
+    }
+    ContainerCreation container = rule.getContainer();
+    String image = rule.params == null ? null : rule.params.imageName;
+    DockerRuleEvent event = new DockerRuleEvent(type, name, image, container == null ? null : container.id(),
+      timestamp, startNanos, System.nanoTime() - startNanos, failure);
+    for (DockerRuleListener listener : listeners) {
+      try {
+        listener.onEvent(event);
+      } catch (RuntimeException e) {
+        logger.warn("Docker rule listener " + listener + " failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Daemon scheduler shared by the timers of the library (deadlines, linger and idle timeouts).
+ * Tasks must be short, anything blocking belongs on its own executor.
+ */
+final class Schedulers {
+  private static final ScheduledExecutorService SHARED = Executors.newSingleThreadScheduledExecutor(
+    new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("docker-junit-rule-timer-%d")
+      .build());
+
+  private Schedulers() {
+  }
+
+  static ScheduledExecutorService shared() {
+    return SHARED;
+  }
+}
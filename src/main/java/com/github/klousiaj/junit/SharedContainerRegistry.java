@@ -0,0 +1,210 @@
+package com.github.klousiaj.junit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * JVM wide registry of the containers started by shared DockerRules.
+ * </p>
+ * <p>
+ * Rules are grouped by their configuration (see DockerRuleParams#configKey()). The first rule
+ * of a group creates and starts the container, the following rules attach to it. The container
+ * is reference counted and removed once the last rule has released it and the linger time
+ * has expired. Containers that are still registered when the JVM exits are removed by a
+ * shutdown hook.
+ * </p>
+ * <p>
+ * The containers shared across JVMs are leased from the other JVMs of the host with
+ * ContainerLease instead, and only removed by the last JVM to release them.
+ * </p>
+ */
+class SharedContainerRegistry {
+  private static final Log logger = LogFactory.getLog(SharedContainerRegistry.class);
+
+  private static final SharedContainerRegistry INSTANCE = new SharedContainerRegistry();
+
+  static {
+    Runtime.getRuntime().addShutdownHook(new Thread("docker-junit-rule-registry-shutdown") {
+      @Override
+      public void run() {
+        INSTANCE.shutdown();
+      }
+    });
+  }
+
+  private final Map<String, Entry> entries = new HashMap<>();
+
+  static SharedContainerRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Start the container described by the rule, or attach the rule to the container
+   * that was already started for the same configuration.
+   *
+   * @param rule the rule requesting the container
+   * @throws Throwable if the container could not be started
+   */
+  void acquire(DockerRule rule) throws Throwable {
+    String key = rule.params.configKey();
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key);
+        entries.put(key, entry);
+      }
+      entry.references++;
+      if (entry.removal != null) {
+        entry.removal.cancel(false);
+        entry.removal = null;
+      }
+    }
+
+    try {
+      synchronized (entry) {
+        if (entry.owner == null) {
+          if (rule.params.sharedAcrossJvms) {
+            ContainerLease.acquire(rule);
+          } else {
+            rule.startContainer();
+          }
+          entry.owner = rule;
+        } else {
+          logger.info("Sharing the already started container " + entry.owner.getContainer().id());
+          entry.owner.resume();
+          rule.share(entry.owner);
+        }
+      }
+    } catch (Throwable t) {
+      synchronized (this) {
+        entry.references--;
+        if (entry.references == 0 && entry.owner == null) {
+          entries.remove(key);
+        }
+      }
+      throw t;
+    }
+  }
+
+  /**
+   * Release the container held by the rule. The container is removed when no other rule
+   * is using it and the linger time of the rule has expired.
+   *
+   * @param rule the rule that no longer needs the container
+   */
+  void release(DockerRule rule) {
+    String key = rule.params.configKey();
+    final Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        logger.warn("No shared container registered for " + key);
+        return;
+      }
+      entry.references--;
+      if (entry.owner != rule) {
+        // the owner's client is needed to remove the container, all others can be closed
+        rule.releaseClient();
+      }
+      if (entry.references > 0) {
+        return;
+      }
+      if (rule.params.sharedLinger < 0) {
+        logger.debug("Keeping shared container " + entry.owner.getContainer().id() + " until the JVM exits");
+      } else if (rule.params.sharedLinger > 0) {
+        entry.removal = Schedulers.shared().schedule(new Runnable() {
+          @Override
+          public void run() {
+            remove(entry);
+          }
+        }, rule.params.sharedLinger, TimeUnit.MILLISECONDS);
+      }
+    }
+    if (rule.params.sharedLinger == 0) {
+      remove(entry);
+    } else {
+      pauseIfIdle(entry);
+    }
+  }
+
+  /**
+   * Pause the container while it lingers, unless a rule acquired it in the meantime.
+   */
+  private void pauseIfIdle(Entry entry) {
+    synchronized (entry) {
+      synchronized (this) {
+        if (entry.references > 0 || entries.get(entry.key) != entry) {
+          return;
+        }
+      }
+      if (!entry.owner.params.sharedAcrossJvms) {
+        // the other JVMs may be using it
+        entry.owner.pauseIdle();
+      }
+    }
+  }
+
+  private void remove(Entry entry) {
+    synchronized (this) {
+      if (entry.references > 0 || entries.get(entry.key) != entry) {
+        return;
+      }
+      entries.remove(entry.key);
+    }
+    synchronized (entry) {
+      if (entry.owner.params.sharedAcrossJvms) {
+        ContainerLease.release(entry.owner);
+      } else {
+        entry.owner.teardown();
+      }
+    }
+  }
+
+  void shutdown() {
+    List<Entry> remaining;
+    synchronized (this) {
+      remaining = new ArrayList<>(entries.values());
+      entries.clear();
+    }
+    for (Entry entry : remaining) {
+      synchronized (entry) {
+        if (entry.owner != null) {
+          try {
+            if (entry.owner.params.sharedAcrossJvms) {
+              ContainerLease.release(entry.owner);
+            } else {
+              entry.owner.destroy();
+            }
+          } catch (RuntimeException e) {
+            logger.error("Unable to remove shared container for " + entry.key, e);
+          }
+        }
+      }
+    }
+  }
+
+  synchronized int references(DockerRule rule) {
+    Entry entry = entries.get(rule.params.configKey());
+    return entry == null ? 0 : entry.references;
+  }
+
+  private static class Entry {
+    final String key;
+    int references;
+    DockerRule owner;
+    ScheduledFuture<?> removal;
+
+    Entry(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package com.github.klousiaj.junit;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Carries a Throwable that is neither an Exception nor an Error out of a Callable starting
+ * a rule.
+ */
+class StartFailure extends Exception {
+  private static final long serialVersionUID = 1L;
+
+  StartFailure(Throwable cause) {
+    super(cause);
+  }
+
+  /**
+   * @param e the failure of a Callable starting a rule
+   * @return what the rule threw
+   */
+  static Throwable unwrap(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof StartFailure) {
+      return cause.getCause();
+    }
+    return cause;
+  }
+}
@@ -0,0 +1,244 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.Event;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.spotify.docker.client.DockerClient.LogsParam.stderr;
+import static com.spotify.docker.client.DockerClient.LogsParam.stdout;
+import static com.spotify.docker.client.DockerClient.LogsParam.tail;
+
+/**
+ * <p>
+ * Watches over the start of a container.
+ * </p>
+ * <p>
+ * The wait strategies of the rule race against the die and oom events of the container, so a
+ * container that crashes during startup is reported within milliseconds, with its exit code
+ * and the last lines of its logs, instead of when the waits time out. The whole startup is
+ * bounded by a deadline: when it expires, the starting thread is interrupted, which aborts
+ * the pending docker call or wait.
+ * </p>
+ * <p>
+ * An instance is used by a single thread, the one starting the container.
+ * </p>
+ */
+class StartupMonitor {
+  private static final Log logger = LogFactory.getLog(StartupMonitor.class);
+  static final int LOG_LINES_ON_FAILURE = 20;
+
+  private final DockerClient client;
+  private final DockerEventBus events;
+  private final Deadline deadline;
+  private final long timeoutInMillis;
+  private final SettableFuture<Event> exited = SettableFuture.create();
+  private final Object interruptLock = new Object();
+  private volatile boolean oom;
+  private String containerId;
+  private DockerEventBus.Subscription subscription;
+  private ScheduledFuture<?> interrupt;
+  private boolean closed;
+  private boolean expired;
+
+  /**
+   * @param client          the docker client
+   * @param timeoutInMillis the maximum duration of the startup, 0 or less for no limit
+   */
+  StartupMonitor(DockerClient client, long timeoutInMillis) {
+    this(client, DockerEventBus.forClient(client), timeoutInMillis);
+  }
+
+  StartupMonitor(DockerClient client, DockerEventBus events, long timeoutInMillis) {
+    this.client = client;
+    this.events = events;
+    this.timeoutInMillis = timeoutInMillis;
+    this.deadline = Deadline.limit(timeoutInMillis);
+    if (!deadline.isNone()) {
+      final Thread starting = Thread.currentThread();
+      interrupt = Schedulers.shared().schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (interruptLock) {
+            if (!closed) {
+              expired = true;
+              starting.interrupt();
+            }
+          }
+        }
+      }, deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+  }
+
+  Deadline deadline() {
+    return deadline;
+  }
+
+  /**
+   * Start watching a container. Call before the container is started so that an early
+   * crash is not missed.
+   *
+   * @param containerId the id of the container
+   */
+  void watch(String containerId) throws InterruptedException {
+    if (subscription != null) {
+      // the previous container was removed before it started
+      subscription.cancel();
+      subscription = null;
+    }
+    this.containerId = containerId;
+    try {
+      subscription = events.subscribe(containerId, new DockerEventBus.Listener() {
+        @Override
+        public void onEvent(Event event) {
+          if ("oom".equals(event.status())) {
+            oom = true;
+          } else if ("die".equals(event.status())) {
+            exited.set(event);
+          }
+        }
+      });
+    } catch (DockerException | RuntimeException e) {
+      // the waits still work, they will only time out instead of failing fast
+      logger.warn("Unable to watch the events of container " + containerId, e);
+    }
+  }
+
+  boolean hasExited() {
+    return exited.isDone();
+  }
+
+  /**
+   * @param action run as soon as the container exits
+   */
+  void onExit(Runnable action) {
+    exited.addListener(action, MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Wait for a readiness condition, or for the container to exit, whichever comes first.
+   *
+   * @param ready the readiness condition
+   * @throws IllegalStateException when the container exited
+   */
+  void await(final ListenableFuture<?> ready) throws InterruptedException {
+    final SettableFuture<Void> first = SettableFuture.create();
+    Runnable done = new Runnable() {
+      @Override
+      public void run() {
+        first.set(null);
+      }
+    };
+    ready.addListener(done, MoreExecutors.directExecutor());
+    exited.addListener(done, MoreExecutors.directExecutor());
+    try {
+      first.get();
+    } catch (InterruptedException e) {
+      ready.cancel(false);
+      throw e;
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+    // the die event fails some conditions too, report the exit rather than their failure
+    if (hasExited()) {
+      ready.cancel(false);
+      throw exitFailure();
+    }
+    try {
+      ready.get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * @return the failure describing the exit of the container, with its exit code and last log lines
+   */
+  IllegalStateException exitFailure() throws InterruptedException {
+    StringBuilder message = new StringBuilder("Container ").append(containerId).append(" exited");
+    boolean oomKilled = oom;
+    try {
+      ContainerInfo info = client.inspectContainer(containerId);
+      if (info != null && info.state() != null) {
+        if (info.state().exitCode() != null) {
+          message.append(" with code ").append(info.state().exitCode());
+        }
+        oomKilled |= Boolean.TRUE.equals(info.state().oomKilled());
+      }
+    } catch (DockerException e) {
+      logger.debug("Unable to inspect container " + containerId, e);
+    }
+    message.append(" during startup");
+    if (oomKilled) {
+      message.append(", killed by the OOM killer");
+    }
+    String logs = lastLogLines();
+    if (logs != null && !logs.isEmpty()) {
+      message.append(". Last log lines:\n").append(logs);
+    }
+    return new IllegalStateException(message.toString());
+  }
+
+  private String lastLogLines() throws InterruptedException {
+    LogStream logs = null;
+    try {
+      logs = client.logs(containerId, stdout(), stderr(), tail(LOG_LINES_ON_FAILURE));
+      return logs == null ? null : logs.readFully();
+    } catch (DockerException | RuntimeException e) {
+      logger.debug("Unable to read the logs of container " + containerId, e);
+      return null;
+    } finally {
+      if (logs != null) {
+        try {
+          logs.close();
+        } catch (Exception e) {
+          logger.debug("Unable to close the logs of container " + containerId, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop watching. When the deadline interrupted the starting thread, the interrupt is
+   * cleared and the failure is replaced by a timeout.
+   *
+   * @param failure the failure of the startup, or null if it succeeded
+   * @return the failure to report
+   */
+  Throwable close(Throwable failure) {
+    boolean interrupted;
+    synchronized (interruptLock) {
+      closed = true;
+      interrupted = expired;
+    }
+    if (interrupt != null) {
+      interrupt.cancel(false);
+    }
+    if (subscription != null) {
+      subscription.cancel();
+      subscription = null;
+    }
+    if (interrupted) {
+      // the interrupt came from the deadline, not from the caller
+      Thread.interrupted();
+      if (failure == null) {
+        return null;
+      }
+      return new IllegalStateException("Timeout while starting container "
+        + (containerId == null ? "" : containerId + " ") + "after " + timeoutInMillis + "ms", failure);
+    }
+    return failure;
+  }
+}
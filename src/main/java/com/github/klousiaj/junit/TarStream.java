@@ -0,0 +1,201 @@
+package com.github.klousiaj.junit;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipEncoding;
+import org.apache.commons.compress.archivers.zip.ZipEncodingHelper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>
+ * A tar archive of host files, produced while it is read.
+ * </p>
+ * <p>
+ * Only the headers of the current entry are held in memory. The content of the files
+ * is read from their FileChannel straight into the buffer of the caller, so the size of the
+ * archive does not matter. Names longer than 100 characters use GNU long name entries and
+ * sizes over 8GB use the star binary encoding, both understood by docker.
+ * </p>
+ */
+class TarStream extends InputStream {
+  private static final int BLOCK = 512;
+  private static final ZipEncoding UTF_8 = ZipEncodingHelper.getZipEncoding("UTF-8");
+
+  private final Iterator<Entry> entries;
+  private ByteBuffer header = ByteBuffer.allocate(3 * BLOCK);
+  private FileChannel content;
+  private long contentRemaining;
+  private long padding;
+  private boolean ended;
+
+  /**
+   * A file or directory of the host and its name in the archive.
+   */
+  static class Entry {
+    final Path source;
+    final String name;
+
+    Entry(Path source, String name) {
+      this.source = source;
+      this.name = name;
+    }
+  }
+
+  /**
+   * @param entries the entries of the archive. The directories are not walked, every file
+   *                must have its own entry
+   */
+  TarStream(List<Entry> entries) {
+    this.entries = entries.iterator();
+    header.limit(0);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] single = new byte[1];
+    int read = read(single, 0, 1);
+    return read < 0 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    while (true) {
+      if (header.hasRemaining()) {
+        int read = Math.min(length, header.remaining());
+        header.get(buffer, offset, read);
+        return read;
+      }
+      if (contentRemaining > 0) {
+        return readContent(buffer, offset, length);
+      }
+      if (padding > 0) {
+        int read = (int) Math.min(length, padding);
+        for (int ii = 0; ii < read; ii++) {
+          buffer[offset + ii] = 0;
+        }
+        padding -= read;
+        return read;
+      }
+      if (!nextEntry()) {
+        return -1;
+      }
+    }
+  }
+
+  private int readContent(byte[] buffer, int offset, int length) throws IOException {
+    int wanted = (int) Math.min(length, contentRemaining);
+    int read = content.read(ByteBuffer.wrap(buffer, offset, wanted));
+    if (read < 0) {
+      // the file shrank since its header was written, the size must still be honored
+      for (int ii = 0; ii < wanted; ii++) {
+        buffer[offset + ii] = 0;
+      }
+      read = wanted;
+    }
+    contentRemaining -= read;
+    if (contentRemaining == 0) {
+      closeContent();
+    }
+    return read;
+  }
+
+  private boolean nextEntry() throws IOException {
+    header.clear();
+    if (!entries.hasNext()) {
+      if (ended) {
+        header.limit(0);
+        return false;
+      }
+      // two empty blocks end the archive
+      ended = true;
+      header.put(new byte[2 * BLOCK]);
+      header.flip();
+      return true;
+    }
+
+    Entry entry = entries.next();
+    boolean directory = Files.isDirectory(entry.source);
+    String name = directory && !entry.name.endsWith("/") ? entry.name + "/" : entry.name;
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    if (nameBytes.length >= TarConstants.NAMELEN) {
+      int needed = 2 * BLOCK + (nameBytes.length + BLOCK) / BLOCK * BLOCK;
+      if (header.capacity() < needed) {
+        header = ByteBuffer.allocate(needed);
+      }
+      TarArchiveEntry longName = new TarArchiveEntry(TarConstants.GNU_LONGLINK, TarConstants.LF_GNUTYPE_LONGNAME);
+      longName.setSize(nameBytes.length + 1);
+      writeHeader(longName);
+      header.put(nameBytes);
+      header.put((byte) 0);
+      while (header.position() % BLOCK != 0) {
+        header.put((byte) 0);
+      }
+    }
+
+    TarArchiveEntry tarEntry = new TarArchiveEntry(name);
+    tarEntry.setModTime(Files.getLastModifiedTime(entry.source).toMillis());
+    tarEntry.setMode((directory ? TarArchiveEntry.DEFAULT_DIR_MODE & ~0777 : TarArchiveEntry.DEFAULT_FILE_MODE & ~0777)
+      | permissions(entry.source, directory));
+    if (!directory) {
+      content = FileChannel.open(entry.source, StandardOpenOption.READ);
+      tarEntry.setSize(content.size());
+      contentRemaining = content.size();
+      padding = (BLOCK - contentRemaining % BLOCK) % BLOCK;
+      if (contentRemaining == 0) {
+        closeContent();
+      }
+    }
+    writeHeader(tarEntry);
+    header.flip();
+    return true;
+  }
+
+  private void writeHeader(TarArchiveEntry entry) throws IOException {
+    byte[] block = new byte[BLOCK];
+    entry.writeEntryHeader(block, UTF_8, true);
+    header.put(block);
+  }
+
+  private static int permissions(Path source, boolean directory) throws IOException {
+    if (Files.getFileAttributeView(source, PosixFileAttributeView.class) == null) {
+      return directory ? 0755 : 0644;
+    }
+    Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(source);
+    int mode = 0;
+    for (PosixFilePermission permission : PosixFilePermission.values()) {
+      mode <<= 1;
+      if (permissions.contains(permission)) {
+        mode |= 1;
+      }
+    }
+    return mode;
+  }
+
+  private void closeContent() throws IOException {
+    if (content != null) {
+      content.close();
+      content = null;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closeContent();
+  }
+}
@@ -0,0 +1,229 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>
+ * Records the events of the rules and writes them, when the JVM exits, as a timeline in the
+ * Chrome trace event format (chrome://tracing, Perfetto) with a summary of the durations.
+ * </p>
+ * <p>
+ * Enabled for every rule by setting the docker.junit.rule.trace system property to a directory.
+ * Each test JVM writes its own docker-junit-rule-trace-TIMESTAMP-PID.json file there. The
+ * summary gives the count, the failures and the 50th, 90th and 99th percentiles of each phase
+ * and docker call, and of the start of each image, in milliseconds.
+ * </p>
+ */
+class TraceReporter implements DockerRuleListener {
+  private static final Log logger = LogFactory.getLog(TraceReporter.class);
+
+  static final String TRACE_PROPERTY = "docker.junit.rule.trace";
+  static final int MAX_EVENTS = 100000;
+
+  private final long originNanos = System.nanoTime();
+  private final List<DockerRuleEvent> events = new ArrayList<>();
+  private boolean truncated;
+
+  /**
+   * @return a reporter writing to the directory of the system property when the JVM exits,
+   * null when the property is not set
+   */
+  static TraceReporter fromSystemProperty() {
+    String directory = System.getProperty(TRACE_PROPERTY);
+    if (directory == null || directory.trim().isEmpty()) {
+      return null;
+    }
+    final TraceReporter reporter = new TraceReporter();
+    final Path file = Paths.get(directory, "docker-junit-rule-trace-" + System.currentTimeMillis() + "-" + pid() + ".json");
+    Runtime.getRuntime().addShutdownHook(new Thread("docker-junit-rule-trace") {
+      @Override
+      public void run() {
+        try {
+          reporter.write(file);
+        } catch (IOException e) {
+          System.err.println("Unable to write the docker rule trace to " + file + ": " + e.getMessage());
+        }
+      }
+    });
+    return reporter;
+  }
+
+  @Override
+  public synchronized void onEvent(DockerRuleEvent event) {
+    if (events.size() < MAX_EVENTS) {
+      events.add(event);
+    } else if (!truncated) {
+      truncated = true;
+      logger.warn("More than " + MAX_EVENTS + " docker rule events, the following ones are not traced");
+    }
+  }
+
+  /**
+   * Write the timeline and the summary, creating the directory if needed.
+   *
+   * @param file the file to write
+   */
+  void write(Path file) throws IOException {
+    if (file.getParent() != null) {
+      Files.createDirectories(file.getParent());
+    }
+    try (OutputStream out = Files.newOutputStream(file)) {
+      write(out);
+    }
+    logger.info("Docker rule trace written to " + file);
+  }
+
+  synchronized void write(OutputStream out) throws IOException {
+    JsonGenerator json = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+    json.writeStartObject();
+    json.writeStringField("displayTimeUnit", "ms");
+    json.writeArrayFieldStart("traceEvents");
+    Map<String, Integer> threads = new HashMap<>();
+    for (DockerRuleEvent event : events) {
+      Integer tid = threads.get(event.getThread());
+      if (tid == null) {
+        tid = threads.size() + 1;
+        threads.put(event.getThread(), tid);
+        json.writeStartObject();
+        json.writeStringField("name", "thread_name");
+        json.writeStringField("ph", "M");
+        json.writeNumberField("pid", 1);
+        json.writeNumberField("tid", tid);
+        json.writeObjectFieldStart("args");
+        json.writeStringField("name", event.getThread());
+        json.writeEndObject();
+        json.writeEndObject();
+      }
+      json.writeStartObject();
+      json.writeStringField("name", event.getName());
+      json.writeStringField("cat", category(event));
+      json.writeStringField("ph", "X");
+      json.writeNumberField("ts", (event.getStartNanos() - originNanos) / 1000);
+      json.writeNumberField("dur", event.getDurationNanos() / 1000);
+      json.writeNumberField("pid", 1);
+      json.writeNumberField("tid", tid);
+      json.writeObjectFieldStart("args");
+      json.writeStringField("image", event.getImage());
+      json.writeStringField("container", event.getContainerId());
+      if (event.getFailure() != null) {
+        json.writeStringField("failure", event.getFailure().toString());
+      }
+      json.writeEndObject();
+      json.writeEndObject();
+    }
+    json.writeEndArray();
+
+    json.writeObjectFieldStart("summary");
+    json.writeBooleanField("truncated", truncated);
+    Map<String, Map<String, List<DockerRuleEvent>>> groups = groups();
+    for (Map.Entry<String, Map<String, List<DockerRuleEvent>>> group : groups.entrySet()) {
+      json.writeObjectFieldStart(group.getKey());
+      for (Map.Entry<String, List<DockerRuleEvent>> named : group.getValue().entrySet()) {
+        writeStats(json, named.getKey(), named.getValue());
+      }
+      json.writeEndObject();
+    }
+    json.writeEndObject();
+    json.writeEndObject();
+    json.flush();
+  }
+
+  /**
+   * @return the events by phase, by docker call, and the starts by image
+   */
+  private Map<String, Map<String, List<DockerRuleEvent>>> groups() {
+    Map<String, Map<String, List<DockerRuleEvent>>> groups = new TreeMap<>();
+    groups.put("phases", new TreeMap<String, List<DockerRuleEvent>>());
+    groups.put("calls", new TreeMap<String, List<DockerRuleEvent>>());
+    groups.put("images", new TreeMap<String, List<DockerRuleEvent>>());
+    for (DockerRuleEvent event : events) {
+      if (event.getType() == DockerRuleEvent.Type.LAYER) {
+        // the layers only show on the timeline, their ids are not worth percentiles
+        continue;
+      }
+      boolean phase = event.getType() == DockerRuleEvent.Type.PHASE;
+      add(groups.get(phase ? "phases" : "calls"), event.getName(), event);
+      if (phase && "start".equals(event.getName()) && event.getImage() != null) {
+        add(groups.get("images"), event.getImage(), event);
+      }
+    }
+    return groups;
+  }
+
+  private static void add(Map<String, List<DockerRuleEvent>> group, String key, DockerRuleEvent event) {
+    List<DockerRuleEvent> list = group.get(key);
+    if (list == null) {
+      list = new ArrayList<>();
+      group.put(key, list);
+    }
+    list.add(event);
+  }
+
+  private static void writeStats(JsonGenerator json, String name, List<DockerRuleEvent> events) throws IOException {
+    List<Long> durations = new ArrayList<>(events.size());
+    int failures = 0;
+    for (DockerRuleEvent event : events) {
+      durations.add(event.getDurationNanos());
+      if (event.getFailure() != null) {
+        failures++;
+      }
+    }
+    Collections.sort(durations);
+    json.writeObjectFieldStart(name);
+    json.writeNumberField("count", durations.size());
+    json.writeNumberField("failures", failures);
+    json.writeNumberField("p50", millis(percentile(durations, 50)));
+    json.writeNumberField("p90", millis(percentile(durations, 90)));
+    json.writeNumberField("p99", millis(percentile(durations, 99)));
+    json.writeNumberField("max", millis(durations.get(durations.size() - 1)));
+    json.writeEndObject();
+  }
+
+  /**
+   * @param sorted     the sorted values, not empty
+   * @param percentile the percentile, from 1 to 100
+   * @return the nearest-rank percentile
+   */
+  static long percentile(List<Long> sorted, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.size());
+    return sorted.get(Math.max(rank, 1) - 1);
+  }
+
+  private static double millis(long nanos) {
+    return Math.round(nanos / 10000.0) / 100.0;
+  }
+
+  private static String category(DockerRuleEvent event) {
+    switch (event.getType()) {
+      case PHASE:
+        return "phase";
+      case LAYER:
+        return "layer";
+      default:
+        return "docker";
+    }
+  }
+
+  private static String pid() {
+    String name = ManagementFactory.getRuntimeMXBean().getName();
+    int at = name.indexOf('@');
+    return at > 0 ? name.substring(0, at) : name;
+  }
+}
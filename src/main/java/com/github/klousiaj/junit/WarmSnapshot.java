@@ -0,0 +1,89 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ContainerInfo;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>
+ * Local images holding containers that were started and seeded once.
+ * </p>
+ * <p>
+ * The tag of a snapshot is a hash of the container configuration, of the seed version and of
+ * the sizes and modification times of the files copied into the container, so changing any of
+ * them produces a new snapshot without reading the files on every start. Only the file system of the container is committed: data written to the VOLUMEs
+ * declared by the image is not part of the snapshot.
+ * </p>
+ */
+class WarmSnapshot {
+  private static final Log logger = LogFactory.getLog(WarmSnapshot.class);
+  static final String REPOSITORY = "docker-junit-rule-snapshot";
+
+  private WarmSnapshot() {
+  }
+
+  /**
+   * @param params the parameters of the rule
+   * @return the tag of the snapshot of the container described by the parameters
+   */
+  static String tag(DockerRuleParams params) {
+    try {
+      MessageDigest sha = MessageDigest.getInstance("SHA-256");
+      sha.update(params.configKey().getBytes(StandardCharsets.UTF_8));
+      if (!params.files.isEmpty()) {
+        FileInjection.digest(params.files, sha);
+      }
+      byte[] digest = sha.digest();
+      StringBuilder tag = new StringBuilder();
+      for (int ii = 0; ii < 16; ii++) {
+        tag.append(String.format("%02x", digest[ii]));
+      }
+      return tag.toString();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to read the files copied into the container", e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String image(DockerRuleParams params) {
+    return REPOSITORY + ":" + tag(params);
+  }
+
+  static boolean exists(DockerClient client, String image) throws DockerException, InterruptedException {
+    try {
+      return client.inspectImage(image) != null;
+    } catch (ImageNotFoundException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Commit a ready container as the snapshot of its configuration. A failure is only logged,
+   * the next run will try again.
+   *
+   * @param client      the docker client
+   * @param containerId the container to commit
+   * @param params      the parameters of the rule that started the container
+   * @param snapshot    the snapshot image of the parameters
+   */
+  static void commit(DockerClient client, String containerId, DockerRuleParams params, String snapshot)
+    throws InterruptedException {
+    try {
+      ContainerInfo info = client.inspectContainer(containerId);
+      client.commitContainer(containerId, REPOSITORY, snapshot.substring(REPOSITORY.length() + 1), info.config(),
+        "Seed " + params.snapshotVersion + " of " + params.imageName, DockerRuleBuilder.DEFAULT_LABEL_VALUE);
+      logger.info("Committed container " + containerId + " as " + snapshot);
+    } catch (DockerException | RuntimeException e) {
+      logger.warn("Unable to commit container " + containerId + " as " + snapshot, e);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.collect.ImmutableMap;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.Container;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class ContainerIndexTest {
+
+  private DockerClient client;
+  private DockerEventBusTest.FakeSource source;
+  private ContainerIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    client = mock(DockerClient.class);
+    source = new DockerEventBusTest.FakeSource();
+    index = new ContainerIndex(client);
+  }
+
+  @Test
+  public void lookups() throws Exception {
+    Container mongo = container("abc", "mongo:3.2", ImmutableMap.of("team", "data"), "27017:27017");
+    Container nginx = container("def", "nginx:1.10", ImmutableMap.of("team", "web"), "8080:80", "443");
+    when(client.listContainers()).thenReturn(Arrays.asList(mongo, nginx));
+    index.subscribe(new DockerEventBus(source));
+    index.seed();
+
+    Assert.assertEquals(2, index.size());
+    Assert.assertSame(mongo, index.byImage("mongo:3.2").get(0).container);
+    Assert.assertTrue(index.byImage("redis:3").isEmpty());
+    Assert.assertEquals(Collections.singletonList(nginx), index.byLabel("team", "web"));
+    Assert.assertEquals(2, index.byLabel("team", null).size());
+    Assert.assertTrue(index.byLabel("owner", null).isEmpty());
+
+    ContainerIndex.Entry published = index.byPublicPort(8080);
+    Assert.assertSame(nginx, published.container);
+    Assert.assertEquals(Collections.singleton(8080), published.ports.get(80));
+    Assert.assertNull(index.byPublicPort(8081));
+    // the containers are listed once
+    verify(client, times(1)).listContainers();
+  }
+
+  @Test
+  public void eventsUpdateTheIndex() throws Exception {
+    Container mongo = container("abc", "mongo:3.2", null, "27017:27017");
+    when(client.listContainers()).thenReturn(Collections.singletonList(mongo));
+    index.subscribe(new DockerEventBus(source));
+    index.seed();
+
+    Container redis = container("ghi", "redis:3", null, "6379:6379");
+    when(client.listContainers(any(DockerClient.ListContainersParam.class)))
+      .thenReturn(Collections.singletonList(redis));
+    source.last().push(DockerEventBusTest.event("start", "ghi"));
+    awaitSize(2);
+    Assert.assertSame(redis, index.byPublicPort(6379).container);
+
+    source.last().push(DockerEventBusTest.event("die", "abc"));
+    awaitSize(1);
+    Assert.assertNull(index.byPublicPort(27017));
+    Assert.assertTrue(index.byImage("mongo:3.2").isEmpty());
+  }
+
+  @Test
+  public void trackAndUntrack() throws Exception {
+    when(client.listContainers()).thenReturn(new ArrayList<Container>());
+    index.subscribe(new DockerEventBus(source));
+    index.seed();
+
+    Container mongo = container("abc", "mongo:3.2", null, "27017");
+    when(client.listContainers(any(DockerClient.ListContainersParam.class)))
+      .thenReturn(Collections.singletonList(mongo));
+    index.track("abc");
+    Assert.assertSame(mongo, index.byImage("mongo:3.2").get(0).container);
+    // a random port is not indexed by public port until it is known
+    Assert.assertNull(index.byPublicPort(0));
+
+    index.untrack("abc");
+    Assert.assertEquals(0, index.size());
+  }
+
+  private void awaitSize(int size) throws InterruptedException {
+    long begin = System.nanoTime();
+    while (index.size() != size && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5)) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(size, index.size());
+  }
+
+  private static Container container(String id, String image, Map<String, String> labels, String... ports) {
+    Container container = mock(Container.class);
+    when(container.id()).thenReturn(id);
+    when(container.image()).thenReturn(image);
+    when(container.state()).thenReturn("running");
+    when(container.labels()).thenReturn(labels);
+    List<Container.PortMapping> mappings = new ArrayList<>();
+    for (String port : ports) {
+      String[] split = port.split(":");
+      Container.PortMapping mapping = mock(Container.PortMapping.class);
+      when(mapping.getPrivatePort()).thenReturn(Integer.valueOf(split[split.length - 1]));
+      when(mapping.getPublicPort()).thenReturn(split.length > 1 ? Integer.valueOf(split[0]) : 0);
+      mappings.add(mapping);
+    }
+    when(container.ports()).thenReturn(mappings);
+    return container;
+  }
+}
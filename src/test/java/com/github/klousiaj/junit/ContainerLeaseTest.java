@@ -0,0 +1,168 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.collect.ImmutableMap;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.Container;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ContainerLeaseTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final String host = OrphanReaper.SESSION.substring(OrphanReaper.SESSION.indexOf('@') + 1,
+    OrphanReaper.SESSION.lastIndexOf(':'));
+  // a JVM of another host is never known to be dead
+  private final String otherJvm = "4242@elsewhere:1";
+
+  private FakeDockerDaemon daemon;
+  private final List<DockerClient> clients = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    System.setProperty(ContainerLease.DIRECTORY_PROPERTY, folder.getRoot().getPath());
+    daemon = FakeDockerDaemon.start();
+    daemon.image("redis:3");
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty(ContainerLease.DIRECTORY_PROPERTY);
+    for (DockerClient client : clients) {
+      client.close();
+    }
+    daemon.close();
+  }
+
+  @Test
+  public void lastOneOutRemovesTheContainer() throws Throwable {
+    DockerRule rule = rule();
+    rule.start();
+    Assert.assertEquals(1, daemon.running());
+    Assert.assertEquals(Collections.singletonList(OrphanReaper.SESSION), holders(rule));
+
+    rule.stop();
+    Assert.assertEquals(0, daemon.containers());
+    Assert.assertTrue(lines(rule).isEmpty());
+  }
+
+  @Test
+  public void attachToTheContainerOfAnotherJvm() throws Throwable {
+    DockerRule first = rule();
+    ContainerLease.acquire(first);
+    // another JVM started it
+    lease(first, "container=" + first.getContainer().id(), "holder=" + otherJvm);
+
+    DockerRule second = rule();
+    ContainerLease.acquire(second);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.CREATE));
+    Assert.assertEquals(first.getContainer().id(), second.getContainer().id());
+    Assert.assertEquals(first.getHostPort("6379/tcp"), second.getHostPort("6379/tcp"));
+    Assert.assertEquals(2, holders(second).size());
+
+    // the other JVM still holds it
+    ContainerLease.release(second);
+    Assert.assertEquals(1, daemon.running());
+    Assert.assertEquals(Collections.singletonList(otherJvm), holders(second));
+    Assert.assertTrue(ContainerLease.isHeld(ContainerLease.name(second)));
+  }
+
+  @Test
+  public void deadJvmsAreDropped() throws Throwable {
+    Assume.assumeTrue(new File("/proc/self").exists());
+    DockerRule first = rule();
+    ContainerLease.acquire(first);
+    lease(first, "container=" + first.getContainer().id(), "holder=999999999@" + host + ":1");
+    Assert.assertFalse(ContainerLease.isHeld(ContainerLease.name(first)));
+
+    DockerRule second = rule();
+    ContainerLease.acquire(second);
+    Assert.assertEquals(first.getContainer().id(), second.getContainer().id());
+    ContainerLease.release(second);
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  @Test
+  public void restartAGoneContainer() throws Throwable {
+    DockerRule first = rule();
+    lease(first, "container=0123456789ab", "holder=" + otherJvm);
+    ContainerLease.acquire(first);
+    Assert.assertEquals(1, daemon.running());
+    Assert.assertEquals(Collections.singletonList(OrphanReaper.SESSION), holders(first));
+  }
+
+  @Test
+  public void leasedContainersAreNotOrphans() throws Throwable {
+    Assume.assumeTrue(new File("/proc/self").exists() && host.contains("#"));
+    DockerRule rule = rule();
+    String name = ContainerLease.name(rule);
+    lease(rule, "container=abc", "holder=" + otherJvm);
+    Container container = mock(Container.class);
+    when(container.id()).thenReturn("abc");
+    when(container.labels()).thenReturn(ImmutableMap.of(OrphanReaper.SESSION_LABEL, "999999999@" + host + ":1",
+      OrphanReaper.LEAVE_RUNNING_LABEL, "false", ContainerLease.LEASE_LABEL, name));
+    OrphanReaper reaper = new OrphanReaper(mock(DockerClient.class), 0, folder.newFolder("uses").toPath());
+    Assert.assertTrue(reaper.orphans(Collections.singletonList(container), System.currentTimeMillis()).isEmpty());
+
+    lease(rule, "container=abc");
+    Assert.assertEquals(Collections.singletonList("abc"),
+      reaper.orphans(Collections.singletonList(container), System.currentTimeMillis()));
+  }
+
+  private DockerRule rule() {
+    DockerClient client = daemon.client();
+    clients.add(client);
+    DockerRule rule = new DockerRule(client);
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "redis:3";
+    params.ports = new String[]{"6379"};
+    params.shared = true;
+    params.sharedLinger = 0;
+    params.sharedAcrossJvms = true;
+    rule.params = params;
+    return rule;
+  }
+
+  private Path file(DockerRule rule) {
+    return folder.getRoot().toPath().resolve(ContainerLease.name(rule) + ".lease");
+  }
+
+  private void lease(DockerRule rule, String... lines) throws Exception {
+    StringBuilder content = new StringBuilder();
+    for (String line : lines) {
+      content.append(line).append('\n');
+    }
+    Files.write(file(rule), content.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private List<String> lines(DockerRule rule) throws Exception {
+    return Files.readAllLines(file(rule), StandardCharsets.UTF_8);
+  }
+
+  private List<String> holders(DockerRule rule) throws Exception {
+    List<String> holders = new ArrayList<>();
+    for (String line : lines(rule)) {
+      if (line.startsWith("holder=")) {
+        holders.add(line.substring("holder=".length()));
+      }
+    }
+    return holders;
+  }
+}
@@ -0,0 +1,100 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.ContainerConfig;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.spotify.docker.client.DockerClient.LogsParam.follow;
+import static com.spotify.docker.client.DockerClient.LogsParam.stderr;
+import static com.spotify.docker.client.DockerClient.LogsParam.stdout;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ContainerLogsTest {
+
+  private FakeDockerDaemon daemon;
+  private DockerClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    daemon = FakeDockerDaemon.start();
+    client = daemon.client();
+  }
+
+  @After
+  public void tearDown() {
+    ContainerLogs.discard(client);
+    client.close();
+    daemon.close();
+  }
+
+  @Test
+  public void readMessages() throws Exception {
+    daemon.image("redis:3").log(0, "first").log(0, "second").exitAfter(50, 0);
+    String id = start("redis:3");
+    try (ContainerLogs logs = ContainerLogs.open(client, client, id, follow(), stdout(), stderr())) {
+      Assert.assertTrue(logs.hasNext());
+      Assert.assertTrue(logs.next().content().hasRemaining());
+      Assert.assertTrue(logs.hasNext());
+      logs.next();
+      // the log ends with the container
+      Assert.assertFalse(logs.hasNext());
+    }
+  }
+
+  @Test
+  public void closeWhileFollowing() throws Exception {
+    daemon.image("redis:3");
+    String id = start("redis:3");
+    final ContainerLogs logs = ContainerLogs.open(client, client, id, follow(), stdout(), stderr());
+    Schedulers.shared().schedule(new Runnable() {
+      @Override
+      public void run() {
+        logs.close();
+      }
+    }, 100, TimeUnit.MILLISECONDS);
+    long begin = System.nanoTime();
+    Assert.assertFalse(logs.hasNext());
+    // the silent container is still running, the log was not read to its end
+    Assert.assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+    Assert.assertEquals(1, daemon.running());
+
+    // the connections of the client are still usable
+    Assert.assertEquals(1, client.listContainers().size());
+  }
+
+  @Test
+  public void otherClientsUseTheirLogStream() throws Exception {
+    DockerClient mockClient = mock(DockerClient.class);
+    LogStream stream = mock(LogStream.class);
+    when(mockClient.logs(eq("abc"), any(DockerClient.LogsParam[].class))).thenReturn(stream);
+    when(stream.hasNext()).thenReturn(false);
+
+    ContainerLogs logs = ContainerLogs.open(mockClient, mockClient, "abc", follow(), stdout());
+    Assert.assertFalse(logs.hasNext());
+    logs.close();
+    verify(stream).close();
+  }
+
+  @Test
+  public void unreachableConnectionFallsBack() throws Exception {
+    Assert.assertNotNull(RawDockerApi.resource(client));
+    // what happens with a version of docker-client without noTimeoutResource
+    Assert.assertNull(RawDockerApi.resource(client, null));
+    Assert.assertNull(RawDockerApi.resource(client, Object.class.getMethod("toString")));
+    Assert.assertNull(RawDockerApi.resource(mock(DockerClient.class)));
+  }
+
+  private String start(String image) throws Exception {
+    String id = client.createContainer(ContainerConfig.builder().image(image).build()).id();
+    client.startContainer(id);
+    return id;
+  }
+}
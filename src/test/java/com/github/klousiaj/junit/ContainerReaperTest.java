@@ -0,0 +1,108 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.messages.ContainerCreation;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class ContainerReaperTest {
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+
+  @Test
+  public void teardownInBackground() throws Exception {
+    ContainerReaper reaper = new ContainerReaper(2, 8);
+    DockerRule first = rule("abc");
+    DockerRule second = rule("def");
+    reaper.reap(first);
+    reaper.reap(second);
+    // the removals block, the test thread does not
+    Assert.assertEquals(2, reaper.pending());
+
+    release.countDown();
+    Assert.assertTrue(reaper.drain(5000));
+    verify(first).destroy("abc");
+    verify(second).destroy("def");
+    Assert.assertFalse(threads.contains(Thread.currentThread().getName()));
+  }
+
+  @Test
+  public void containerIdTakenWhenQueued() throws Exception {
+    ContainerReaper reaper = new ContainerReaper(1, 8);
+    DockerRule blocking = rule("abc");
+    DockerRule restarted = rule("def");
+    reaper.reap(blocking);
+    reaper.reap(restarted);
+    // the rule starts another container while its previous one is still queued
+    ContainerCreation next = mock(ContainerCreation.class);
+    when(next.id()).thenReturn("ghi");
+    when(restarted.getContainer()).thenReturn(next);
+
+    release.countDown();
+    Assert.assertTrue(reaper.drain(5000));
+    verify(restarted).destroy("def");
+    verify(restarted, never()).destroy("ghi");
+  }
+
+  @Test
+  public void fullQueueRemovesInCaller() throws Exception {
+    ContainerReaper reaper = new ContainerReaper(1, 1);
+    reaper.reap(rule("abc"));
+    reaper.reap(rule("def"));
+    // the worker and the queue are busy
+    Thread releaser = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        release.countDown();
+      }
+    });
+    releaser.start();
+    reaper.reap(rule("ghi"));
+    Assert.assertTrue(threads.contains(Thread.currentThread().getName()));
+    Assert.assertTrue(reaper.drain(5000));
+    Assert.assertEquals(3, threads.size());
+  }
+
+  @Test
+  public void removedByTheRuleOnceDrained() throws Exception {
+    ContainerReaper reaper = new ContainerReaper(1, 8);
+    Assert.assertTrue(reaper.drain(5000));
+    release.countDown();
+    DockerRule rule = rule("abc");
+    reaper.reap(rule);
+    verify(rule).destroy("abc");
+    Assert.assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+  }
+
+  private DockerRule rule(String containerId) {
+    DockerRule rule = mock(DockerRule.class);
+    ContainerCreation container = mock(ContainerCreation.class);
+    when(container.id()).thenReturn(containerId);
+    when(rule.getContainer()).thenReturn(container);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        threads.add(Thread.currentThread().getName());
+        return null;
+      }
+    }).when(rule).destroy(anyString());
+    return rule;
+  }
+}
@@ -0,0 +1,117 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ExecCreation;
+import com.spotify.docker.client.messages.ExecState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class ContainerResetTest {
+
+  private static final String[] DROP = {"psql", "-c", "DROP DATABASE test"};
+  private static final String[] PROBE = {"pg_isready"};
+
+  private DockerClient client;
+  private DockerRule rule;
+
+  @Before
+  public void setUp() throws Exception {
+    client = mock(DockerClient.class);
+    when(client.createContainer(any(ContainerConfig.class))).thenReturn(new ContainerCreation("abc"));
+    when(client.inspectContainer("abc")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+    rule = new DockerRule(client);
+    rule.params = new DockerRuleParams();
+    rule.params.imageName = "postgres:9.6";
+    rule.params.ports = new String[0];
+    rule.attachToContainer();
+  }
+
+  @Test
+  public void resetAndProbe() throws Exception {
+    exec(DROP, "exec-drop", 0);
+    exec(PROBE, "exec-probe", 2, 2, 0);
+    rule.params.resetCommand = DROP;
+    rule.params.resetProbe = PROBE;
+    final AtomicBoolean reset = new AtomicBoolean();
+    rule.params.reset = new ContainerReset() {
+      @Override
+      public void reset(DockerRule rule) {
+        reset.set(true);
+      }
+    };
+
+    rule.reset();
+    Assert.assertTrue(reset.get());
+    verify(client).execStart("exec-drop");
+    // probed until it succeeds
+    verify(client, times(3)).execStart("exec-probe");
+  }
+
+  @Test
+  public void failedCommand() throws Exception {
+    exec(DROP, "exec-drop", 1);
+    rule.params.resetCommand = DROP;
+    try {
+      rule.reset();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("psql -c DROP DATABASE test exited with code 1: output of exec-drop", e.getMessage());
+    }
+  }
+
+  @Test
+  public void probeTimeout() throws Exception {
+    exec(PROBE, "exec-probe", 2);
+    rule.params.resetProbe = PROBE;
+    rule.params.resetTimeout = 100;
+    long begin = System.currentTimeMillis();
+    try {
+      rule.reset();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("The container was not ready 100ms after the reset: output of exec-probe", e.getMessage());
+    }
+    Assert.assertTrue(System.currentTimeMillis() - begin < 1000);
+  }
+
+  @Test
+  public void resetBeforeEach() throws Throwable {
+    exec(DROP, "exec-drop", 0);
+    rule.params.resetCommand = DROP;
+    final AtomicBoolean evaluated = new AtomicBoolean();
+    rule.resetBeforeEach().apply(new Statement() {
+      @Override
+      public void evaluate() {
+        evaluated.set(true);
+      }
+    }, Description.EMPTY).evaluate();
+    Assert.assertTrue(evaluated.get());
+    verify(client).execStart("exec-drop");
+  }
+
+  private void exec(String[] command, String execId, Integer exitCode, Integer... nextExitCodes) throws Exception {
+    ExecCreation creation = mock(ExecCreation.class);
+    when(creation.id()).thenReturn(execId);
+    when(client.execCreate(eq("abc"), eq(command), any(DockerClient.ExecCreateParam.class),
+      any(DockerClient.ExecCreateParam.class))).thenReturn(creation);
+    LogStream output = mock(LogStream.class);
+    when(output.readFully()).thenReturn("output of " + execId);
+    when(client.execStart(execId)).thenReturn(output);
+    ExecState state = mock(ExecState.class);
+    when(state.exitCode()).thenReturn(exitCode, nextExitCodes);
+    when(client.execInspect(execId)).thenReturn(state);
+  }
+}
@@ -0,0 +1,74 @@
+package com.github.klousiaj.junit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class CpuPinningTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    System.clearProperty(CpuPinning.FORK_PROPERTY);
+    System.clearProperty(CpuPinning.FORKS_PROPERTY);
+  }
+
+  @Test
+  public void disjointSets() {
+    Assert.assertEquals("0-1", CpuPinning.cpuSet(8, 1, 4));
+    Assert.assertEquals("2-3", CpuPinning.cpuSet(8, 2, 4));
+    Assert.assertEquals("6-7", CpuPinning.cpuSet(8, 4, 4));
+    // the forks past the number of slots wrap around
+    Assert.assertEquals("0-1", CpuPinning.cpuSet(8, 5, 4));
+    Assert.assertEquals("3", CpuPinning.cpuSet(8, 4, 8));
+    // more forks than CPUs share them one by one
+    Assert.assertEquals("1", CpuPinning.cpuSet(2, 4, 16));
+    Assert.assertEquals("0-2", CpuPinning.cpuSet(7, 1, 2));
+  }
+
+  @Test
+  public void systemProperties() {
+    System.setProperty(CpuPinning.FORK_PROPERTY, "3");
+    System.setProperty(CpuPinning.FORKS_PROPERTY, "4");
+    Assert.assertEquals("4-5", CpuPinning.cpuSet(8, null));
+    // the configured number of forks takes precedence
+    Assert.assertEquals("2", CpuPinning.cpuSet(8, 8));
+
+    // an invalid number of forks is a single fork, which does not restrict the CPUs
+    System.setProperty(CpuPinning.FORKS_PROPERTY, "many");
+    Assert.assertNull(CpuPinning.cpuSet(8, null));
+  }
+
+  @Test
+  public void singleForkUsesEveryCpu() {
+    System.setProperty(CpuPinning.FORK_PROPERTY, "3");
+    Assert.assertNull(CpuPinning.cpuSet(8, null));
+    Assert.assertNull(CpuPinning.cpuSet(8, 1));
+    Assert.assertNull(CpuPinning.cpuSet(1, 4));
+  }
+
+  @Test
+  public void forksTakeTheFirstFreeSlot() throws Exception {
+    Path directory = folder.getRoot().toPath();
+    try (FileChannel channel = FileChannel.open(directory.resolve(ForkSlot.LOCK_FILE_PREFIX + "1.lock"),
+      StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      // another JVM holds the first slot
+      FileLock other = channel.lock();
+      ForkSlot slot = new ForkSlot(directory);
+      Assert.assertEquals(2, slot.claim(4));
+      // the slot is kept for the life of the JVM
+      Assert.assertEquals(2, slot.claim(4));
+      Assert.assertEquals(0, new ForkSlot(directory).claim(1));
+      other.release();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import static org.mockito.Mockito.*;
+
+public class DockerClientPoolTest {
+
+  @Test
+  public void sameSettingsShareClient() {
+    DockerRuleParams params = new DockerRuleParams();
+    DockerClient first = DockerClientPool.acquire(params);
+    DockerClient second = DockerClientPool.acquire(new DockerRuleParams());
+    try {
+      Assert.assertSame(first, second);
+      Assert.assertEquals(2, DockerClientPool.references(first));
+    } finally {
+      DockerClientPool.release(first);
+      DockerClientPool.release(second);
+    }
+    Assert.assertEquals(0, DockerClientPool.references(first));
+  }
+
+  @Test
+  public void differentSettingsDoNotShare() {
+    DockerRuleParams params = new DockerRuleParams();
+    params.connectionPoolSize = 7;
+    DockerClient first = DockerClientPool.acquire(params);
+    DockerClient second = DockerClientPool.acquire(new DockerRuleParams());
+    try {
+      Assert.assertNotSame(first, second);
+    } finally {
+      DockerClientPool.release(first);
+      DockerClientPool.release(second);
+    }
+  }
+
+  @Test
+  public void unpooledClientClosedOnRelease() {
+    DockerClient mockClient = mock(DockerClient.class);
+    DockerClientPool.release(mockClient);
+    verify(mockClient).close();
+  }
+
+  @Test
+  public void ruleReleasesClientOnce() {
+    DockerRuleParams params = new DockerRuleParams();
+    DockerClient other = DockerClientPool.acquire(params);
+    DockerRule rule = new DockerRule(params);
+    try {
+      Assert.assertNull(rule.dockerClient);
+      rule.acquireClient();
+      Assert.assertSame(other, rule.dockerClient);
+      Assert.assertEquals(2, DockerClientPool.references(other));
+      rule.stop();
+      rule.stop();
+      Assert.assertEquals(1, DockerClientPool.references(other));
+    } finally {
+      DockerClientPool.release(other);
+    }
+  }
+
+  @Test
+  public void failedStartReleasesClient() throws Throwable {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "docker-junit-rule/missing:none";
+    params.pullPolicy = PullPolicy.never();
+    DockerClient other = DockerClientPool.acquire(params);
+    DockerRule rule = new DockerRule(params);
+    try {
+      for (int attempt = 0; attempt < 2; attempt++) {
+        try {
+          rule.start();
+          Assert.fail("Should throw an exception");
+        } catch (IllegalStateException e) {
+          Assert.assertEquals(1, DockerClientPool.references(other));
+        }
+      }
+    } finally {
+      DockerClientPool.release(other);
+    }
+  }
+
+  @Test
+  public void builtRuleHoldsNoClient() throws Exception {
+    DockerRuleParams params = new DockerRuleParams();
+    DockerClient other = DockerClientPool.acquire(params);
+    try {
+      DockerRule rule = DockerRule.builder().image("redis:3").build();
+      Assert.assertNull(rule.dockerClient);
+      // the prefetch gives its client back once it is done
+      long deadline = System.currentTimeMillis() + 10000;
+      while (DockerClientPool.references(other) > 1 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(1, DockerClientPool.references(other));
+      rule.stop();
+      Assert.assertEquals(1, DockerClientPool.references(other));
+    } finally {
+      DockerClientPool.release(other);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.docker.client.messages.Event;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class DockerEventBusTest {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  @Test
+  public void healthyEvent() throws Exception {
+    FakeSource source = new FakeSource();
+    DockerEventBus bus = new DockerEventBus(source);
+    ListenableFuture<Void> first = bus.awaitHealthy("first", Deadline.after(5000));
+    ListenableFuture<Void> second = bus.awaitHealthy("second", Deadline.after(5000));
+    // a single stream serves every container
+    Assert.assertEquals(1, source.opened.size());
+
+    source.last().push(event("health_status: healthy", "second"));
+    second.get(5, TimeUnit.SECONDS);
+    Assert.assertFalse(first.isDone());
+
+    source.last().push(event("health_status: unhealthy", "first"));
+    source.last().push(event("health_status: healthy", "first"));
+    first.get(5, TimeUnit.SECONDS);
+
+    // the stream is closed once nobody listens anymore
+    awaitNoSubscriptions(bus);
+    Assert.assertTrue(source.last().closed);
+  }
+
+  @Test
+  public void dieFailsTheWait() throws Exception {
+    FakeSource source = new FakeSource();
+    DockerEventBus bus = new DockerEventBus(source);
+    ListenableFuture<Void> healthy = bus.awaitHealthy("abc", Deadline.after(5000));
+    source.last().push(event("die", "abc"));
+    try {
+      healthy.get(5, TimeUnit.SECONDS);
+      Assert.fail("Should throw an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals("Container abc stopped before becoming healthy", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void timeout() throws Exception {
+    FakeSource source = new FakeSource();
+    DockerEventBus bus = new DockerEventBus(source);
+    ListenableFuture<Void> healthy = bus.awaitHealthy("abc", Deadline.after(100));
+    try {
+      healthy.get(5, TimeUnit.SECONDS);
+      Assert.fail("Should throw an exception");
+    } catch (ExecutionException e) {
+      Assert.assertEquals("Timeout while waiting for container abc to become healthy", e.getCause().getMessage());
+    }
+    awaitNoSubscriptions(bus);
+  }
+
+  @Test
+  public void reconnectWhenTheStreamEnds() throws Exception {
+    FakeSource source = new FakeSource();
+    DockerEventBus bus = new DockerEventBus(source);
+    ListenableFuture<Void> healthy = bus.awaitHealthy("abc", Deadline.after(5000));
+    source.last().end();
+    long begin = System.nanoTime();
+    while (source.opened.size() < 2 && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5)) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(2, source.opened.size());
+    Assert.assertNotNull(source.since.get(1));
+    source.last().push(event("health_status: healthy", "abc"));
+    healthy.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void stopReconnectingOnceTheClientIsClosed() throws Exception {
+    final FakeSource streams = new FakeSource();
+    final List<Long> attempts = new ArrayList<>();
+    DockerEventBus bus = new DockerEventBus(new DockerEventBus.Source() {
+      @Override
+      public synchronized Iterator<Event> open(Long sinceSeconds) {
+        attempts.add(sinceSeconds);
+        if (attempts.size() > 1) {
+          throw new IllegalStateException("Client instance has been closed.");
+        }
+        return streams.open(sinceSeconds);
+      }
+    });
+    ListenableFuture<Void> healthy = bus.awaitHealthy("abc", Deadline.after(3000));
+    streams.last().end();
+    try {
+      healthy.get(5, TimeUnit.SECONDS);
+      Assert.fail("Should time out");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause().getMessage().contains("Timeout"));
+    }
+    Assert.assertEquals(2, attempts.size());
+  }
+
+  /**
+   * The future listeners unsubscribe right after the waiting thread has been released.
+   */
+  private static void awaitNoSubscriptions(DockerEventBus bus) throws InterruptedException {
+    long begin = System.nanoTime();
+    while (bus.subscriptions() > 0 && System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5)) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(0, bus.subscriptions());
+  }
+
+  static Event event(String status, String id) throws IOException {
+    return MAPPER.readValue("{\"status\":\"" + status + "\",\"id\":\"" + id + "\"}", Event.class);
+  }
+
+  static class FakeSource implements DockerEventBus.Source {
+    final List<FakeStream> opened = new ArrayList<>();
+    final List<Long> since = new ArrayList<>();
+
+    @Override
+    public synchronized Iterator<Event> open(Long sinceSeconds) {
+      FakeStream stream = new FakeStream();
+      opened.add(stream);
+      since.add(sinceSeconds);
+      return stream;
+    }
+
+    synchronized FakeStream last() {
+      return opened.get(opened.size() - 1);
+    }
+  }
+
+  static class FakeStream implements Iterator<Event>, Closeable {
+    private static final Event END = new Event();
+    private final BlockingQueue<Event> events = new LinkedBlockingQueue<>();
+    private Event next;
+    volatile boolean closed;
+
+    void push(Event event) {
+      events.add(event);
+    }
+
+    void end() {
+      events.add(END);
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null) {
+        try {
+          next = events.take();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return next != END;
+    }
+
+    @Override
+    public Event next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Event event = next;
+      next = null;
+      return event;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      events.add(END);
+    }
+  }
+}
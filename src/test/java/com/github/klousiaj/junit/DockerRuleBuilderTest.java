@@ -1,5 +1,6 @@
 package com.github.klousiaj.junit;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 /**
@@ -18,4 +19,30 @@ public class DockerRuleBuilderTest {
     DockerRuleBuilder builder = new DockerRuleBuilder();
     builder.labels("com.github.klousiaj.example:a \nsample");
   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void relativeTmpfsPath() {
+    DockerRuleBuilder builder = new DockerRuleBuilder();
+    builder.tmpfs("data/db");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidTmpfsSize() {
+    DockerRuleBuilder builder = new DockerRuleBuilder();
+    builder.inMemory(InMemoryPreset.POSTGRES, "512 MB");
+  }
+
+  @Test
+  public void sizes() {
+    Assert.assertEquals(100, DockerRuleBuilder.bytes("100"));
+    Assert.assertEquals(100, DockerRuleBuilder.bytes("100b"));
+    Assert.assertEquals(64 * 1024, DockerRuleBuilder.bytes("64k"));
+    Assert.assertEquals(3L * 1024 * 1024 * 1024, DockerRuleBuilder.bytes("3g"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidCpuSet() {
+    DockerRuleBuilder builder = new DockerRuleBuilder();
+    builder.cpuSet("0-");
+  }
 }
@@ -1,6 +1,7 @@
 package com.github.klousiaj.junit;
 
 import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
 import com.spotify.docker.client.exceptions.DockerException;
 import com.spotify.docker.client.exceptions.ImageNotFoundException;
 import com.spotify.docker.client.messages.*;
@@ -127,7 +128,7 @@ public class DockerRuleTest {
 
     rule.initialize();
     verify(mockClient).inspectImage(anyString());
-    verify(mockClient).pull(params.imageName);
+    verify(mockClient).pull(eq(params.imageName), any(ProgressHandler.class));
   }
 
   @Test
@@ -151,6 +152,7 @@ public class DockerRuleTest {
     rule.initialize();
     verify(mockClient).inspectImage(anyString());
     verify(mockClient, never()).pull(params.imageName);
+    verify(mockClient, never()).pull(eq(params.imageName), any(ProgressHandler.class));
   }
 
   @Test
@@ -320,6 +322,35 @@ public class DockerRuleTest {
     Assert.assertNotNull(rule.foundRunningContainer(DockerRule.generatePortBinding(ports)));
   }
 
+  @Test
+  public void attachToPausedContainer() throws Exception {
+    String image = "kitematic/hello-world-nginx:1.0.0";
+    List<Container> containers = new ArrayList<>();
+    Container container = mock(Container.class);
+    when(container.image()).thenReturn(image);
+    when(container.state()).thenReturn("paused");
+    when(container.id()).thenReturn("eb01ee35d1fe");
+    List<Container.PortMapping> mappings = generateMappingList(":8080");
+    when(container.ports()).thenReturn(mappings);
+    containers.add(container);
+
+    DockerClient mockClient = mock(DockerClient.class);
+    when(mockClient.listContainers()).thenReturn(containers);
+    when(mockClient.inspectContainer("eb01ee35d1fe")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+
+    DockerRule rule = new DockerRule(mockClient);
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = image;
+    params.ports = new String[]{":8080"};
+    params.useRunning = true;
+    rule.params = params;
+
+    rule.attachToContainer();
+    Assert.assertEquals("eb01ee35d1fe", rule.getContainer().id());
+    verify(mockClient).unpauseContainer("eb01ee35d1fe");
+    verify(mockClient, never()).createContainer(any(ContainerConfig.class));
+  }
+
   @Test
   public void attachToRunningSameImageMoreOpenPorts() throws Exception {
     String image = "kitematic/hello-world-nginx:1.0.0";
@@ -446,6 +477,35 @@ public class DockerRuleTest {
     return mockMapping;
   }
 
+  @Test
+  public void tmpfsInHostConfig() throws Exception {
+    DockerRule rule = new DockerRule(mock(DockerClient.class));
+    rule.params = new DockerRuleParams();
+    rule.params.tmpfs.put("/var/lib/postgresql/data", "size=512m");
+
+    ContainerConfig config = rule.createContainerConfig("postgres:9.6", DockerRule.generatePortBinding("5432"),
+      null, null, null);
+    Assert.assertEquals("size=512m", config.hostConfig().tmpfs().get("/var/lib/postgresql/data"));
+    Assert.assertEquals(1, config.hostConfig().portBindings().size());
+  }
+
+  @Test
+  public void resourcesInHostConfig() throws Exception {
+    DockerRule rule = new DockerRule(mock(DockerClient.class));
+    rule.params = new DockerRuleParams();
+    rule.params.cpuSet = "0-1";
+    rule.params.memory = DockerRuleBuilder.bytes("512m");
+    rule.params.shmSize = DockerRuleBuilder.bytes("1g");
+    rule.params.ulimits.add(HostConfig.Ulimit.builder().name("nofile").soft(1024).hard(4096).build());
+
+    HostConfig hostConfig = rule.createHostConfig(DockerRule.generatePortBinding("5432"));
+    Assert.assertEquals("0-1", hostConfig.cpusetCpus());
+    Assert.assertEquals(Long.valueOf(512L * 1024 * 1024), hostConfig.memory());
+    Assert.assertEquals(Long.valueOf(1024L * 1024 * 1024), hostConfig.shmSize());
+    Assert.assertEquals("nofile", hostConfig.ulimits().get(0).name());
+    Assert.assertNull(hostConfig.cpuShares());
+  }
+
   @Test
   public void validPortMap() {
     List<Container.PortMapping> mapping = generateMappingList("8080", "38000:80", ":7000");
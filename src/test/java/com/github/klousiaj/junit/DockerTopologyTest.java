@@ -0,0 +1,143 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DockerTopologyTest {
+
+  private FakeDockerDaemon daemon;
+  private final List<DockerClient> clients = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    daemon = FakeDockerDaemon.start();
+  }
+
+  @After
+  public void tearDown() {
+    for (DockerClient client : clients) {
+      client.close();
+    }
+    daemon.close();
+  }
+
+  @Test
+  public void dependentsStartOnceTheirDependenciesAreReady() throws Throwable {
+    daemon.image("postgres:9.6").log(300, "ready to accept connections");
+    daemon.image("rabbitmq:management").log(300, "Server startup complete");
+    daemon.image("my/app").log(0, "started");
+    DockerTopology topology = topology(
+      node("db", "postgres:9.6", "ready to accept connections"),
+      node("broker", "rabbitmq:management", "Server startup complete"),
+      node("app", "my/app", "started", "db", "broker"));
+    topology.start();
+    Assert.assertEquals(3, daemon.running());
+
+    long db = daemon.startedAt(topology.get("db").getContainer().id()).getTime();
+    long broker = daemon.startedAt(topology.get("broker").getContainer().id()).getTime();
+    long app = daemon.startedAt(topology.get("app").getContainer().id()).getTime();
+    // db and broker start together, app once both of them are ready
+    Assert.assertTrue(Math.abs(db - broker) < 300);
+    Assert.assertTrue(app >= Math.max(db, broker) + 300);
+
+    Assert.assertEquals(Collections.singletonList("app"),
+      daemon.aliases(topology.get("app").getContainer().id(), topology.getNetwork()));
+    Assert.assertEquals(1, daemon.networks());
+    topology.stop();
+    Assert.assertEquals(0, daemon.containers());
+    Assert.assertEquals(0, daemon.networks());
+  }
+
+  @Test
+  public void failureStopsTheStartedContainers() throws Throwable {
+    daemon.image("postgres:9.6").log(0, "ready to accept connections");
+    daemon.image("my/app").exitAfter(50, 1);
+    DockerTopology topology = topology(
+      node("db", "postgres:9.6", "ready to accept connections"),
+      node("app", "my/app", "started", "db"),
+      node("worker", "my/app", "started", "app"));
+    try {
+      topology.start();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("exited with code 1"));
+    }
+    Assert.assertEquals(0, daemon.containers());
+    Assert.assertEquals(0, daemon.networks());
+    // the worker never started
+    Assert.assertEquals(2, daemon.count(FakeDockerDaemon.Operation.CREATE));
+  }
+
+  @Test
+  public void order() {
+    Map<String, List<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("app", Arrays.asList("db", "cache"));
+    dependencies.put("cache", Collections.<String>emptyList());
+    dependencies.put("db", Collections.<String>emptyList());
+    Assert.assertEquals(Arrays.asList("cache", "db", "app"), DockerTopology.order(dependencies));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownDependency() {
+    Map<String, List<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("app", Collections.singletonList("db"));
+    DockerTopology.order(dependencies);
+  }
+
+  @Test
+  public void cycle() {
+    Map<String, List<String>> dependencies = new LinkedHashMap<>();
+    dependencies.put("db", Collections.<String>emptyList());
+    dependencies.put("app", Arrays.asList("db", "worker"));
+    dependencies.put("worker", Collections.singletonList("app"));
+    try {
+      DockerTopology.order(dependencies);
+      Assert.fail("Should throw an exception");
+    } catch (IllegalArgumentException e) {
+      Assert.assertEquals("The containers [app, worker] depend on each other", e.getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void sharedContainer() {
+    DockerTopology.builder().container("db", DockerRule.builder().image("postgres:9.6").shared(true));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidName() {
+    DockerTopology.builder().container("my_db", DockerRule.builder().image("postgres:9.6"));
+  }
+
+  private DockerTopology topology(DockerTopology.Node... nodes) {
+    return new DockerTopology("topology-test", client(), Arrays.asList(nodes));
+  }
+
+  private DockerTopology.Node node(String name, String image, String log, String... dependencies) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = image;
+    params.ports = new String[0];
+    params.startupTimeout = 10000;
+    params.network = "topology-test";
+    params.networkAliases = Collections.singletonList(name);
+    params.logPatterns.add(LogPattern.literal(log, 1));
+    DockerRule rule = new DockerRule(client());
+    rule.params = params;
+    return new DockerTopology.Node(name, rule, Arrays.asList(dependencies));
+  }
+
+  private DockerClient client() {
+    DockerClient client = daemon.client();
+    clients.add(client);
+    return client;
+  }
+}
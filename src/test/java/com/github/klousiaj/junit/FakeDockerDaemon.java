@@ -0,0 +1,1249 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * An in-process docker daemon for hermetic tests and benchmarks of the rules.
+ * </p>
+ * <p>
+ * It serves the part of the Engine API used by the rules on a loopback port, so that a
+ * DefaultDockerClient talks to it over HTTP exactly as it would to docker: image inspection,
+ * pull and tag, container create, start, inspect, list, logs, kill and remove, commit, archive upload,
+ * network create, connect and remove, and the events stream. Containers do not run anything: what they log, when they become
+ * healthy and when they exit is described per image with {@link #image(String)}. Each
+ * operation can be slowed down with {@link #latency(Operation, long)} or made to fail with
+ * {@link #failNext(Operation, int, String)}.
+ * </p>
+ * <pre>
+ * {@code
+ * FakeDockerDaemon daemon = FakeDockerDaemon.start();
+ * daemon.image("rabbitmq:management").log(50, "Server startup complete").healthyAfter(100);
+ * DockerClient client = daemon.client();
+ * }
+ * </pre>
+ */
+class FakeDockerDaemon implements Closeable {
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private static final Pattern VERSION = Pattern.compile("^/v[0-9.]+(/.*)$");
+  private static final Pattern IMAGE = Pattern.compile("^/images/(.+)/json$");
+  private static final Pattern TAG = Pattern.compile("^/images/(.+)/tag$");
+  private static final Pattern CONTAINER = Pattern.compile("^/containers/([^/]+)(/[a-z]+)?$");
+  private static final Pattern NETWORK = Pattern.compile("^/networks/([^/]+)(/[a-z]+)?$");
+  private static final long POLL_MILLIS = 100;
+
+  enum Operation {
+    PING, INSPECT_IMAGE, PULL, TAG, CREATE, START, INSPECT, LIST, LOGS, KILL, REMOVE, EVENTS, COMMIT, ARCHIVE,
+    CREATE_NETWORK, CONNECT_NETWORK, REMOVE_NETWORK
+  }
+
+  /**
+   * What the containers of an image do once they are started.
+   */
+  static class ImageBehavior {
+    private final List<LogLine> logs = new CopyOnWriteArrayList<>();
+    private volatile long healthyAfter = -1;
+    private volatile long exitAfter = -1;
+    private volatile int exitCode;
+    private volatile boolean oomKilled;
+    private volatile long builtAgo;
+    private volatile int layers = 2;
+    private volatile long layerMillis;
+
+    /**
+     * @param line a line logged on stdout when the container starts
+     * @return the behavior
+     */
+    ImageBehavior log(String line) {
+      return log(0, line);
+    }
+
+    /**
+     * @param delayMillis the time after the start of the container
+     * @param line        a line logged on stdout at that time
+     * @return the behavior
+     */
+    ImageBehavior log(long delayMillis, String line) {
+      logs.add(new LogLine(delayMillis, 1, line));
+      return this;
+    }
+
+    /**
+     * @param delayMillis the time after the start of the container
+     * @param line        a line logged on stderr at that time
+     * @return the behavior
+     */
+    ImageBehavior logError(long delayMillis, String line) {
+      logs.add(new LogLine(delayMillis, 2, line));
+      return this;
+    }
+
+    /**
+     * Give the image a HEALTHCHECK that passes after a while.
+     *
+     * @param delayMillis the time after the start of the container
+     * @return the behavior
+     */
+    ImageBehavior healthyAfter(long delayMillis) {
+      healthyAfter = delayMillis;
+      return this;
+    }
+
+    /**
+     * @param delayMillis the time after the start of the container
+     * @param code        the exit code of the container
+     * @return the behavior
+     */
+    ImageBehavior exitAfter(long delayMillis, int code) {
+      exitAfter = delayMillis;
+      exitCode = code;
+      return this;
+    }
+
+    /**
+     * @param millis the age of the image
+     * @return the behavior
+     */
+    ImageBehavior builtAgo(long millis) {
+      builtAgo = millis;
+      return this;
+    }
+
+    /**
+     * @param count       the number of layers pulled
+     * @param delayMillis the time to pull each layer
+     * @return the behavior
+     */
+    ImageBehavior layers(int count, long delayMillis) {
+      layers = count;
+      layerMillis = delayMillis;
+      return this;
+    }
+
+    /**
+     * Exit as if killed by the OOM killer.
+     *
+     * @param delayMillis the time after the start of the container
+     * @return the behavior
+     */
+    ImageBehavior oomKilledAfter(long delayMillis) {
+      exitAfter(delayMillis, 137);
+      oomKilled = true;
+      return this;
+    }
+  }
+
+  private static class LogLine {
+    final long delayMillis;
+    final int stream;
+    final String text;
+    long timestamp;
+
+    LogLine(long delayMillis, int stream, String text) {
+      this.delayMillis = delayMillis;
+      this.stream = stream;
+      this.text = text;
+    }
+  }
+
+  private static class Failure {
+    final int status;
+    final String message;
+
+    Failure(int status, String message) {
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  private class FakeContainer {
+    final String id = UUID.randomUUID().toString().replace("-", "") + UUID.randomUUID().toString().replace("-", "");
+    final String name;
+    final String image;
+    final JsonNode config;
+    final Date created = new Date();
+    final Map<String, Integer> bindings = new LinkedHashMap<>();
+    final Map<String, Integer> published = new LinkedHashMap<>();
+    final List<LogLine> logs = new ArrayList<>();
+    final Map<String, List<String>> aliases = new LinkedHashMap<>();
+    String state = "created";
+    String health;
+    Date startedAt;
+    Date finishedAt;
+    int exitCode;
+    boolean oomKilled;
+    boolean removed;
+
+    FakeContainer(String name, String image, JsonNode config) {
+      this.name = name;
+      this.image = image;
+      this.config = config;
+      JsonNode portBindings = config.path("HostConfig").path("PortBindings");
+      Iterator<Map.Entry<String, JsonNode>> ports = portBindings.fields();
+      while (ports.hasNext()) {
+        Map.Entry<String, JsonNode> port = ports.next();
+        String hostPort = port.getValue().path(0).path("HostPort").asText("");
+        bindings.put(normalize(port.getKey()), hostPort.isEmpty() ? 0 : Integer.parseInt(hostPort));
+      }
+      Iterator<String> exposed = config.path("ExposedPorts").fieldNames();
+      while (exposed.hasNext()) {
+        String port = normalize(exposed.next());
+        if (!bindings.containsKey(port)) {
+          bindings.put(port, -1);
+        }
+      }
+    }
+
+    boolean isRunning() {
+      return "running".equals(state);
+    }
+
+    String status() {
+      if (isRunning()) {
+        long seconds = (System.currentTimeMillis() - startedAt.getTime()) / 1000;
+        String up = "Up " + (seconds < 1 ? "Less than a second" : seconds + " seconds");
+        return health == null ? up : up + " (" + ("starting".equals(health) ? "health: starting" : health) + ")";
+      }
+      if ("exited".equals(state)) {
+        return "Exited (" + exitCode + ") " + (System.currentTimeMillis() - finishedAt.getTime()) / 1000 + " seconds ago";
+      }
+      return "Created";
+    }
+  }
+
+  private final HttpServer server;
+  private final ExecutorService handlers;
+  private final ScheduledExecutorService timers;
+  private final Map<String, ImageBehavior> images = new ConcurrentHashMap<>();
+  private final Set<String> pulledOnly = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final Map<String, FakeContainer> containers = new LinkedHashMap<>();
+  private final Set<Integer> allocatedPorts = new HashSet<>();
+  private final Map<String, String> networks = new LinkedHashMap<>();
+  private final Map<Operation, Long> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, LinkedList<Failure>> failures = new EnumMap<>(Operation.class);
+  private final Map<Operation, AtomicInteger> counts = new EnumMap<>(Operation.class);
+  private final List<ObjectNode> history = new ArrayList<>();
+  private final List<BlockingQueue<ObjectNode>> subscribers = new CopyOnWriteArrayList<>();
+  private int nextPort = 32768;
+  private volatile boolean closed;
+
+  private FakeDockerDaemon() throws IOException {
+    for (Operation operation : Operation.values()) {
+      counts.put(operation, new AtomicInteger());
+    }
+    handlers = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("fake-docker-daemon-%d")
+      .build());
+    timers = Executors.newScheduledThreadPool(2, new ThreadFactoryBuilder()
+      .setDaemon(true)
+      .setNameFormat("fake-docker-daemon-timer-%d")
+      .build());
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    server.setExecutor(handlers);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          dispatch(exchange);
+        } catch (IOException e) {
+          // the client went away
+        } catch (RuntimeException | InterruptedException e) {
+          try {
+            respond(exchange, 500, message(String.valueOf(e)));
+          } catch (IOException ignored) {
+            // the client went away
+          }
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * @return a daemon listening on a random loopback port
+   */
+  static FakeDockerDaemon start() throws IOException {
+    FakeDockerDaemon daemon = new FakeDockerDaemon();
+    daemon.server.start();
+    return daemon;
+  }
+
+  URI uri() {
+    return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+  }
+
+  /**
+   * @return a new client connected to the daemon, to close once done
+   */
+  DockerClient client() {
+    return DefaultDockerClient.builder()
+      .uri(uri())
+      .connectionPoolSize(DockerClientPool.DEFAULT_CONNECTION_POOL_SIZE)
+      .build();
+  }
+
+  /**
+   * Make an image available locally, and describe its containers.
+   *
+   * @param name the name of the image
+   * @return the behavior of its containers
+   */
+  ImageBehavior image(String name) {
+    ImageBehavior behavior = images.get(name);
+    if (behavior == null) {
+      behavior = new ImageBehavior();
+      images.put(name, behavior);
+    }
+    pulledOnly.remove(name);
+    return behavior;
+  }
+
+  /**
+   * Describe an image that is not available locally until it is pulled.
+   *
+   * @param name the name of the image
+   * @return the behavior of its containers
+   */
+  ImageBehavior remoteImage(String name) {
+    ImageBehavior behavior = image(name);
+    pulledOnly.add(name);
+    return behavior;
+  }
+
+  /**
+   * @param operation   the operation to slow down
+   * @param delayMillis the delay before each of its responses
+   * @return the daemon
+   */
+  synchronized FakeDockerDaemon latency(Operation operation, long delayMillis) {
+    latencies.put(operation, delayMillis);
+    return this;
+  }
+
+  /**
+   * @param operation the operation to fail once
+   * @param status    the HTTP status of the response
+   * @param message   the message of the error
+   * @return the daemon
+   */
+  synchronized FakeDockerDaemon failNext(Operation operation, int status, String message) {
+    LinkedList<Failure> queue = failures.get(operation);
+    if (queue == null) {
+      queue = new LinkedList<>();
+      failures.put(operation, queue);
+    }
+    queue.add(new Failure(status, message));
+    return this;
+  }
+
+  /**
+   * @param operation an operation
+   * @return the number of requests received for the operation
+   */
+  int count(Operation operation) {
+    return counts.get(operation).get();
+  }
+
+  /**
+   * @return the number of containers that are not removed
+   */
+  synchronized int containers() {
+    return containers.size();
+  }
+
+  /**
+   * @return the number of running containers
+   */
+  synchronized int running() {
+    int running = 0;
+    for (FakeContainer container : containers.values()) {
+      if (container.isRunning()) {
+        running++;
+      }
+    }
+    return running;
+  }
+
+  /**
+   * @return the number of networks that are not removed
+   */
+  synchronized int networks() {
+    return networks.size();
+  }
+
+  /**
+   * @param id      the id of a container
+   * @param network the name of a network
+   * @return the aliases of the container on the network, null if it is not connected to it
+   */
+  synchronized List<String> aliases(String id, String network) {
+    FakeContainer container = containers.get(id);
+    return container == null ? null : container.aliases.get(network);
+  }
+
+  /**
+   * @param id the id of a container
+   * @return the time of its last start, null if it never started
+   */
+  Date startedAt(String id) {
+    FakeContainer container = find(id);
+    if (container == null) {
+      return null;
+    }
+    synchronized (container) {
+      return container.startedAt;
+    }
+  }
+
+  /**
+   * Make a container exit, as if its process ended.
+   *
+   * @param id   the id of the container
+   * @param code the exit code
+   */
+  void exit(String id, int code) {
+    FakeContainer container;
+    synchronized (this) {
+      container = containers.get(id);
+    }
+    if (container != null) {
+      exit(container, code, false);
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    synchronized (this) {
+      for (FakeContainer container : containers.values()) {
+        synchronized (container) {
+          container.notifyAll();
+        }
+      }
+    }
+    server.stop(0);
+    timers.shutdownNow();
+    handlers.shutdownNow();
+  }
+
+  private void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getRawPath();
+    Matcher version = VERSION.matcher(path);
+    if (version.matches()) {
+      path = version.group(1);
+    }
+    Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+
+    Matcher image = IMAGE.matcher(path);
+    Matcher tag = TAG.matcher(path);
+    Matcher container = CONTAINER.matcher(path);
+    Matcher network = NETWORK.matcher(path);
+    if ("GET".equals(method) && "/_ping".equals(path)) {
+      if (begin(exchange, Operation.PING)) {
+        respond(exchange, 200, "OK".getBytes(StandardCharsets.UTF_8));
+      }
+    } else if ("GET".equals(method) && image.matches()) {
+      if (begin(exchange, Operation.INSPECT_IMAGE)) {
+        inspectImage(exchange, decode(image.group(1)));
+      }
+    } else if ("POST".equals(method) && "/images/create".equals(path)) {
+      if (begin(exchange, Operation.PULL)) {
+        pull(exchange, query);
+      }
+    } else if ("POST".equals(method) && tag.matches()) {
+      if (begin(exchange, Operation.TAG)) {
+        tag(exchange, decode(tag.group(1)), query);
+      }
+    } else if ("POST".equals(method) && "/containers/create".equals(path)) {
+      if (begin(exchange, Operation.CREATE)) {
+        create(exchange, query);
+      }
+    } else if ("GET".equals(method) && "/containers/json".equals(path)) {
+      if (begin(exchange, Operation.LIST)) {
+        list(exchange, query);
+      }
+    } else if ("GET".equals(method) && "/events".equals(path)) {
+      if (begin(exchange, Operation.EVENTS)) {
+        events(exchange, query);
+      }
+    } else if ("POST".equals(method) && "/commit".equals(path)) {
+      if (begin(exchange, Operation.COMMIT)) {
+        commit(exchange, query);
+      }
+    } else if ("POST".equals(method) && "/networks/create".equals(path)) {
+      if (begin(exchange, Operation.CREATE_NETWORK)) {
+        createNetwork(exchange);
+      }
+    } else if ("POST".equals(method) && network.matches() && "/connect".equals(network.group(2))) {
+      if (begin(exchange, Operation.CONNECT_NETWORK)) {
+        connectNetwork(exchange, decode(network.group(1)));
+      }
+    } else if ("DELETE".equals(method) && network.matches() && network.group(2) == null) {
+      if (begin(exchange, Operation.REMOVE_NETWORK)) {
+        removeNetwork(exchange, decode(network.group(1)));
+      }
+    } else if (container.matches()) {
+      containerRequest(exchange, method, container.group(1), container.group(2), query);
+    } else {
+      respond(exchange, 404, message("page not found"));
+    }
+  }
+
+  private void containerRequest(HttpExchange exchange, String method, String id, String action,
+                                Map<String, String> query) throws IOException, InterruptedException {
+    if ("POST".equals(method) && "/start".equals(action)) {
+      if (begin(exchange, Operation.START)) {
+        start(exchange, id);
+      }
+    } else if ("GET".equals(method) && "/json".equals(action)) {
+      if (begin(exchange, Operation.INSPECT)) {
+        inspect(exchange, id);
+      }
+    } else if ("GET".equals(method) && "/logs".equals(action)) {
+      if (begin(exchange, Operation.LOGS)) {
+        logs(exchange, id, query);
+      }
+    } else if ("POST".equals(method) && "/kill".equals(action)) {
+      if (begin(exchange, Operation.KILL)) {
+        kill(exchange, id);
+      }
+    } else if ("DELETE".equals(method) && action == null) {
+      if (begin(exchange, Operation.REMOVE)) {
+        remove(exchange, id);
+      }
+    } else if ("PUT".equals(method) && "/archive".equals(action)) {
+      if (begin(exchange, Operation.ARCHIVE)) {
+        archive(exchange, id);
+      }
+    } else {
+      respond(exchange, 404, message("page not found"));
+    }
+  }
+
+  /**
+   * Count the request, apply the latency and the failures of the operation.
+   *
+   * @return false when the request was answered with a failure
+   */
+  private boolean begin(HttpExchange exchange, Operation operation) throws IOException, InterruptedException {
+    counts.get(operation).incrementAndGet();
+    Long latency;
+    Failure failure = null;
+    synchronized (this) {
+      latency = latencies.get(operation);
+      LinkedList<Failure> queue = failures.get(operation);
+      if (queue != null && !queue.isEmpty()) {
+        failure = queue.removeFirst();
+      }
+    }
+    if (latency != null && latency > 0) {
+      Thread.sleep(latency);
+    }
+    if (failure != null) {
+      respond(exchange, failure.status, message(failure.message));
+      return false;
+    }
+    return true;
+  }
+
+  private void inspectImage(HttpExchange exchange, String name) throws IOException {
+    if (!images.containsKey(name) || pulledOnly.contains(name)) {
+      respond(exchange, 404, message("No such image: " + name));
+      return;
+    }
+    ObjectNode image = MAPPER.createObjectNode();
+    image.put("Id", "sha256:" + sha(name));
+    image.putArray("RepoTags").add(name);
+    image.put("Created", iso(new Date(System.currentTimeMillis() - images.get(name).builtAgo)));
+    image.put("Architecture", "amd64");
+    image.put("Os", "linux");
+    image.put("Size", 0);
+    respond(exchange, 200, MAPPER.writeValueAsBytes(image));
+  }
+
+  private void pull(HttpExchange exchange, Map<String, String> query) throws IOException, InterruptedException {
+    String name = query.get("fromImage");
+    if (query.containsKey("tag") && !query.get("tag").isEmpty()) {
+      name = name + ":" + query.get("tag");
+    } else if (!name.contains(":")) {
+      name = name + ":latest";
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    if (!images.containsKey(name)) {
+      writeJson(out, MAPPER.createObjectNode().put("error", "repository " + name + " not found"));
+      return;
+    }
+    ImageBehavior behavior = images.get(name);
+    writeJson(out, MAPPER.createObjectNode().put("status", "Pulling from " + query.get("fromImage"))
+      .put("id", name.substring(name.lastIndexOf(':') + 1)));
+    for (int ii = 0; ii < behavior.layers; ii++) {
+      String layer = sha(name + ii).substring(0, 12);
+      writeJson(out, layer(layer, "Pulling fs layer"));
+      Thread.sleep(behavior.layerMillis);
+      ObjectNode downloading = layer(layer, "Downloading");
+      downloading.with("progressDetail").put("current", 1 << 19).put("total", 1 << 20);
+      writeJson(out, downloading);
+      writeJson(out, layer(layer, "Download complete"));
+      writeJson(out, layer(layer, "Pull complete"));
+    }
+    pulledOnly.remove(name);
+    writeJson(out, MAPPER.createObjectNode().put("status", "Digest: sha256:" + sha(name)));
+    writeJson(out, MAPPER.createObjectNode().put("status", "Status: Downloaded newer image for " + name));
+  }
+
+  private static ObjectNode layer(String id, String status) {
+    ObjectNode progress = MAPPER.createObjectNode();
+    progress.put("status", status);
+    progress.putObject("progressDetail");
+    progress.put("id", id);
+    return progress;
+  }
+
+  private void tag(HttpExchange exchange, String source, Map<String, String> query) throws IOException {
+    if (!images.containsKey(source) || pulledOnly.contains(source)) {
+      respond(exchange, 404, message("No such image: " + source));
+      return;
+    }
+    String name = query.get("repo") + ":" + (query.containsKey("tag") ? query.get("tag") : "latest");
+    ImageBehavior tagged = image(name);
+    copy(images.get(source), tagged);
+    tagged.builtAgo = images.get(source).builtAgo;
+    respond(exchange, 201, null);
+  }
+
+  private static void copy(ImageBehavior source, ImageBehavior target) {
+    target.logs.addAll(source.logs);
+    target.healthyAfter = source.healthyAfter;
+    target.exitAfter = source.exitAfter;
+    target.exitCode = source.exitCode;
+    target.oomKilled = source.oomKilled;
+  }
+
+  private void create(HttpExchange exchange, Map<String, String> query) throws IOException {
+    JsonNode config = MAPPER.readTree(readBody(exchange));
+    String image = config.path("Image").asText();
+    if (!images.containsKey(image) || pulledOnly.contains(image)) {
+      respond(exchange, 404, message("No such image: " + image));
+      return;
+    }
+    String name = query.get("name");
+    FakeContainer container;
+    synchronized (this) {
+      if (name != null) {
+        for (FakeContainer existing : containers.values()) {
+          if (name.equals(existing.name)) {
+            respond(exchange, 409, message("Conflict. The name \"/" + name + "\" is already in use by container " + existing.id));
+            return;
+          }
+        }
+      }
+      container = new FakeContainer(name == null ? "fake_" + (containers.size() + 1) : name, image, config);
+      containers.put(container.id, container);
+    }
+    event("create", container);
+    ObjectNode created = MAPPER.createObjectNode();
+    created.put("Id", container.id);
+    created.putNull("Warnings");
+    respond(exchange, 201, MAPPER.writeValueAsBytes(created));
+  }
+
+  private void start(HttpExchange exchange, String id) throws IOException {
+    final FakeContainer container = find(id);
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    synchronized (this) {
+      if (container.isRunning()) {
+        respond(exchange, 304, null);
+        return;
+      }
+      Map<String, Integer> published = new LinkedHashMap<>();
+      for (Map.Entry<String, Integer> binding : container.bindings.entrySet()) {
+        int port = binding.getValue();
+        if (port < 0) {
+          continue;
+        }
+        if (port == 0) {
+          do {
+            port = nextPort++;
+          } while (allocatedPorts.contains(port));
+        } else if (allocatedPorts.contains(port)) {
+          for (Integer allocated : published.values()) {
+            allocatedPorts.remove(allocated);
+          }
+          respond(exchange, 500, message("driver failed programming external connectivity on endpoint "
+            + container.name + ": Bind for 0.0.0.0:" + port + " failed: port is already allocated"));
+          return;
+        }
+        allocatedPorts.add(port);
+        published.put(binding.getKey(), port);
+      }
+      container.published.clear();
+      container.published.putAll(published);
+    }
+    ImageBehavior behavior = images.get(container.image);
+    synchronized (container) {
+      container.state = "running";
+      container.startedAt = new Date();
+      container.finishedAt = null;
+      container.exitCode = 0;
+      container.oomKilled = false;
+      container.health = behavior.healthyAfter >= 0 ? "starting" : null;
+    }
+    event("start", container);
+    for (final LogLine line : behavior.logs) {
+      timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          append(container, line);
+        }
+      }, line.delayMillis, TimeUnit.MILLISECONDS);
+    }
+    final Date startedAt = container.startedAt;
+    if (behavior.healthyAfter >= 0) {
+      timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (container) {
+            if (!container.isRunning() || container.startedAt != startedAt) {
+              return;
+            }
+            container.health = "healthy";
+          }
+          event("health_status: healthy", container);
+        }
+      }, behavior.healthyAfter, TimeUnit.MILLISECONDS);
+    }
+    if (behavior.exitAfter >= 0) {
+      final int code = behavior.exitCode;
+      final boolean oom = behavior.oomKilled;
+      timers.schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (container.startedAt == startedAt) {
+            exit(container, code, oom);
+          }
+        }
+      }, behavior.exitAfter, TimeUnit.MILLISECONDS);
+    }
+    respond(exchange, 204, null);
+  }
+
+  private void append(FakeContainer container, LogLine line) {
+    synchronized (container) {
+      if (!container.isRunning()) {
+        return;
+      }
+      LogLine logged = new LogLine(line.delayMillis, line.stream, line.text);
+      logged.timestamp = System.currentTimeMillis();
+      container.logs.add(logged);
+      container.notifyAll();
+    }
+  }
+
+  private void exit(FakeContainer container, int code, boolean oom) {
+    synchronized (container) {
+      if (!container.isRunning()) {
+        return;
+      }
+      container.state = "exited";
+      container.exitCode = code;
+      container.oomKilled = oom;
+      container.finishedAt = new Date();
+      container.health = container.health == null ? null : "unhealthy";
+      container.notifyAll();
+    }
+    synchronized (this) {
+      allocatedPorts.removeAll(container.published.values());
+    }
+    if (oom) {
+      event("oom", container);
+    }
+    event("die", container);
+  }
+
+  private void inspect(HttpExchange exchange, String id) throws IOException {
+    FakeContainer container = find(id);
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    ObjectNode info = MAPPER.createObjectNode();
+    synchronized (container) {
+      info.put("Id", container.id);
+      info.put("Created", iso(container.created));
+      info.put("Path", "");
+      info.putArray("Args");
+      ObjectNode config = container.config.deepCopy();
+      config.remove("HostConfig");
+      info.set("Config", config);
+      info.set("HostConfig", container.config.path("HostConfig"));
+      ObjectNode state = info.putObject("State");
+      state.put("Status", container.state);
+      state.put("Running", container.isRunning());
+      state.put("Paused", false);
+      state.put("Restarting", false);
+      state.put("OOMKilled", container.oomKilled);
+      state.put("Pid", container.isRunning() ? 4242 : 0);
+      state.put("ExitCode", container.exitCode);
+      state.put("Error", "");
+      state.put("StartedAt", iso(container.startedAt == null ? new Date(0) : container.startedAt));
+      state.put("FinishedAt", iso(container.finishedAt == null ? new Date(0) : container.finishedAt));
+      info.put("Image", "sha256:" + sha(container.image));
+      info.put("Name", "/" + container.name);
+      info.put("Driver", "overlay2");
+      ObjectNode network = info.putObject("NetworkSettings");
+      network.put("IPAddress", container.isRunning() ? "172.17.0.2" : "");
+      ObjectNode ports = network.putObject("Ports");
+      for (String port : container.bindings.keySet()) {
+        Integer published = container.published.get(port);
+        if (container.isRunning() && published != null) {
+          ports.putArray(port).addObject().put("HostIp", "0.0.0.0").put("HostPort", String.valueOf(published));
+        } else {
+          ports.putNull(port);
+        }
+      }
+    }
+    respond(exchange, 200, MAPPER.writeValueAsBytes(info));
+  }
+
+  private void list(HttpExchange exchange, Map<String, String> query) throws IOException {
+    boolean all = isTrue(query.get("all"));
+    JsonNode filters = query.containsKey("filters") ? MAPPER.readTree(query.get("filters")) : MAPPER.createObjectNode();
+    List<FakeContainer> candidates;
+    synchronized (this) {
+      candidates = new ArrayList<>(containers.values());
+    }
+    List<ObjectNode> listed = new ArrayList<>();
+    for (FakeContainer container : candidates) {
+      synchronized (container) {
+        if ((all || container.isRunning()) && matches(container, filters)) {
+          listed.add(summary(container));
+        }
+      }
+    }
+    // the most recent first, like docker
+    Collections.reverse(listed);
+    respond(exchange, 200, MAPPER.writeValueAsBytes(listed));
+  }
+
+  private boolean matches(FakeContainer container, JsonNode filters) {
+    for (JsonNode id : filters.path("id")) {
+      if (!container.id.startsWith(id.asText())) {
+        return false;
+      }
+    }
+    for (JsonNode label : filters.path("label")) {
+      String[] split = label.asText().split("=", 2);
+      JsonNode value = container.config.path("Labels").path(split[0]);
+      if (value.isMissingNode() || (split.length > 1 && !split[1].equals(value.asText()))) {
+        return false;
+      }
+    }
+    for (JsonNode status : filters.path("status")) {
+      if (!status.asText().equals(container.state)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ObjectNode summary(FakeContainer container) {
+    ObjectNode summary = MAPPER.createObjectNode();
+    summary.put("Id", container.id);
+    summary.putArray("Names").add("/" + container.name);
+    summary.put("Image", container.image);
+    summary.put("ImageID", "sha256:" + sha(container.image));
+    summary.put("Command", "");
+    summary.put("Created", container.created.getTime() / 1000);
+    summary.put("State", container.state);
+    summary.put("Status", container.status());
+    ArrayNode ports = summary.putArray("Ports");
+    for (String port : container.bindings.keySet()) {
+      String[] split = port.split("/");
+      ObjectNode mapping = ports.addObject();
+      mapping.put("PrivatePort", Integer.parseInt(split[0]));
+      mapping.put("Type", split[1]);
+      Integer published = container.published.get(port);
+      if (container.isRunning() && published != null) {
+        mapping.put("IP", "0.0.0.0");
+        mapping.put("PublicPort", published);
+      }
+    }
+    summary.set("Labels", container.config.path("Labels").isObject()
+      ? container.config.path("Labels") : MAPPER.createObjectNode());
+    return summary;
+  }
+
+  private void logs(HttpExchange exchange, String id, Map<String, String> query) throws IOException {
+    FakeContainer container = find(id);
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    boolean follow = isTrue(query.get("follow"));
+    boolean stdout = isTrue(query.get("stdout"));
+    boolean stderr = isTrue(query.get("stderr"));
+    long since = query.containsKey("since") ? Long.parseLong(query.get("since")) * 1000 : 0;
+    int tail = query.containsKey("tail") && !"all".equals(query.get("tail")) ? Integer.parseInt(query.get("tail")) : -1;
+
+    exchange.getResponseHeaders().add("Content-Type", "application/vnd.docker.raw-stream");
+    exchange.sendResponseHeaders(200, 0);
+    OutputStream out = exchange.getResponseBody();
+    int next;
+    synchronized (container) {
+      next = tail < 0 ? 0 : Math.max(0, container.logs.size() - tail);
+    }
+    while (true) {
+      List<LogLine> lines;
+      boolean ended;
+      synchronized (container) {
+        while (follow && next == container.logs.size() && container.isRunning() && !container.removed && !closed) {
+          try {
+            container.wait(POLL_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        lines = new ArrayList<>(container.logs.subList(next, container.logs.size()));
+        next = container.logs.size();
+        ended = !follow || !container.isRunning() || container.removed || closed;
+      }
+      for (LogLine line : lines) {
+        if (line.timestamp >= since && (line.stream == 1 ? stdout : stderr)) {
+          byte[] content = (line.text + "\n").getBytes(StandardCharsets.UTF_8);
+          ByteBuffer header = ByteBuffer.allocate(8);
+          header.put(0, (byte) line.stream);
+          header.putInt(4, content.length);
+          out.write(header.array());
+          out.write(content);
+        }
+      }
+      out.flush();
+      if (ended) {
+        return;
+      }
+    }
+  }
+
+  private void kill(HttpExchange exchange, String id) throws IOException {
+    FakeContainer container = find(id);
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    if (!container.isRunning()) {
+      respond(exchange, 409, message("Container " + id + " is not running"));
+      return;
+    }
+    event("kill", container);
+    exit(container, 137, false);
+    respond(exchange, 204, null);
+  }
+
+  private void remove(HttpExchange exchange, String id) throws IOException {
+    FakeContainer container = find(id);
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    synchronized (container) {
+      if (container.isRunning()) {
+        respond(exchange, 409, message("You cannot remove a running container " + id
+          + ". Stop the container before attempting removal or use -f"));
+        return;
+      }
+      container.removed = true;
+      container.notifyAll();
+    }
+    synchronized (this) {
+      containers.remove(container.id);
+    }
+    event("destroy", container);
+    respond(exchange, 204, null);
+  }
+
+  private void createNetwork(HttpExchange exchange) throws IOException {
+    JsonNode config = MAPPER.readTree(readBody(exchange));
+    String name = config.path("Name").asText();
+    String id;
+    synchronized (this) {
+      if (networks.containsValue(name)) {
+        respond(exchange, 409, message("network with name " + name + " already exists"));
+        return;
+      }
+      id = sha(name + UUID.randomUUID());
+      networks.put(id, name);
+    }
+    ObjectNode created = MAPPER.createObjectNode();
+    created.put("Id", id);
+    created.put("Warning", "");
+    respond(exchange, 201, MAPPER.writeValueAsBytes(created));
+  }
+
+  private void connectNetwork(HttpExchange exchange, String network) throws IOException {
+    JsonNode request = MAPPER.readTree(readBody(exchange));
+    FakeContainer container = find(request.path("Container").asText());
+    synchronized (this) {
+      String name = networkName(network);
+      if (name == null) {
+        respond(exchange, 404, message("network " + network + " not found"));
+        return;
+      }
+      if (container == null) {
+        respond(exchange, 404, message("No such container: " + request.path("Container").asText()));
+        return;
+      }
+      List<String> aliases = new ArrayList<>();
+      for (JsonNode alias : request.path("EndpointConfig").path("Aliases")) {
+        aliases.add(alias.asText());
+      }
+      container.aliases.put(name, aliases);
+    }
+    respond(exchange, 200, null);
+  }
+
+  private void removeNetwork(HttpExchange exchange, String network) throws IOException {
+    synchronized (this) {
+      String name = networkName(network);
+      if (name == null) {
+        respond(exchange, 404, message("network " + network + " not found"));
+        return;
+      }
+      for (FakeContainer container : containers.values()) {
+        if (container.aliases.containsKey(name)) {
+          respond(exchange, 403, message("error while removing network: network " + name
+            + " has active endpoints"));
+          return;
+        }
+      }
+      networks.values().remove(name);
+    }
+    respond(exchange, 204, null);
+  }
+
+  /**
+   * @return the name of the network with the id, or the name, null if there is none
+   */
+  private String networkName(String network) {
+    for (Map.Entry<String, String> candidate : networks.entrySet()) {
+      if (candidate.getKey().startsWith(network) || candidate.getValue().equals(network)) {
+        return candidate.getValue();
+      }
+    }
+    return null;
+  }
+
+  private void archive(HttpExchange exchange, String id) throws IOException {
+    readBody(exchange);
+    if (find(id) == null) {
+      respond(exchange, 404, message("No such container: " + id));
+      return;
+    }
+    respond(exchange, 200, null);
+  }
+
+  private void commit(HttpExchange exchange, Map<String, String> query) throws IOException {
+    readBody(exchange);
+    FakeContainer container = find(query.get("container"));
+    if (container == null) {
+      respond(exchange, 404, message("No such container: " + query.get("container")));
+      return;
+    }
+    String name = query.get("repo") + ":" + (query.containsKey("tag") ? query.get("tag") : "latest");
+    ImageBehavior source = images.get(container.image);
+    copy(source, image(name));
+    respond(exchange, 201, MAPPER.writeValueAsBytes(MAPPER.createObjectNode().put("Id", "sha256:" + sha(name))));
+  }
+
+  private void events(HttpExchange exchange, Map<String, String> query) throws IOException {
+    long since = query.containsKey("since") ? Long.parseLong(query.get("since")) : Long.MAX_VALUE;
+    BlockingQueue<ObjectNode> queue = new LinkedBlockingQueue<>();
+    synchronized (history) {
+      for (ObjectNode event : history) {
+        if (event.path("time").asLong() >= since) {
+          queue.add(event);
+        }
+      }
+      subscribers.add(queue);
+    }
+    try {
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, 0);
+      OutputStream out = exchange.getResponseBody();
+      out.flush();
+      while (!closed) {
+        ObjectNode event = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (event != null) {
+          writeJson(out, event);
+        } else {
+          // find out about the clients that went away
+          out.write('\n');
+          out.flush();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      subscribers.remove(queue);
+    }
+  }
+
+  private void event(String status, FakeContainer container) {
+    long now = System.currentTimeMillis();
+    ObjectNode event = MAPPER.createObjectNode();
+    event.put("status", status);
+    event.put("id", container.id);
+    event.put("from", container.image);
+    event.put("Type", "container");
+    event.put("Action", status);
+    event.put("time", now / 1000);
+    event.put("timeNano", now * 1000000);
+    synchronized (history) {
+      history.add(event);
+      for (BlockingQueue<ObjectNode> subscriber : subscribers) {
+        subscriber.add(event);
+      }
+    }
+  }
+
+  private synchronized FakeContainer find(String id) {
+    if (id == null) {
+      return null;
+    }
+    FakeContainer container = containers.get(id);
+    if (container != null) {
+      return container;
+    }
+    for (FakeContainer candidate : containers.values()) {
+      if (candidate.id.startsWith(id) || id.equals(candidate.name) || id.equals("/" + candidate.name)) {
+        return candidate;
+      }
+    }
+    return null;
+  }
+
+  private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+    if (body == null) {
+      // the server ends the exchange with the headers, and closes the connection unless the request was read
+      readBody(exchange);
+      exchange.sendResponseHeaders(status, -1);
+      return;
+    }
+    exchange.getResponseHeaders().add("Content-Type", status >= 400 ? "text/plain" : "application/json");
+    exchange.sendResponseHeaders(status, body.length);
+    exchange.getResponseBody().write(body);
+  }
+
+  private static void writeJson(OutputStream out, JsonNode node) throws IOException {
+    out.write(MAPPER.writeValueAsBytes(node));
+    out.write('\n');
+    out.flush();
+  }
+
+  private static byte[] message(String message) throws IOException {
+    return MAPPER.writeValueAsBytes(MAPPER.createObjectNode().put("message", message));
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  private static Map<String, String> query(String raw) throws UnsupportedEncodingException {
+    Map<String, String> query = new HashMap<>();
+    if (raw == null || raw.isEmpty()) {
+      return query;
+    }
+    for (String parameter : raw.split("&")) {
+      int equals = parameter.indexOf('=');
+      String key = decode(equals < 0 ? parameter : parameter.substring(0, equals));
+      query.put(key, equals < 0 ? "" : decode(parameter.substring(equals + 1)));
+    }
+    return query;
+  }
+
+  private static String decode(String value) throws UnsupportedEncodingException {
+    return URLDecoder.decode(value, "UTF-8");
+  }
+
+  private static boolean isTrue(String value) {
+    return "1".equals(value) || "true".equalsIgnoreCase(value);
+  }
+
+  private static String normalize(String port) {
+    return port.contains("/") ? port : port + "/tcp";
+  }
+
+  private static String iso(Date date) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(date);
+  }
+
+  private static String sha(String name) {
+    return Hashing.sha256().hashString(name, StandardCharsets.UTF_8).toString();
+  }
+}
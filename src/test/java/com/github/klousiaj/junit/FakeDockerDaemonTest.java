@@ -0,0 +1,196 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class FakeDockerDaemonTest {
+
+  private FakeDockerDaemon daemon;
+  private final List<DockerClient> clients = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    daemon = FakeDockerDaemon.start();
+  }
+
+  @After
+  public void tearDown() {
+    for (DockerClient client : clients) {
+      client.close();
+    }
+    daemon.close();
+  }
+
+  @Test
+  public void startAndStop() throws Throwable {
+    daemon.image("redis:3").log(50, "Ready to accept connections");
+    DockerRuleParams params = params("redis:3", "6379");
+    params.logPatterns.add(LogPattern.literal("Ready to accept connections", 1));
+    DockerRule rule = rule(params);
+    rule.startContainer();
+
+    Assert.assertEquals(1, daemon.running());
+    Assert.assertTrue(rule.getHostPort("6379/tcp") >= 32768);
+    Assert.assertTrue(rule.getContainerName().startsWith("fake_"));
+    rule.destroy();
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  @Test
+  public void pullMissingImage() throws Throwable {
+    daemon.remoteImage("nginx:1.10");
+    DockerRule rule = rule(params("nginx:1.10", "80"));
+    rule.startContainer();
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+    rule.destroy();
+  }
+
+  @Test
+  public void slowPullIsNotPartOfTheStartup() throws Throwable {
+    daemon.remoteImage("nginx:1.10").layers(3, 200);
+    DockerRuleParams params = params("nginx:1.10", "80");
+    params.startupTimeout = 300;
+    DockerRule rule = rule(params);
+    rule.startContainer();
+    Assert.assertEquals(1, daemon.running());
+    rule.destroy();
+  }
+
+  @Test
+  public void waitForHealthy() throws Throwable {
+    daemon.image("postgres:9.6").healthyAfter(200);
+    DockerRuleParams params = params("postgres:9.6", "5432");
+    params.waitForHealthy = true;
+    DockerRule rule = rule(params);
+    long begin = System.currentTimeMillis();
+    rule.startContainer();
+    Assert.assertTrue(System.currentTimeMillis() - begin >= 200);
+    Assert.assertTrue(daemon.count(FakeDockerDaemon.Operation.EVENTS) >= 1);
+    rule.destroy();
+  }
+
+  @Test
+  public void exitDuringStartup() throws Throwable {
+    daemon.image("mongo:3.2").logError(10, "Insufficient free space for journal files").exitAfter(100, 100);
+    DockerRuleParams params = params("mongo:3.2", "27017");
+    params.logPatterns.add(LogPattern.literal("waiting for connections", 1));
+    DockerRule rule = rule(params);
+    try {
+      rule.startContainer();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("exited with code 100"));
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("Insufficient free space for journal files"));
+    }
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  @Test
+  public void failedCreate() throws Throwable {
+    daemon.image("redis:3");
+    daemon.failNext(FakeDockerDaemon.Operation.CREATE, 500, "no space left on device");
+    DockerRule rule = rule(params("redis:3", "6379"));
+    try {
+      rule.startContainer();
+      Assert.fail("Should throw an exception");
+    } catch (DockerException e) {
+      Assert.assertEquals(0, daemon.containers());
+    }
+  }
+
+  @Test
+  public void useRunningContainer() throws Throwable {
+    daemon.image("rabbitmq:management");
+    DockerRuleParams first = params("rabbitmq:management", "5672");
+    first.leaveRunning = true;
+    DockerRule owner = rule(first);
+    owner.startContainer();
+
+    DockerRuleParams second = params("rabbitmq:management", "5672");
+    second.useRunning = true;
+    DockerRule user = rule(second);
+    user.startContainer();
+    Assert.assertEquals(owner.getContainer().id(), user.getContainer().id());
+    Assert.assertEquals(1, daemon.containers());
+  }
+
+  @Test
+  public void allocatedPorts() throws Throwable {
+    daemon.image("redis:3");
+    DockerRule rule = rule(params("redis:3", "6379", "26379:26379"));
+    rule.startContainer();
+    Assert.assertTrue(rule.getHostPort("6379/tcp") > 0);
+    Assert.assertEquals(26379, rule.getHostPort("26379/tcp"));
+    // the host ports were known before the start
+    Assert.assertEquals(0, daemon.count(FakeDockerDaemon.Operation.INSPECT));
+    rule.destroy();
+  }
+
+  @Test
+  public void retryOnBindConflict() throws Throwable {
+    daemon.image("redis:3");
+    daemon.failNext(FakeDockerDaemon.Operation.START, 500,
+      "driver failed programming external connectivity on endpoint fake: Bind for 0.0.0.0:32800 failed: port is already allocated");
+    DockerRule rule = rule(params("redis:3", "6379"));
+    rule.startContainer();
+    Assert.assertEquals(2, daemon.count(FakeDockerDaemon.Operation.CREATE));
+    Assert.assertEquals(1, daemon.containers());
+    Assert.assertEquals(1, daemon.running());
+    rule.destroy();
+  }
+
+  @Test
+  public void dockerPicksThePortsWhenAsked() throws Throwable {
+    daemon.image("redis:3");
+    DockerRuleParams params = params("redis:3", "6379");
+    params.allocatePorts = false;
+    DockerRule rule = rule(params);
+    rule.startContainer();
+    Assert.assertTrue(rule.getHostPort("6379/tcp") >= 32768);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.INSPECT));
+    rule.destroy();
+  }
+
+  @Test
+  public void parallelStartup() throws Throwable {
+    daemon.image("memcached:1.4").log(20, "server listening");
+    daemon.latency(FakeDockerDaemon.Operation.START, 500);
+    DockerRule[] rules = new DockerRule[20];
+    for (int ii = 0; ii < rules.length; ii++) {
+      DockerRuleParams params = params("memcached:1.4", "11211");
+      params.logPatterns.add(LogPattern.literal("server listening", 1));
+      rules[ii] = rule(params);
+    }
+    ParallelDockerRule parallel = DockerRule.parallel(rules);
+    long begin = System.currentTimeMillis();
+    parallel.start();
+    // the starts overlap
+    Assert.assertTrue(System.currentTimeMillis() - begin < rules.length * 500);
+    Assert.assertEquals(rules.length, daemon.running());
+    parallel.stop();
+    Assert.assertEquals(0, daemon.containers());
+  }
+
+  private DockerRule rule(DockerRuleParams params) {
+    DockerClient client = daemon.client();
+    clients.add(client);
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    return rule;
+  }
+
+  private static DockerRuleParams params(String image, String... ports) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = image;
+    params.ports = ports;
+    params.startupTimeout = 10000;
+    return params;
+  }
+}
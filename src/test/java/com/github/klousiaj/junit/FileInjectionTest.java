@@ -0,0 +1,199 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DefaultDockerClient;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class FileInjectionTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void archiveOfFilesAndDirectories() throws Exception {
+    File config = folder.newFile("nginx.conf");
+    Files.write(config.toPath(), "worker_processes 1;\n".getBytes(StandardCharsets.UTF_8));
+    File fixtures = folder.newFolder("fixtures");
+    Files.write(new File(fixtures, "users.json").toPath(), "[]".getBytes(StandardCharsets.UTF_8));
+    new File(fixtures, "empty").mkdir();
+
+    List<TarStream.Entry> entries = FileInjection.entries(Arrays.asList(
+      new FileInjection(config.getPath(), "/etc/nginx/nginx.conf"),
+      new FileInjection(fixtures.getPath(), "/data/fixtures/")));
+
+    List<String> names = new ArrayList<>();
+    try (TarArchiveInputStream tar = new TarArchiveInputStream(new TarStream(entries))) {
+      TarArchiveEntry entry;
+      while ((entry = tar.getNextTarEntry()) != null) {
+        names.add(entry.getName());
+        if (entry.getName().equals("etc/nginx/nginx.conf")) {
+          Assert.assertEquals("worker_processes 1;\n", read(tar, entry));
+        } else if (entry.getName().equals("data/fixtures/users.json")) {
+          Assert.assertEquals("[]", read(tar, entry));
+        }
+      }
+    }
+    Collections.sort(names);
+    Assert.assertEquals(Arrays.asList("data/fixtures/", "data/fixtures/empty/", "data/fixtures/users.json",
+      "etc/nginx/nginx.conf"), names);
+  }
+
+  @Test
+  public void longNamesAndPadding() throws Exception {
+    StringBuilder name = new StringBuilder("/opt");
+    for (int ii = 0; ii < 30; ii++) {
+      name.append("/directory");
+    }
+    name.append("/data.bin");
+    File data = folder.newFile("data.bin");
+    byte[] content = new byte[1000];
+    Arrays.fill(content, (byte) 7);
+    Files.write(data.toPath(), content);
+
+    List<TarStream.Entry> entries = FileInjection.entries(Collections.singletonList(
+      new FileInjection(data.getPath(), name.toString())));
+    try (TarArchiveInputStream tar = new TarArchiveInputStream(new TarStream(entries))) {
+      TarArchiveEntry entry = tar.getNextTarEntry();
+      Assert.assertEquals(name.substring(1), entry.getName());
+      Assert.assertEquals(1000, entry.getSize());
+      byte[] read = new byte[1000];
+      Assert.assertEquals(1000, tar.read(read, 0, 1000));
+      Assert.assertArrayEquals(content, read);
+      Assert.assertNull(tar.getNextTarEntry());
+    }
+  }
+
+  @Test
+  public void largeFileIsStreamed() throws Exception {
+    // a sparse file, larger than what the test JVM could hold in its heap
+    File large = folder.newFile("large.bin");
+    long size = Runtime.getRuntime().maxMemory() + 1024 * 1024;
+    try (RandomAccessFile file = new RandomAccessFile(large, "rw")) {
+      file.setLength(size);
+    }
+    List<TarStream.Entry> entries = FileInjection.entries(Collections.singletonList(
+      new FileInjection(large.getPath(), "/data/large.bin")));
+    long total = 0;
+    try (TarStream tar = new TarStream(entries)) {
+      byte[] buffer = new byte[1024 * 1024];
+      int read;
+      while ((read = tar.read(buffer, 0, buffer.length)) >= 0) {
+        total += read;
+      }
+    }
+    long padded = (size + 511) / 512 * 512;
+    Assert.assertEquals(512 + padded + 1024, total);
+  }
+
+  @Test
+  public void mockedClientStagesTheFiles() throws Throwable {
+    File config = folder.newFile("redis.conf");
+    Files.write(config.toPath(), "maxmemory 2mb\n".getBytes(StandardCharsets.UTF_8));
+
+    DockerClient client = mock(DockerClient.class);
+    when(client.createContainer(any(ContainerConfig.class))).thenReturn(new ContainerCreation("abc"));
+    when(client.inspectContainer("abc")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+    final List<String> staged = new ArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Path staging = invocation.getArgument(0);
+        staged.add(new String(Files.readAllBytes(staging.resolve("usr/local/etc/redis/redis.conf")), StandardCharsets.UTF_8));
+        return null;
+      }
+    }).when(client).copyToContainer(any(Path.class), eq("abc"), eq("/"));
+
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "redis:3";
+    params.ports = new String[0];
+    params.files.add(new FileInjection(config.getPath(), "/usr/local/etc/redis/redis.conf"));
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    rule.attachToContainer();
+
+    Assert.assertEquals(Collections.singletonList("maxmemory 2mb\n"), staged);
+    // the files are in place before the container starts
+    InOrder order = inOrder(client);
+    order.verify(client).copyToContainer(any(Path.class), eq("abc"), anyString());
+    order.verify(client).startContainer("abc");
+  }
+
+  @Test
+  public void archiveIsStreamedThroughTheClient() throws Exception {
+    File config = folder.newFile("app.properties");
+    Files.write(config.toPath(), "mode=test\n".getBytes(StandardCharsets.UTF_8));
+
+    final List<String> received = new ArrayList<>();
+    HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        received.add(exchange.getRequestMethod() + " " + exchange.getRequestURI()
+          + " " + exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(exchange.getRequestBody())) {
+          received.add(tar.getNextTarEntry().getName());
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    DockerClient client = DefaultDockerClient.builder()
+      .uri("http://127.0.0.1:" + server.getAddress().getPort())
+      .build();
+    try {
+      FileInjection.copy(client, "abc", Collections.singletonList(
+        new FileInjection(config.getPath(), "/app/app.properties")));
+    } finally {
+      client.close();
+      server.stop(0);
+    }
+    Assert.assertEquals(Arrays.asList("PUT /containers/abc/archive?path=/ chunked", "app/app.properties"), received);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void containerPathMustBeAbsolute() {
+    new FileInjection("nginx.conf", "etc/nginx/nginx.conf");
+  }
+
+  private static String read(TarArchiveInputStream tar, TarArchiveEntry entry) throws IOException {
+    byte[] content = new byte[(int) entry.getSize()];
+    int offset = 0;
+    while (offset < content.length) {
+      offset += tar.read(content, offset, content.length - offset);
+    }
+    return new String(content, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,94 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.DockerRequestException;
+import com.spotify.docker.client.messages.PortBinding;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class HostPortAllocatorTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path lockFile;
+
+  @Before
+  public void setUp() throws Exception {
+    lockFile = folder.getRoot().toPath().resolve(HostPortAllocator.LOCK_FILE);
+  }
+
+  @Test
+  public void allocateRandomPorts() throws Exception {
+    Map<String, List<PortBinding>> bindings = DockerRule.generatePortBinding("80", "32000:9000", "7000");
+    Map<String, List<PortBinding>> allocated = new HostPortAllocator(lockFile).allocate(bindings);
+
+    Assert.assertTrue(PortTable.isResolved(allocated));
+    Assert.assertFalse(PortTable.isResolved(bindings));
+    Assert.assertEquals("32000", allocated.get("9000").get(0).hostPort());
+    Assert.assertEquals("0.0.0.0", allocated.get("80").get(0).hostIp());
+    Assert.assertNotEquals(allocated.get("80").get(0).hostPort(), allocated.get("7000").get(0).hostPort());
+  }
+
+  @Test
+  public void resolvedBindingsAreKept() throws Exception {
+    Map<String, List<PortBinding>> bindings = DockerRule.generatePortBinding(":8080", "32000:9000");
+    Assert.assertSame(bindings, new HostPortAllocator(lockFile).allocate(bindings));
+    Assert.assertFalse(Files.exists(lockFile));
+  }
+
+  @Test
+  public void forksNeverShareAPort() throws Exception {
+    // two JVMs of the host share the lock file
+    HostPortAllocator first = new HostPortAllocator(lockFile);
+    HostPortAllocator second = new HostPortAllocator(lockFile);
+    Set<String> ports = new HashSet<>();
+    for (int ii = 0; ii < 20; ii++) {
+      HostPortAllocator allocator = ii % 2 == 0 ? first : second;
+      String port = allocator.allocate(DockerRule.generatePortBinding("80")).get("80").get(0).hostPort();
+      Assert.assertTrue(port + " was allocated twice", ports.add(port));
+    }
+    Assert.assertEquals(20, Files.readAllLines(lockFile, StandardCharsets.US_ASCII).size());
+  }
+
+  @Test
+  public void expiredPortsAreForgotten() throws Exception {
+    Files.write(lockFile, ("1234 " + (System.currentTimeMillis() - 1) + "\nnot a port\n").getBytes(StandardCharsets.US_ASCII));
+    new HostPortAllocator(lockFile).allocate(DockerRule.generatePortBinding("80"));
+    List<String> lines = Files.readAllLines(lockFile, StandardCharsets.US_ASCII);
+    Assert.assertEquals(1, lines.size());
+    Assert.assertFalse(lines.get(0).startsWith("1234 "));
+  }
+
+  @Test
+  public void localHosts() {
+    Assert.assertTrue(HostPortAllocator.isLocal("localhost"));
+    Assert.assertTrue(HostPortAllocator.isLocal("127.0.0.1"));
+    Assert.assertTrue(HostPortAllocator.isLocal("::1"));
+    Assert.assertFalse(HostPortAllocator.isLocal("192.168.99.100"));
+    Assert.assertFalse(HostPortAllocator.isLocal("docker.example.com"));
+    Assert.assertFalse(HostPortAllocator.isLocal(null));
+  }
+
+  @Test
+  public void bindConflicts() {
+    Assert.assertTrue(HostPortAllocator.isBindConflict(new DockerRequestException("POST", URI.create("http://localhost"), 500,
+      "driver failed programming external connectivity on endpoint x: Bind for 0.0.0.0:32800 failed: port is already allocated")));
+    Assert.assertTrue(HostPortAllocator.isBindConflict(new DockerException(
+      "listen tcp 0.0.0.0:32800: bind: address already in use")));
+    Assert.assertFalse(HostPortAllocator.isBindConflict(new DockerRequestException("POST", URI.create("http://localhost"), 500,
+      "no space left on device")));
+  }
+}
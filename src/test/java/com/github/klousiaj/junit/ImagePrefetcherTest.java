@@ -0,0 +1,117 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ImageInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+public class ImagePrefetcherTest {
+
+  @Test
+  public void concurrentRequestsShareOnePull() throws Exception {
+    String image = "mongo:concurrent";
+    final CountDownLatch release = new CountDownLatch(1);
+    DockerClient mockClient = mock(DockerClient.class);
+    when(mockClient.getHost()).thenReturn("localhost");
+    when(mockClient.inspectImage(image)).thenThrow(new ImageNotFoundException(image));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        return null;
+      }
+    }).when(mockClient).pull(eq(image), any(ProgressHandler.class));
+
+    ImagePrefetcher prefetcher = new ImagePrefetcher();
+    ListenableFuture<Void> first = prefetcher.prefetch(mockClient, image);
+    ListenableFuture<Void> second = prefetcher.prefetch(mockClient, image);
+    Assert.assertSame(first, second);
+
+    release.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    verify(mockClient, times(1)).inspectImage(image);
+    verify(mockClient, times(1)).pull(eq(image), any(ProgressHandler.class));
+  }
+
+  @Test
+  public void completedRequestsAreNotCached() throws Exception {
+    String image = "mongo:sequential";
+    DockerClient mockClient = mock(DockerClient.class);
+    when(mockClient.getHost()).thenReturn("localhost");
+    when(mockClient.inspectImage(image)).thenReturn(new ImageInfo());
+
+    ImagePrefetcher prefetcher = new ImagePrefetcher();
+    prefetcher.prefetch(mockClient, image).get(5, TimeUnit.SECONDS);
+    prefetcher.prefetch(mockClient, image).get(5, TimeUnit.SECONDS);
+    verify(mockClient, times(2)).inspectImage(image);
+    verify(mockClient, never()).pull(image);
+    verify(mockClient, never()).pull(eq(image), any(ProgressHandler.class));
+  }
+
+  @Test
+  public void differentHostsAreFetchedSeparately() throws Exception {
+    String image = "mongo:hosts";
+    final CountDownLatch release = new CountDownLatch(1);
+    Answer<ImageInfo> blocking = new Answer<ImageInfo>() {
+      @Override
+      public ImageInfo answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        return new ImageInfo();
+      }
+    };
+    DockerClient first = mock(DockerClient.class);
+    when(first.getHost()).thenReturn("first-host");
+    when(first.inspectImage(image)).thenAnswer(blocking);
+    DockerClient second = mock(DockerClient.class);
+    when(second.getHost()).thenReturn("second-host");
+    when(second.inspectImage(image)).thenAnswer(blocking);
+
+    ImagePrefetcher prefetcher = new ImagePrefetcher();
+    ListenableFuture<Void> firstFuture = prefetcher.prefetch(first, image);
+    ListenableFuture<Void> secondFuture = prefetcher.prefetch(second, image);
+    Assert.assertNotSame(firstFuture, secondFuture);
+    release.countDown();
+    firstFuture.get(5, TimeUnit.SECONDS);
+    secondFuture.get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void differentPoliciesAreFetchedSeparately() throws Exception {
+    String image = "mongo:policies";
+    final CountDownLatch release = new CountDownLatch(1);
+    DockerClient mockClient = mock(DockerClient.class);
+    when(mockClient.getHost()).thenReturn("localhost");
+    when(mockClient.inspectImage(image)).thenAnswer(new Answer<ImageInfo>() {
+      @Override
+      public ImageInfo answer(InvocationOnMock invocation) throws Throwable {
+        release.await(5, TimeUnit.SECONDS);
+        return new ImageInfo();
+      }
+    });
+
+    ImagePrefetcher prefetcher = new ImagePrefetcher();
+    ListenableFuture<Void> always = prefetcher.prefetch(mockClient,
+      new ImagePull(image, PullPolicy.always(), null, ImagePull.DEFAULT_PULL_TIMEOUT, 1, null));
+    ListenableFuture<Void> ifMissing = prefetcher.prefetch(mockClient,
+      new ImagePull(image, PullPolicy.ifMissing(), null, ImagePull.DEFAULT_PULL_TIMEOUT, 1, null));
+    ListenableFuture<Void> mirrored = prefetcher.prefetch(mockClient,
+      new ImagePull(image, PullPolicy.ifMissing(), "localhost:5000", ImagePull.DEFAULT_PULL_TIMEOUT, 1, null));
+    Assert.assertNotSame(always, ifMissing);
+    Assert.assertNotSame(ifMissing, mirrored);
+    release.countDown();
+    always.get(5, TimeUnit.SECONDS);
+    ifMissing.get(5, TimeUnit.SECONDS);
+    mirrored.get(5, TimeUnit.SECONDS);
+    verify(mockClient, times(1)).pull(eq(image), any(ProgressHandler.class));
+  }
+}
@@ -0,0 +1,210 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ImagePullTest {
+  private static final long DAY = 24 * 60 * 60 * 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FakeDockerDaemon daemon;
+  private DockerClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    System.setProperty(ImagePull.PULLS_PROPERTY, folder.getRoot().getPath());
+    daemon = FakeDockerDaemon.start();
+    client = daemon.client();
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+    daemon.close();
+    System.clearProperty(ImagePull.PULLS_PROPERTY);
+  }
+
+  @Test
+  public void parsePolicies() {
+    Assert.assertSame(PullPolicy.always(), PullPolicy.parse("always"));
+    Assert.assertSame(PullPolicy.ifMissing(), PullPolicy.parse("if-missing"));
+    Assert.assertSame(PullPolicy.never(), PullPolicy.parse("offline"));
+    Assert.assertEquals("if-older-than:86400000ms", PullPolicy.parse("if-older-than:24h").toString());
+    Assert.assertEquals("if-older-than:500ms", PullPolicy.parse("If-Older-Than:500ms").toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidPolicy() {
+    PullPolicy.parse("if-older-than:1w");
+  }
+
+  @Test
+  public void mirroredNames() {
+    Assert.assertEquals("localhost:5000/library/redis:3", ImagePull.mirrored("redis:3", "localhost:5000"));
+    Assert.assertEquals("localhost:5000/kitematic/hello-world-nginx", ImagePull.mirrored("kitematic/hello-world-nginx", "localhost:5000"));
+    Assert.assertEquals("quay.io/coreos/etcd:v3", ImagePull.mirrored("quay.io/coreos/etcd:v3", "localhost:5000"));
+    Assert.assertEquals("localhost/my/app", ImagePull.mirrored("localhost/my/app", "localhost:5000"));
+    Assert.assertEquals("mirror.local:5000", ImagePull.normalize(" https://mirror.local:5000/ "));
+  }
+
+  @Test
+  public void ifMissing() throws Exception {
+    daemon.image("redis:3");
+    pull("redis:3", PullPolicy.ifMissing(), null, 1, null);
+    Assert.assertEquals(0, daemon.count(FakeDockerDaemon.Operation.PULL));
+    daemon.remoteImage("mongo:3.2");
+    pull("mongo:3.2", PullPolicy.ifMissing(), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void always() throws Exception {
+    daemon.image("redis:3");
+    pull("redis:3", PullPolicy.always(), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void ifOlderThan() throws Exception {
+    daemon.image("redis:3").builtAgo(DAY / 2);
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(0, daemon.count(FakeDockerDaemon.Operation.PULL));
+    daemon.image("redis:3").builtAgo(2 * DAY);
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void ifOlderThanTheLastPull() throws Exception {
+    // a stable tag built long ago is pulled once, then not until the pull is old
+    daemon.image("redis:3").builtAgo(30 * DAY);
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+
+    ImagePull pull = ImagePull.of("redis:3");
+    Assert.assertNotNull(pull.lastPull(client));
+    Path marker = folder.getRoot().toPath().resolve(folder.getRoot().list()[0]);
+    Files.setLastModifiedTime(marker, FileTime.fromMillis(System.currentTimeMillis() - 2 * DAY));
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(2, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void staleImageIsUsedWhenThePullFails() throws Exception {
+    daemon.image("redis:3").builtAgo(2 * DAY);
+    daemon.failNext(FakeDockerDaemon.Operation.PULL, 500, "registry unavailable");
+    pull("redis:3", PullPolicy.ifOlderThan(DAY), null, 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void offline() throws Exception {
+    daemon.image("redis:3");
+    pull("redis:3", PullPolicy.never(), null, 1, null);
+    daemon.remoteImage("mongo:3.2");
+    try {
+      pull("mongo:3.2", PullPolicy.never(), null, 1, null);
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("the pull policy is never"));
+    }
+    Assert.assertEquals(0, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void retryTransientFailures() throws Exception {
+    daemon.remoteImage("redis:3");
+    daemon.failNext(FakeDockerDaemon.Operation.PULL, 503, "Service Unavailable");
+    pull("redis:3", null, null, 3, null);
+    Assert.assertEquals(2, daemon.count(FakeDockerDaemon.Operation.PULL));
+    client.inspectImage("redis:3");
+  }
+
+  @Test
+  public void missingImagesAreNotRetried() throws Exception {
+    try {
+      pull("redis:unknown", null, null, 3, null);
+      Assert.fail("Should throw an exception");
+    } catch (ImageNotFoundException e) {
+      Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+    }
+  }
+
+  @Test
+  public void timeout() throws Exception {
+    daemon.remoteImage("redis:3").layers(3, 300);
+    try {
+      new ImagePull("redis:3", null, null, 500, 3, null).run(client);
+      Assert.fail("Should throw an exception");
+    } catch (DockerException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("took more than 500ms"));
+    }
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.PULL));
+  }
+
+  @Test
+  public void mirror() throws Exception {
+    daemon.remoteImage("mirror.local:5000/library/redis:3");
+    pull("redis:3", null, "http://mirror.local:5000", 1, null);
+    Assert.assertEquals(1, daemon.count(FakeDockerDaemon.Operation.TAG));
+    // the image has its own name
+    client.inspectImage("redis:3");
+  }
+
+  @Test
+  public void mirrorFallsBackToTheRegistry() throws Exception {
+    daemon.remoteImage("redis:3");
+    pull("redis:3", null, "mirror.local:5000", 1, null);
+    Assert.assertEquals(2, daemon.count(FakeDockerDaemon.Operation.PULL));
+    Assert.assertEquals(0, daemon.count(FakeDockerDaemon.Operation.TAG));
+    client.inspectImage("redis:3");
+  }
+
+  @Test
+  public void layerEvents() throws Exception {
+    daemon.remoteImage("redis:3").layers(3, 0);
+    final List<DockerRuleEvent> events = new ArrayList<>();
+    DockerRule rule = new DockerRule(client);
+    rule.params = new DockerRuleParams();
+    rule.params.imageName = "redis:3";
+    RuleInstrumentation instrumentation = new RuleInstrumentation(rule,
+      Collections.<DockerRuleListener>singletonList(new DockerRuleListener() {
+        @Override
+        public void onEvent(DockerRuleEvent event) {
+          events.add(event);
+        }
+      }));
+    pull("redis:3", null, null, 1, instrumentation);
+
+    Assert.assertEquals(4, events.size());
+    for (DockerRuleEvent layer : events.subList(0, 3)) {
+      Assert.assertEquals(DockerRuleEvent.Type.LAYER, layer.getType());
+      Assert.assertEquals("redis:3", layer.getImage());
+    }
+    Assert.assertEquals(DockerRuleEvent.Type.PHASE, events.get(3).getType());
+    Assert.assertEquals("pull", events.get(3).getName());
+  }
+
+  private void pull(String image, PullPolicy policy, String mirror, int attempts, RuleInstrumentation instrumentation)
+    throws DockerException, InterruptedException {
+    new ImagePull(image, policy, mirror, ImagePull.DEFAULT_PULL_TIMEOUT, attempts, instrumentation).run(client);
+  }
+}
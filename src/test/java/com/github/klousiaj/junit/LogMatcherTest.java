@@ -0,0 +1,199 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogMessage;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class LogMatcherTest {
+
+  @Test
+  public void matchSplitAcrossFrames() {
+    LogMatcher matcher = new LogMatcher(Collections.singletonList(LogPattern.literal("Server startup complete", 1)));
+    Assert.assertFalse(matcher.feed(frame(LogMessage.Stream.STDOUT, "starting...\nServer start")));
+    Assert.assertTrue(matcher.feed(frame(LogMessage.Stream.STDOUT, "up complete; 3 plugins\n")));
+  }
+
+  @Test
+  public void multiByteCharacterSplitAcrossFrames() {
+    LogMatcher matcher = new LogMatcher(Collections.singletonList(LogPattern.literal("pr\u00eat", 1)));
+    byte[] bytes = "pr\u00eat\n".getBytes(StandardCharsets.UTF_8);
+    // the two bytes of the accented e end up in different frames
+    Assert.assertFalse(matcher.feed(LogMessage.Stream.STDOUT, ByteBuffer.wrap(bytes, 0, 3)));
+    Assert.assertTrue(matcher.feed(LogMessage.Stream.STDOUT, ByteBuffer.wrap(bytes, 3, bytes.length - 3)));
+  }
+
+  @Test
+  public void streamsAreNotMixed() {
+    LogMatcher matcher = new LogMatcher(Collections.singletonList(LogPattern.literal("ready", 1)));
+    Assert.assertFalse(matcher.feed(frame(LogMessage.Stream.STDOUT, "rea")));
+    Assert.assertFalse(matcher.feed(frame(LogMessage.Stream.STDERR, "dy\n")));
+    Assert.assertTrue(matcher.feed(frame(LogMessage.Stream.STDERR, "ready\n")));
+  }
+
+  @Test
+  public void occurrencesAndPatterns() {
+    LogMatcher matcher = new LogMatcher(Arrays.asList(
+      LogPattern.literal("started", 2),
+      LogPattern.regex("listening on port \\d+", 1)));
+    Assert.assertFalse(matcher.feed(frame(LogMessage.Stream.STDOUT, "node started\n")));
+    Assert.assertFalse(matcher.feed(frame(LogMessage.Stream.STDERR, "listening on port 9092\n")));
+    Assert.assertEquals("[\"started\" x2]", matcher.missing().toString());
+    // the incomplete line counts, but only once
+    Assert.assertTrue(matcher.feed(frame(LogMessage.Stream.STDOUT, "node started")));
+    Assert.assertTrue(matcher.feed(frame(LogMessage.Stream.STDOUT, "\n")));
+    Assert.assertTrue(matcher.missing().isEmpty());
+  }
+
+  @Test
+  public void finishCompletesTheLastLine() {
+    LogMatcher matcher = new LogMatcher(Collections.singletonList(LogPattern.regex("done$", 1)));
+    matcher.feed(frame(LogMessage.Stream.STDOUT, "almost done"));
+    Assert.assertTrue(matcher.finish());
+    Assert.assertTrue(matcher.missing().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void messagesAreSingleLines() {
+    LogPattern.literal("starting\nready", 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void occurrencesMustBePositive() {
+    LogPattern.literal("ready", 0);
+  }
+
+  @Test
+  public void waitForLogsReadsBothStreams() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    LogStream logs = mock(LogStream.class);
+    when(client.logs(anyString(), any(DockerClient.LogsParam[].class))).thenReturn(logs);
+    when(logs.hasNext()).thenReturn(true);
+    when(logs.next()).thenReturn(
+      frame(LogMessage.Stream.STDOUT, "booting\n"),
+      frame(LogMessage.Stream.STDERR, "Server startup complete\n"));
+
+    DockerRule rule = startedRule(client);
+    rule.waitForLogs(Collections.singletonList(LogPattern.literal("Server startup complete", 1)), Deadline.after(5000));
+    verify(logs).close();
+  }
+
+  @Test
+  public void waitForLogsEndOfStream() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    LogStream logs = mock(LogStream.class);
+    when(client.logs(anyString(), any(DockerClient.LogsParam[].class))).thenReturn(logs);
+    when(logs.hasNext()).thenReturn(true, false);
+    when(logs.next()).thenReturn(frame(LogMessage.Stream.STDOUT, "fatal error\n"));
+
+    DockerRule rule = startedRule(client);
+    try {
+      rule.waitForLogs(Collections.singletonList(LogPattern.literal("ready", 1)), Deadline.after(5000));
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("The logs ended before the log messages [\"ready\"] were found", e.getMessage());
+    }
+    verify(logs).close();
+  }
+
+  @Test
+  public void waitForLogsTimeout() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    BlockingLogStream logs = new BlockingLogStream();
+    when(client.logs(anyString(), any(DockerClient.LogsParam[].class))).thenReturn(logs);
+
+    DockerRule rule = startedRule(client);
+    long begin = System.nanoTime();
+    try {
+      rule.waitForLogs(Collections.singletonList(LogPattern.literal("ready", 1)), Deadline.after(200));
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Timeout while waiting for log messages [\"ready\"]", e.getMessage());
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+    Assert.assertTrue("took " + elapsed + "ms", elapsed < 2000);
+  }
+
+  private static DockerRule startedRule(DockerClient client) throws Exception {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "busybox:latest";
+    params.ports = new String[0];
+    when(client.createContainer(any(ContainerConfig.class)))
+      .thenReturn(new ContainerCreation("abc"));
+    when(client.inspectContainer("abc")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    rule.attachToContainer();
+    return rule;
+  }
+
+  private static LogMessage frame(LogMessage.Stream stream, String content) {
+    return new LogMessage(stream, ByteBuffer.wrap(content.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * A log stream that never produces anything until it is closed.
+   */
+  private static class BlockingLogStream implements LogStream {
+    private boolean closed;
+
+    @Override
+    public synchronized boolean hasNext() {
+      while (!closed) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public LogMessage next() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String readFully() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void attach(OutputStream stdout, OutputStream stderr) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void attach(OutputStream stdout, OutputStream stderr, boolean closeAtEof) throws IOException {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      notifyAll();
+    }
+  }
+}
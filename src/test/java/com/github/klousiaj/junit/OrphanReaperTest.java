@@ -0,0 +1,136 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.collect.ImmutableMap;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.messages.Container;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class OrphanReaperTest {
+
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final long NOW = 1000 * HOUR;
+
+  private final String host = OrphanReaper.SESSION.substring(OrphanReaper.SESSION.indexOf('@') + 1,
+    OrphanReaper.SESSION.lastIndexOf(':'));
+  private final String deadSession = "999999999@" + host + ":1";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void sessionLabels() {
+    Map<String, String> labels = OrphanReaper.sessionLabels(ImmutableMap.of("team", "data"), false);
+    Assert.assertEquals("data", labels.get("team"));
+    Assert.assertEquals(OrphanReaper.SESSION, labels.get(OrphanReaper.SESSION_LABEL));
+    Assert.assertEquals("false", labels.get(OrphanReaper.LEAVE_RUNNING_LABEL));
+    Assert.assertEquals("true", OrphanReaper.sessionLabels(null, true).get(OrphanReaper.LEAVE_RUNNING_LABEL));
+  }
+
+  @Test
+  public void deadSessions() {
+    Assume.assumeTrue(new File("/proc/self").exists() && host.contains("#"));
+    Assert.assertFalse(OrphanReaper.isDead(OrphanReaper.SESSION));
+    Assert.assertTrue(OrphanReaper.isRunning(OrphanReaper.SESSION));
+    Assert.assertTrue(OrphanReaper.isDead(deadSession));
+    // the JVMs of other hosts, or of other pid namespaces, are not known to be dead
+    Assert.assertFalse(OrphanReaper.isDead("999999999@another-host:1"));
+    Assert.assertFalse(OrphanReaper.isDead("999999999@" + host.substring(0, host.indexOf('#')) + "#1:1"));
+    Assert.assertFalse(OrphanReaper.isDead("999999999@" + host.substring(0, host.indexOf('#')) + ":1"));
+    Assert.assertFalse(OrphanReaper.isRunning("999999999@another-host:1"));
+    Assert.assertFalse(OrphanReaper.isDead("garbage"));
+  }
+
+  @Test
+  public void reusedPid() {
+    Assume.assumeTrue(OrphanReaper.START_TIMES && host.contains("#"));
+    String pid = OrphanReaper.SESSION.substring(0, OrphanReaper.SESSION.indexOf('@'));
+    // a JVM that had the pid of this one, long before it started
+    Assert.assertTrue(OrphanReaper.isDead(pid + "@" + host + ":1"));
+    Assert.assertFalse(OrphanReaper.isRunning(pid + "@" + host + ":1"));
+  }
+
+  @Test
+  public void idleContainers() throws Exception {
+    Assume.assumeTrue(new File("/proc/self").exists() && host.contains("#"));
+    Path uses = folder.getRoot().toPath();
+    OrphanReaper reaper = new OrphanReaper(mock(DockerClient.class), 24 * HOUR, uses);
+    List<Container> containers = Arrays.asList(
+      container("recentlyUsed", deadSession, true, NOW - 48 * HOUR),
+      container("idle", deadSession, true, NOW - 48 * HOUR),
+      container("usedByThisJvm", deadSession, false, NOW - 48 * HOUR),
+      container("neverUsed", "1@another-host:1", true, NOW - 48 * HOUR));
+    use(uses, "recentlyUsed", deadSession, NOW - HOUR);
+    use(uses, "idle", deadSession, NOW - 25 * HOUR);
+    // reattached by this JVM, with useRunning
+    use(uses, "usedByThisJvm", OrphanReaper.SESSION, NOW - 25 * HOUR);
+    Assert.assertEquals(Arrays.asList("idle", "neverUsed"), reaper.orphans(containers, NOW));
+  }
+
+  @Test
+  public void orphans() {
+    Assume.assumeTrue(new File("/proc/self").exists());
+    OrphanReaper reaper = new OrphanReaper(mock(DockerClient.class), 24 * HOUR);
+    List<Container> containers = Arrays.asList(
+      container("own", OrphanReaper.SESSION, false, NOW - 48 * HOUR),
+      container("dead", deadSession, false, NOW - HOUR),
+      container("deadLeftRunning", deadSession, true, NOW - HOUR),
+      container("expiredLeftRunning", "1@another-host:1", true, NOW - 25 * HOUR),
+      container("otherHost", "1@another-host:1", false, NOW - HOUR),
+      container("unlabelled", null, false, NOW - HOUR));
+    Assert.assertEquals(Arrays.asList("dead", "expiredLeftRunning"), reaper.orphans(containers, NOW));
+
+    // without time to live, only the containers of dead sessions are removed
+    Assert.assertEquals(Collections.singletonList("dead"),
+      new OrphanReaper(mock(DockerClient.class), 0).orphans(containers, NOW));
+  }
+
+  @Test
+  public void reapInParallel() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    List<Container> containers = Arrays.asList(
+      container("abc", "1@another-host:1", false, NOW - 25 * HOUR),
+      container("def", "1@another-host:1", true, NOW - 30 * HOUR),
+      container("ghi", "1@another-host:1", true, NOW - HOUR));
+    when(client.listContainers(any(DockerClient.ListContainersParam.class), any(DockerClient.ListContainersParam.class)))
+      .thenReturn(containers);
+    OrphanReaper reaper = new OrphanReaper(client, 24 * HOUR, folder.getRoot().toPath());
+    Assert.assertEquals(2, reaper.reap(NOW));
+    verify(client).removeContainer(eq("abc"), any(DockerClient.RemoveContainerParam.class),
+      any(DockerClient.RemoveContainerParam.class));
+    verify(client).removeContainer(eq("def"), any(DockerClient.RemoveContainerParam.class),
+      any(DockerClient.RemoveContainerParam.class));
+    verify(client, never()).removeContainer(eq("ghi"), any(DockerClient.RemoveContainerParam.class),
+      any(DockerClient.RemoveContainerParam.class));
+  }
+
+  private static void use(Path uses, String id, String session, long time) throws Exception {
+    Files.write(uses.resolve(id), session.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(uses.resolve(id), FileTime.fromMillis(time));
+  }
+
+  private static Container container(String id, String session, boolean leaveRunning, long created) {
+    Container container = mock(Container.class);
+    when(container.id()).thenReturn(id);
+    when(container.created()).thenReturn(created / 1000);
+    when(container.labels()).thenReturn(session == null ? null
+      : ImmutableMap.of(OrphanReaper.SESSION_LABEL, session, OrphanReaper.LEAVE_RUNNING_LABEL, String.valueOf(leaveRunning)));
+    return container;
+  }
+}
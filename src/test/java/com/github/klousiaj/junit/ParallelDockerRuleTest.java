@@ -0,0 +1,104 @@
+package com.github.klousiaj.junit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.*;
+
+public class ParallelDockerRuleTest {
+
+  @Test
+  public void startsRulesConcurrently() throws Throwable {
+    // each rule can only finish starting once every rule has started
+    final CountDownLatch latch = new CountDownLatch(3);
+    Answer<Void> waitForOthers = new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        latch.countDown();
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return null;
+      }
+    };
+
+    DockerRule first = mock(DockerRule.class);
+    DockerRule second = mock(DockerRule.class);
+    DockerRule third = mock(DockerRule.class);
+    doAnswer(waitForOthers).when(first).start();
+    doAnswer(waitForOthers).when(second).start();
+    doAnswer(waitForOthers).when(third).start();
+
+    ParallelDockerRule rule = DockerRule.parallel(first, second, third);
+    rule.start();
+    rule.stop();
+
+    verify(first).stop();
+    verify(second).stop();
+    verify(third).stop();
+  }
+
+  @Test
+  public void failureStopsStartedRules() throws Throwable {
+    DockerRule started = mock(DockerRule.class);
+    DockerRule failing = mock(DockerRule.class);
+    final CountDownLatch startedLatch = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        startedLatch.countDown();
+        return null;
+      }
+    }).when(started).start();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        startedLatch.await(5, TimeUnit.SECONDS);
+        throw new IllegalStateException("container exited");
+      }
+    }).when(failing).start();
+
+    ParallelDockerRule rule = DockerRule.parallel(started, failing);
+    try {
+      rule.start();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("container exited", e.getMessage());
+    }
+    verify(started).stop();
+    verify(failing, never()).stop();
+  }
+
+  @Test
+  public void failureInterruptsSlowRules() throws Throwable {
+    DockerRule slow = mock(DockerRule.class);
+    DockerRule failing = mock(DockerRule.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+        return null;
+      }
+    }).when(slow).start();
+    doThrow(new IllegalStateException("bad image")).when(failing).start();
+
+    ParallelDockerRule rule = DockerRule.parallel(slow, failing);
+    long begin = System.nanoTime();
+    try {
+      rule.start();
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("bad image", e.getMessage());
+    }
+    Assert.assertTrue(System.nanoTime() - begin < TimeUnit.SECONDS.toNanos(5));
+    verify(slow, never()).stop();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void requiresRules() {
+    DockerRule.parallel();
+  }
+}
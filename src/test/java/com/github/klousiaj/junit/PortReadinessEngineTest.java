@@ -0,0 +1,106 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class PortReadinessEngineTest {
+
+  @Test
+  public void listeningPortIsReady() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      ListenableFuture<Void> ready = PortReadinessEngine.getInstance()
+        .await(address(server.getLocalPort()), Deadline.after(5000));
+      ready.get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void closedPortTimesOut() throws Exception {
+    int port = freePort();
+    long begin = System.nanoTime();
+    ListenableFuture<Void> ready = PortReadinessEngine.getInstance()
+      .await(address(port), Deadline.after(300));
+    try {
+      ready.get(5, TimeUnit.SECONDS);
+      Assert.fail("Should throw an exception");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+      Assert.assertEquals("Timeout while waiting for port " + port, e.getCause().getMessage());
+    }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin);
+    Assert.assertTrue("took " + elapsed + "ms", elapsed >= 250 && elapsed < 2000);
+  }
+
+  @Test
+  public void zeroTimeoutProbesOnce() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      PortReadinessEngine.getInstance().await(address(server.getLocalPort()), Deadline.after(0)).get(5, TimeUnit.SECONDS);
+    }
+    long begin = System.nanoTime();
+    try {
+      PortReadinessEngine.getInstance().await(address(freePort()), Deadline.after(0)).get(5, TimeUnit.SECONDS);
+      Assert.fail("Should throw an exception");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 2000);
+  }
+
+  @Test
+  public void portOpeningLaterIsReady() throws Exception {
+    int port = freePort();
+    ListenableFuture<Void> ready = PortReadinessEngine.getInstance()
+      .await(address(port), Deadline.after(5000));
+    Thread.sleep(200);
+    Assert.assertFalse(ready.isDone());
+    try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+      Assert.assertTrue(server.isBound());
+      ready.get(5, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void manyWaitsAtOnce() throws Exception {
+    List<ServerSocket> servers = new ArrayList<>();
+    List<InetSocketAddress> addresses = new ArrayList<>();
+    try {
+      for (int ii = 0; ii < 50; ii++) {
+        ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        servers.add(server);
+        addresses.add(address(server.getLocalPort()));
+      }
+      PortReadinessEngine.getInstance().awaitAll(addresses, Deadline.after(5000)).get(5, TimeUnit.SECONDS);
+    } finally {
+      for (ServerSocket server : servers) {
+        server.close();
+      }
+    }
+  }
+
+  @Test
+  public void cancelledWaitStops() throws Exception {
+    ListenableFuture<Void> ready = PortReadinessEngine.getInstance()
+      .await(address(freePort()), Deadline.none());
+    Assert.assertTrue(ready.cancel(false));
+    Assert.assertTrue(ready.isCancelled());
+  }
+
+  private static InetSocketAddress address(int port) {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+  }
+
+  private static int freePort() throws Exception {
+    try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      return server.getLocalPort();
+    }
+  }
+}
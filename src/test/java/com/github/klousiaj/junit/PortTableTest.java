@@ -0,0 +1,42 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.collect.ImmutableMap;
+import com.spotify.docker.client.messages.PortBinding;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+public class PortTableTest {
+
+  @Test
+  public void lookups() {
+    PortTable table = PortTable.of(ImmutableMap.<String, List<PortBinding>>of(
+      "80/tcp", Collections.singletonList(PortBinding.of("0.0.0.0", "32768")),
+      "53/udp", Collections.singletonList(PortBinding.of("0.0.0.0", 32769)),
+      "443/tcp", Collections.<PortBinding>emptyList()));
+
+    Assert.assertEquals(2, table.size());
+    Assert.assertEquals(32768, table.hostPort("80/tcp"));
+    Assert.assertEquals(32769, table.hostPort("53/udp"));
+    Assert.assertEquals(-1, table.hostPort("443/tcp"));
+    Assert.assertEquals(-1, table.hostPort("80"));
+  }
+
+  @Test
+  public void bindingsWithoutProtocol() throws Exception {
+    PortTable table = PortTable.of(DockerRule.generatePortBinding(":8080", "32000:9000", "7000"));
+    Assert.assertEquals(8080, table.hostPort("8080/tcp"));
+    Assert.assertEquals(32000, table.hostPort("9000/tcp"));
+    // a random port is only known once the container started
+    Assert.assertEquals(-1, table.hostPort("7000/tcp"));
+    Assert.assertFalse(PortTable.isResolved(DockerRule.generatePortBinding(":8080", "7000")));
+  }
+
+  @Test
+  public void noPorts() {
+    Assert.assertSame(PortTable.EMPTY, PortTable.of(null));
+    Assert.assertEquals(-1, PortTable.EMPTY.hostPort("80/tcp"));
+  }
+}
@@ -0,0 +1,168 @@
+package com.github.klousiaj.junit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RuleInstrumentationTest {
+
+  @Test
+  public void phasesAndCalls() throws Throwable {
+    DockerClient client = client();
+    RecordingListener listener = new RecordingListener();
+    DockerRule rule = new DockerRule(client, Collections.<DockerRuleListener>singletonList(listener));
+    rule.params = params();
+    rule.startContainer();
+    rule.destroy();
+
+    Assert.assertEquals(Arrays.asList("image", "attach", "wait", "start", "stop"), listener.names(DockerRuleEvent.Type.PHASE));
+    List<String> calls = listener.names(DockerRuleEvent.Type.API_CALL);
+    Assert.assertTrue(calls.toString(), calls.containsAll(Arrays.asList("createContainer", "startContainer",
+      "inspectContainer", "killContainer", "removeContainer")));
+    DockerRuleEvent stop = listener.events.get(listener.events.size() - 1);
+    Assert.assertEquals("mongo:3.2", stop.getImage());
+    Assert.assertEquals("abc", stop.getContainerId());
+    Assert.assertNull(stop.getFailure());
+    // the calls are still made on the client
+    verify(client).startContainer("abc");
+  }
+
+  @Test
+  public void failedCall() throws Throwable {
+    DockerClient client = client();
+    DockerException failure = new DockerException("no space left on device");
+    doThrow(failure).when(client).startContainer("abc");
+    RecordingListener listener = new RecordingListener();
+    DockerRule rule = new DockerRule(client, Collections.<DockerRuleListener>singletonList(listener));
+    rule.params = params();
+    try {
+      rule.startContainer();
+      Assert.fail("Should throw an exception");
+    } catch (DockerException e) {
+      Assert.assertSame(failure, e);
+    }
+    Assert.assertSame(failure, listener.find(DockerRuleEvent.Type.API_CALL, "startContainer").getFailure());
+    Assert.assertSame(failure, listener.find(DockerRuleEvent.Type.PHASE, "attach").getFailure());
+    Assert.assertSame(failure, listener.find(DockerRuleEvent.Type.PHASE, "start").getFailure());
+    Assert.assertNull(listener.find(DockerRuleEvent.Type.PHASE, "wait"));
+  }
+
+  @Test
+  public void failingListenerIsIgnored() throws Throwable {
+    DockerClient client = client();
+    DockerRule rule = new DockerRule(client, Collections.<DockerRuleListener>singletonList(new DockerRuleListener() {
+      @Override
+      public void onEvent(DockerRuleEvent event) {
+        throw new IllegalStateException("broken listener");
+      }
+    }));
+    rule.params = params();
+    rule.startContainer();
+    verify(client).startContainer("abc");
+  }
+
+  @Test
+  public void noListenersNoProxy() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    RuleInstrumentation instrumentation = new RuleInstrumentation(new DockerRule(client),
+      Collections.<DockerRuleListener>emptyList());
+    Assert.assertSame(client, instrumentation.wrap(client));
+  }
+
+  @Test
+  public void traceAndSummary() throws Throwable {
+    TraceReporter reporter = new TraceReporter();
+    DockerRule rule = new DockerRule(client(), Collections.<DockerRuleListener>singletonList(reporter));
+    rule.params = params();
+    rule.startContainer();
+    rule.destroy();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    reporter.write(out);
+    JsonNode trace = new ObjectMapper().readTree(out.toByteArray());
+    boolean found = false;
+    for (JsonNode event : trace.get("traceEvents")) {
+      if ("X".equals(event.get("ph").asText()) && "createContainer".equals(event.get("name").asText())) {
+        found = true;
+        Assert.assertEquals("docker", event.get("cat").asText());
+        Assert.assertTrue(event.get("dur").asLong() >= 0);
+        Assert.assertEquals("mongo:3.2", event.get("args").get("image").asText());
+      }
+    }
+    Assert.assertTrue(found);
+    JsonNode summary = trace.get("summary");
+    Assert.assertEquals(1, summary.get("phases").get("start").get("count").asInt());
+    Assert.assertEquals(1, summary.get("images").get("mongo:3.2").get("count").asInt());
+    Assert.assertEquals(1, summary.get("calls").get("removeContainer").get("count").asInt());
+  }
+
+  @Test
+  public void percentiles() {
+    List<Long> values = new ArrayList<>();
+    for (long ii = 1; ii <= 200; ii++) {
+      values.add(ii);
+    }
+    Assert.assertEquals(100, TraceReporter.percentile(values, 50));
+    Assert.assertEquals(180, TraceReporter.percentile(values, 90));
+    Assert.assertEquals(198, TraceReporter.percentile(values, 99));
+    Assert.assertEquals(7, TraceReporter.percentile(Collections.singletonList(7L), 99));
+  }
+
+  private static DockerRuleParams params() {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "mongo:3.2";
+    params.ports = new String[]{"27017"};
+    return params;
+  }
+
+  private static DockerClient client() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    when(client.createContainer(any(ContainerConfig.class))).thenReturn(new ContainerCreation("abc"));
+    when(client.inspectContainer("abc")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+    return client;
+  }
+
+  private static class RecordingListener implements DockerRuleListener {
+    final List<DockerRuleEvent> events = new ArrayList<>();
+
+    @Override
+    public synchronized void onEvent(DockerRuleEvent event) {
+      events.add(event);
+    }
+
+    synchronized List<String> names(DockerRuleEvent.Type type) {
+      List<String> names = new ArrayList<>();
+      for (DockerRuleEvent event : events) {
+        if (event.getType() == type) {
+          names.add(event.getName());
+        }
+      }
+      return names;
+    }
+
+    synchronized DockerRuleEvent find(DockerRuleEvent.Type type, String name) {
+      for (DockerRuleEvent event : events) {
+        if (event.getType() == type && event.getName().equals(name)) {
+          return event;
+        }
+      }
+      return null;
+    }
+  }
+}
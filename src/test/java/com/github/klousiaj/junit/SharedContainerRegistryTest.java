@@ -0,0 +1,171 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.exceptions.DockerException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.NetworkSettings;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import java.util.HashMap;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class SharedContainerRegistryTest {
+
+  @Test
+  public void configKeyIgnoresOrderAndDefaultLabel() {
+    DockerRuleParams first = new DockerRuleParams();
+    first.imageName = "mongo:latest";
+    first.ports = new String[]{"27017", ":28017"};
+    first.envs = new String[]{"A=1", "B=2"};
+
+    DockerRuleParams second = new DockerRuleParams();
+    second.imageName = "mongo:latest";
+    second.ports = new String[]{":28017", "27017"};
+    second.envs = new String[]{"B=2", "A=1"};
+
+    Assert.assertEquals(first.configKey(), second.configKey());
+
+    first.labels = new HashMap<>();
+    second.labels = new HashMap<>();
+    second.labels.put(DockerRuleBuilder.DEFAULT_LABEL_KEY, DockerRuleBuilder.DEFAULT_LABEL_VALUE);
+    Assert.assertEquals(first.configKey(), second.configKey());
+
+    second.cmd = "--smallfiles";
+    Assert.assertNotEquals(first.configKey(), second.configKey());
+
+    first.cmd = "--smallfiles";
+    second.tmpfs.put("/data/db", "");
+    Assert.assertNotEquals(first.configKey(), second.configKey());
+  }
+
+  @Test
+  public void containerStartedOnceAndRemovedByLastRelease() throws Throwable {
+    DockerClient ownerClient = mockClient("a shared container id");
+    DockerClient otherClient = mockClient("another container id");
+
+    DockerRule owner = sharedRule(ownerClient, 0);
+    DockerRule other = sharedRule(otherClient, 0);
+
+    SharedContainerRegistry registry = new SharedContainerRegistry();
+    registry.acquire(owner);
+    registry.acquire(other);
+    Assert.assertEquals(2, registry.references(owner));
+
+    verify(ownerClient).createContainer(any(ContainerConfig.class));
+    verify(otherClient, never()).createContainer(any(ContainerConfig.class));
+    Assert.assertEquals("a shared container id", other.getContainer().id());
+    Assert.assertEquals(owner.getHostPort("27017/tcp"), other.getHostPort("27017/tcp"));
+
+    registry.release(owner);
+    verify(ownerClient, never()).killContainer(anyString());
+    verify(ownerClient, never()).close();
+
+    registry.release(other);
+    verify(otherClient).close();
+    verify(ownerClient).killContainer("a shared container id");
+    verify(ownerClient).removeContainer(anyString(), any(DockerClient.RemoveContainerParam.class));
+    verify(ownerClient).close();
+    Assert.assertEquals(0, registry.references(owner));
+  }
+
+  @Test
+  public void containerKeptWhenLingering() throws Throwable {
+    DockerClient client = mockClient("a lingering container id");
+    DockerRule rule = sharedRule(client, -1);
+
+    SharedContainerRegistry registry = new SharedContainerRegistry();
+    registry.acquire(rule);
+    registry.release(rule);
+    verify(client, never()).killContainer(anyString());
+
+    // the next rule reuses the container without creating a new one
+    DockerClient nextClient = mockClient("a new container id");
+    DockerRule next = sharedRule(nextClient, -1);
+    registry.acquire(next);
+    verify(nextClient, never()).createContainer(any(ContainerConfig.class));
+    Assert.assertEquals("a lingering container id", next.getContainer().id());
+
+    registry.shutdown();
+    verify(client).killContainer("a lingering container id");
+  }
+
+  @Test
+  public void pausedWhileLingering() throws Throwable {
+    DockerClient client = mockClient("a paused container id");
+    DockerRule rule = sharedRule(client, -1);
+    rule.params.pauseWhenIdle = true;
+
+    SharedContainerRegistry registry = new SharedContainerRegistry();
+    registry.acquire(rule);
+    registry.release(rule);
+    verify(client).pauseContainer("a paused container id");
+
+    // the next rule resumes the container
+    DockerRule next = sharedRule(mockClient("a new container id"), -1);
+    registry.acquire(next);
+    verify(client).unpauseContainer("a paused container id");
+    Assert.assertEquals("a paused container id", next.getContainer().id());
+
+    // paused again once idle, and unpaused before it is killed
+    registry.release(next);
+    verify(client, times(2)).pauseContainer("a paused container id");
+    registry.shutdown();
+    InOrder order = inOrder(client);
+    order.verify(client).unpauseContainer("a paused container id");
+    order.verify(client).killContainer("a paused container id");
+    verify(client, times(2)).unpauseContainer("a paused container id");
+  }
+
+  @Test
+  public void failedStartIsNotShared() throws Throwable {
+    DockerClient failingClient = mockClient("a failed container id");
+    doThrow(DockerException.class)
+      .when(failingClient).startContainer(anyString());
+    DockerRule failing = sharedRule(failingClient, 0);
+
+    SharedContainerRegistry registry = new SharedContainerRegistry();
+    try {
+      registry.acquire(failing);
+      Assert.fail("Should throw an exception");
+    } catch (DockerException e) {
+      Assert.assertEquals(0, registry.references(failing));
+    }
+
+    DockerClient client = mockClient("a working container id");
+    DockerRule rule = sharedRule(client, 0);
+    registry.acquire(rule);
+    verify(client).createContainer(any(ContainerConfig.class));
+  }
+
+  private DockerRule sharedRule(DockerClient client, long linger) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "mongo:latest";
+    params.ports = new String[]{"27017"};
+    params.shared = true;
+    params.sharedLinger = linger;
+
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    return rule;
+  }
+
+  private DockerClient mockClient(String containerId) throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    ContainerCreation container = mock(ContainerCreation.class);
+    when(container.id()).thenReturn(containerId);
+    when(client.createContainer(any(ContainerConfig.class))).thenReturn(container);
+
+    ContainerInfo info = mock(ContainerInfo.class);
+    NetworkSettings networkSettings = mock(NetworkSettings.class);
+    when(networkSettings.ports()).thenReturn(DockerRule.generatePortBinding(":27017"));
+    when(info.networkSettings()).thenReturn(networkSettings);
+    when(client.inspectContainer(anyString())).thenReturn(info);
+    return client;
+  }
+}
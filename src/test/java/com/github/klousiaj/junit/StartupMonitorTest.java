@@ -0,0 +1,99 @@
+package com.github.klousiaj.junit;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.LogStream;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ContainerState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.klousiaj.junit.DockerEventBusTest.event;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class StartupMonitorTest {
+
+  @Test
+  public void readyBeforeExit() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    DockerEventBusTest.FakeSource source = new DockerEventBusTest.FakeSource();
+    StartupMonitor monitor = new StartupMonitor(client, new DockerEventBus(source), 0);
+    monitor.watch("abc");
+
+    SettableFuture<Void> ready = SettableFuture.create();
+    ready.set(null);
+    monitor.await(ready);
+    Assert.assertNull(monitor.close(null));
+    Assert.assertTrue(source.last().closed);
+  }
+
+  @Test
+  public void exitDuringWait() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    ContainerInfo info = mock(ContainerInfo.class);
+    ContainerState state = mock(ContainerState.class);
+    when(state.exitCode()).thenReturn(137);
+    when(info.state()).thenReturn(state);
+    when(client.inspectContainer("abc")).thenReturn(info);
+    LogStream logs = mock(LogStream.class);
+    when(logs.readFully()).thenReturn("Allocating 4GB heap\n");
+    when(client.logs(anyString(), any(DockerClient.LogsParam[].class))).thenReturn(logs);
+
+    DockerEventBusTest.FakeSource source = new DockerEventBusTest.FakeSource();
+    StartupMonitor monitor = new StartupMonitor(client, new DockerEventBus(source), 0);
+    monitor.watch("abc");
+    source.last().push(event("oom", "abc"));
+    source.last().push(event("die", "abc"));
+
+    // a wait that would never complete on its own
+    SettableFuture<Void> ready = SettableFuture.create();
+    long begin = System.nanoTime();
+    try {
+      monitor.await(ready);
+      Assert.fail("Should throw an exception");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("Container abc exited with code 137 during startup, killed by the OOM killer. "
+        + "Last log lines:\nAllocating 4GB heap\n", e.getMessage());
+    }
+    Assert.assertTrue(ready.isCancelled());
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin) < 2000);
+    verify(logs).close();
+    monitor.close(null);
+  }
+
+  @Test
+  public void deadlineInterruptsTheStartup() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    DockerEventBusTest.FakeSource source = new DockerEventBusTest.FakeSource();
+    StartupMonitor monitor = new StartupMonitor(client, new DockerEventBus(source), 200);
+    monitor.watch("abc");
+
+    Throwable failure = null;
+    try {
+      monitor.await(SettableFuture.<Void>create());
+    } catch (InterruptedException e) {
+      failure = e;
+    }
+    failure = monitor.close(failure);
+    Assert.assertTrue(failure instanceof IllegalStateException);
+    Assert.assertEquals("Timeout while starting container abc after 200ms", failure.getMessage());
+    // the interrupt of the deadline does not leak to the caller
+    Assert.assertFalse(Thread.currentThread().isInterrupted());
+  }
+
+  @Test
+  public void watchWithoutEvents() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    // older daemons may not serve the events, the waits still work
+    StartupMonitor monitor = new StartupMonitor(client, 0);
+    monitor.watch("abc");
+    SettableFuture<Void> ready = SettableFuture.create();
+    ready.set(null);
+    monitor.await(ready);
+    Assert.assertNull(monitor.close(null));
+  }
+}
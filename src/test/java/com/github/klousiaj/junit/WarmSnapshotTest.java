@@ -0,0 +1,169 @@
+package com.github.klousiaj.junit;
+
+import com.spotify.docker.client.DockerClient;
+import com.spotify.docker.client.ProgressHandler;
+import com.spotify.docker.client.exceptions.ImageNotFoundException;
+import com.spotify.docker.client.messages.ContainerConfig;
+import com.spotify.docker.client.messages.ContainerCreation;
+import com.spotify.docker.client.messages.ContainerInfo;
+import com.spotify.docker.client.messages.ImageInfo;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class WarmSnapshotTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void tagDependsOnConfigurationAndSeed() {
+    DockerRuleParams first = params("1");
+    Assert.assertEquals(WarmSnapshot.tag(first), WarmSnapshot.tag(params("1")));
+    Assert.assertNotEquals(WarmSnapshot.tag(first), WarmSnapshot.tag(params("2")));
+
+    DockerRuleParams otherEnv = params("1");
+    otherEnv.envs = new String[]{"MONGO_INITDB_DATABASE=other"};
+    Assert.assertNotEquals(WarmSnapshot.tag(first), WarmSnapshot.tag(otherEnv));
+    Assert.assertTrue(WarmSnapshot.tag(first).matches("[0-9a-f]{32}"));
+  }
+
+  @Test
+  public void tagDependsOnCopiedFiles() throws Exception {
+    File fixture = folder.newFile("init.js");
+    Files.write(fixture.toPath(), "db.users.insert({name: 'first'})".getBytes(StandardCharsets.UTF_8));
+    DockerRuleParams first = params("1");
+    first.files.add(new FileInjection(fixture.getPath(), "/docker-entrypoint-initdb.d/init.js"));
+    DockerRuleParams otherPath = params("1");
+    otherPath.files.add(new FileInjection(fixture.getPath(), "/fixtures/init.js"));
+    Assert.assertNotEquals(first.configKey(), otherPath.configKey());
+    Assert.assertNotEquals(first.configKey(), params("1").configKey());
+
+    String tag = WarmSnapshot.tag(first);
+    Assert.assertEquals(tag, WarmSnapshot.tag(first));
+    Files.write(fixture.toPath(), "db.users.insert({name: 'second'})".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(fixture.toPath(), FileTime.fromMillis(1000));
+    String changed = WarmSnapshot.tag(first);
+    Assert.assertNotEquals(tag, changed);
+    // an edit keeping the size is seen through the modification time
+    Files.write(fixture.toPath(), "db.users.insert({name: 'thirds'})".getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(fixture.toPath(), FileTime.fromMillis(2000));
+    Assert.assertNotEquals(changed, WarmSnapshot.tag(first));
+  }
+
+  @Test
+  public void seedAndCommitTheFirstTime() throws Throwable {
+    DockerRuleParams params = params("1");
+    String snapshot = WarmSnapshot.image(params);
+    DockerClient client = client();
+    when(client.inspectImage(snapshot)).thenThrow(new ImageNotFoundException(snapshot));
+
+    final AtomicInteger seeded = new AtomicInteger();
+    params.seeder = new ContainerSeeder() {
+      @Override
+      public void seed(DockerRule rule) {
+        seeded.incrementAndGet();
+      }
+    };
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    rule.startContainer();
+
+    Assert.assertEquals(1, seeded.get());
+    ArgumentCaptor<ContainerConfig> config = ArgumentCaptor.forClass(ContainerConfig.class);
+    verify(client).createContainer(config.capture());
+    Assert.assertEquals("mongo:3.2", config.getValue().image());
+    verify(client).commitContainer(eq("abc"), eq(WarmSnapshot.REPOSITORY), eq(WarmSnapshot.tag(params)),
+      any(ContainerConfig.class), anyString(), anyString());
+  }
+
+  @Test
+  public void startFromTheSnapshot() throws Throwable {
+    DockerRuleParams params = params("1");
+    String snapshot = WarmSnapshot.image(params);
+    DockerClient client = client();
+    when(client.inspectImage(snapshot)).thenReturn(new ImageInfo());
+
+    params.seeder = new ContainerSeeder() {
+      @Override
+      public void seed(DockerRule rule) {
+        Assert.fail("The snapshot is already seeded");
+      }
+    };
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    rule.startContainer();
+
+    ArgumentCaptor<ContainerConfig> config = ArgumentCaptor.forClass(ContainerConfig.class);
+    verify(client).createContainer(config.capture());
+    Assert.assertEquals(snapshot, config.getValue().image());
+    verify(client, never()).commitContainer(anyString(), anyString(), anyString(),
+      any(ContainerConfig.class), anyString(), anyString());
+    // the base image is not needed
+    verify(client, never()).pull(anyString());
+  }
+
+  @Test
+  public void existingSnapshotSkipsThePull() throws Throwable {
+    DockerRuleParams params = params("1");
+    String snapshot = WarmSnapshot.image(params);
+    DockerClient client = client();
+    when(client.inspectImage(snapshot)).thenReturn(new ImageInfo());
+
+    ImagePull.of(params, null).run(client);
+    verify(client, never()).inspectImage("mongo:3.2");
+    verify(client, never()).pull(anyString(), any(ProgressHandler.class));
+  }
+
+  @Test
+  public void failedSeedRemovesTheContainer() throws Throwable {
+    DockerRuleParams params = params("1");
+    String snapshot = WarmSnapshot.image(params);
+    DockerClient client = client();
+    when(client.inspectImage(snapshot)).thenThrow(new ImageNotFoundException(snapshot));
+    params.seeder = new ContainerSeeder() {
+      @Override
+      public void seed(DockerRule rule) throws Exception {
+        throw new Exception("fixture missing");
+      }
+    };
+    DockerRule rule = new DockerRule(client);
+    rule.params = params;
+    try {
+      rule.startContainer();
+      Assert.fail("Should throw an exception");
+    } catch (Exception e) {
+      Assert.assertEquals("fixture missing", e.getMessage());
+    }
+    verify(client).removeContainer(eq("abc"), any(DockerClient.RemoveContainerParam.class));
+    verify(client, never()).commitContainer(anyString(), anyString(), anyString(),
+      any(ContainerConfig.class), anyString(), anyString());
+  }
+
+  private static DockerRuleParams params(String seedVersion) {
+    DockerRuleParams params = new DockerRuleParams();
+    params.imageName = "mongo:3.2";
+    params.ports = new String[]{"27017"};
+    params.snapshotVersion = seedVersion;
+    return params;
+  }
+
+  private static DockerClient client() throws Exception {
+    DockerClient client = mock(DockerClient.class);
+    when(client.createContainer(any(ContainerConfig.class))).thenReturn(new ContainerCreation("abc"));
+    when(client.inspectContainer("abc")).thenReturn(mock(ContainerInfo.class, RETURNS_DEEP_STUBS));
+    return client;
+  }
+}